@@ -0,0 +1,80 @@
+package com.diffmin.benchmarks;
+
+import com.diffmin.GumtreeSpoonAstDiff;
+import com.github.gumtreediff.matchers.Mapping;
+import com.github.gumtreediff.matchers.MappingStore;
+import gumtree.spoon.builder.SpoonGumTreeBuilder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import spoon.reflect.declaration.CtElement;
+
+/**
+ * Mapping of Spoon elements kept in two identity maps, as {@link com.diffmin.SpoonMapping} used to
+ * be, which {@link MappingBenchmark} compares it with. The additional mappings are inferred round
+ * after round, each round listing the pairs matched by the previous one.
+ */
+class IdentityMapMapping {
+    private final Map<CtElement, CtElement> srcToDst = new IdentityHashMap<>();
+    private final Map<CtElement, CtElement> dstToSrc = new IdentityHashMap<>();
+
+    /**
+     * Creates the mapping of the Spoon elements mapped by GumTree, along with the inferred ones.
+     *
+     * @param gumtreeMapping mapping computed by GumTree
+     * @return mapping of the Spoon elements
+     */
+    static IdentityMapMapping fromGumTreeMapping(MappingStore gumtreeMapping) {
+        IdentityMapMapping mapping = new IdentityMapMapping();
+        List<CtElement[]> matches = new ArrayList<>();
+        for (Mapping m : gumtreeMapping.asSet()) {
+            CtElement src = (CtElement) m.first.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT);
+            CtElement dst = (CtElement) m.second.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT);
+            if (src != null && dst != null) {
+                mapping.put(src, dst);
+                matches.add(new CtElement[] {src, dst});
+            }
+        }
+        while (!matches.isEmpty()) {
+            List<CtElement[]> newMatches = new ArrayList<>();
+            for (CtElement[] match : matches) {
+                mapping.inferAdditionalMappings(match[0], match[1], newMatches);
+            }
+            matches = newMatches;
+        }
+        return mapping;
+    }
+
+    private void inferAdditionalMappings(CtElement src, CtElement dst, List<CtElement[]> matches) {
+        List<CtElement> srcChildren = src.getDirectChildren();
+        List<CtElement> dstChildren = dst.getDirectChildren();
+        int srcIdx = 0;
+        int dstIdx = 0;
+        while (srcIdx < srcChildren.size() && dstIdx < dstChildren.size()) {
+            CtElement srcChild = srcChildren.get(srcIdx);
+            CtElement dstChild = dstChildren.get(dstIdx);
+            if (srcToDst.containsKey(srcChild) || !GumtreeSpoonAstDiff.isToIgnore(srcChild)) {
+                srcIdx++;
+            } else if (dstToSrc.containsKey(dstChild)
+                    || !GumtreeSpoonAstDiff.isToIgnore(dstChild)) {
+                dstIdx++;
+            } else {
+                put(srcChild, dstChild);
+                matches.add(new CtElement[] {srcChild, dstChild});
+                srcIdx++;
+                dstIdx++;
+            }
+        }
+    }
+
+    private void put(CtElement src, CtElement dst) {
+        srcToDst.put(src, dst);
+        dstToSrc.put(dst, src);
+    }
+
+    /** Returns the number of nodes of the source tree which are mapped. */
+    int size() {
+        return srcToDst.size();
+    }
+}
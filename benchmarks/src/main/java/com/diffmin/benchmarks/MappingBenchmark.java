@@ -0,0 +1,68 @@
+package com.diffmin.benchmarks;
+
+import com.diffmin.SpoonMapping;
+import com.diffmin.util.SpoonUtil;
+import gumtree.spoon.diff.Diff;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks converting the GumTree mapping of a synthetic pair into a mapping of Spoon elements,
+ * backed by pre-order numbers and arrays as in {@link SpoonMapping}, or by identity maps as in
+ * {@link IdentityMapMapping}.
+ *
+ * <p>Run with {@code -prof gc} to compare the bytes allocated by both mappings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+@State(Scope.Benchmark)
+public class MappingBenchmark {
+
+    /** Number of statements in the previous file. */
+    @Param({"1000", "10000"})
+    public int statements;
+
+    private Diff diff;
+
+    /** Computes the diff of the synthetic pair. */
+    @Setup(Level.Trial)
+    public void compute() throws IOException {
+        Path directory = Files.createTempDirectory("diffmin-mapping");
+        File[] files = SyntheticWorkload.ofSize(statements).writeTo(directory);
+        diff = SpoonUtil.computeDiff(files[0], files[1]).getFirst();
+        for (File file : files) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory);
+    }
+
+    /** Maps the elements with pre-order numbers and arrays. */
+    @Benchmark
+    public SpoonMapping numberedArrays() {
+        return SpoonMapping.fromGumTreeMapping(diff.getMappingsComp());
+    }
+
+    /** Maps the elements with identity maps. */
+    @Benchmark
+    public IdentityMapMapping identityMaps() {
+        return IdentityMapMapping.fromGumTreeMapping(diff.getMappingsComp());
+    }
+}
@@ -0,0 +1,52 @@
+package com.diffmin.benchmarks;
+
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.SpoonUtil;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import spoon.Launcher;
+import spoon.reflect.CtModel;
+
+/**
+ * Compares building the model of a file through a new {@link Launcher}, which creates and
+ * configures its environment, factory and compiler on every call, with building it through a shared
+ * {@link ParsingContext}, which reuses the environment of the thread.
+ *
+ * <p>Run with {@code -prof gc} to see how much less each build allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsingBenchmark {
+    private final ParsingContext parsingContext = new ParsingContext();
+
+    /** Parses the previous file with a launcher configured like the parsing context. */
+    @Benchmark
+    public CtModel launcher(ResourcePair pair) {
+        Launcher launcher = new Launcher();
+        launcher.getEnvironment().setNoClasspath(true);
+        launcher.getEnvironment().setEncoding(StandardCharsets.UTF_8);
+        launcher.getEnvironment().setCommentEnabled(false);
+        launcher.addInputResource(pair.prevFile.getPath());
+        return launcher.buildModel();
+    }
+
+    /** Parses the previous file with the shared parsing context. */
+    @Benchmark
+    public CtModel parsingContext(ResourcePair pair) throws FileNotFoundException {
+        return SpoonUtil.buildModel(pair.prevFile, parsingContext);
+    }
+}
@@ -0,0 +1,147 @@
+package com.diffmin.benchmarks;
+
+import com.diffmin.SpoonMapping;
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.CachingParsingContext;
+import com.diffmin.util.Pair;
+import com.diffmin.util.SpoonUtil;
+import gumtree.spoon.AstComparator;
+import gumtree.spoon.diff.Diff;
+import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtPackage;
+
+/**
+ * Benchmarks each phase of patching a file in isolation. The inputs of a phase are computed by the
+ * preceding phases outside of the measured region.
+ *
+ * <p>Run with {@code -prof gc} to see the allocation rate of each phase next to its time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+    /** Models of both files of the pair. */
+    @State(Scope.Thread)
+    public static class Models {
+        CtPackage prevPackage;
+        CtPackage newPackage;
+
+        /** Builds the models. */
+        @Setup(Level.Trial)
+        public void build(ResourcePair pair) throws FileNotFoundException {
+            prevPackage = SpoonUtil.getPackage(pair.prevFile);
+            newPackage = SpoonUtil.getPackage(pair.newFile);
+        }
+    }
+
+    /** Diff between both files of the pair. */
+    @State(Scope.Thread)
+    public static class Diffed {
+        Diff diff;
+
+        /** Computes the diff. */
+        @Setup(Level.Trial)
+        public void compute(ResourcePair pair) throws FileNotFoundException {
+            diff = SpoonUtil.computeDiff(pair.prevFile, pair.newFile).getFirst();
+        }
+    }
+
+    /**
+     * Patches generated for a freshly built previous model. Applying the patches mutates that
+     * model, so it is rebuilt before every invocation from a cache of the parsed models.
+     */
+    @State(Scope.Thread)
+    public static class Generated {
+        private final CachingParsingContext parsingContext =
+                new CachingParsingContext(Long.MAX_VALUE);
+        PatchGeneration patchGeneration;
+
+        /** Computes the diff on new copies of the models and generates the patches. */
+        @Setup(Level.Invocation)
+        public void generate(ResourcePair pair) throws FileNotFoundException {
+            Diff diff =
+                    SpoonUtil.computeDiff(pair.prevFile, pair.newFile, parsingContext).getFirst();
+            patchGeneration = new PatchGeneration();
+            patchGeneration.generatePatch(diff);
+        }
+    }
+
+    /** Model of the previous file once it has been patched. */
+    @State(Scope.Thread)
+    public static class Patched {
+        CtModel patchedModel;
+
+        /** Patches the previous model. */
+        @Setup(Level.Trial)
+        public void patch(ResourcePair pair) throws FileNotFoundException {
+            Pair<Diff, CtModel> diffAndModel = SpoonUtil.computeDiff(pair.prevFile, pair.newFile);
+            PatchGeneration patchGeneration = new PatchGeneration();
+            patchGeneration.generatePatch(diffAndModel.getFirst());
+            applyPatch(patchGeneration);
+            patchedModel = diffAndModel.getSecond();
+        }
+    }
+
+    /** Parses the previous file. */
+    @Benchmark
+    public CtModel buildModel(ResourcePair pair) throws FileNotFoundException {
+        return SpoonUtil.buildModel(pair.prevFile);
+    }
+
+    /** Matches both models with GumTree and computes the edit script. */
+    @Benchmark
+    public Diff compare(Models models) {
+        return new AstComparator().compare(models.prevPackage, models.newPackage);
+    }
+
+    /** Converts the GumTree mapping into a mapping of Spoon elements. */
+    @Benchmark
+    public SpoonMapping fromGumTreeMapping(Diffed diffed) {
+        return SpoonMapping.fromGumTreeMapping(diffed.diff.getMappingsComp());
+    }
+
+    /** Generates the patches from the edit script. */
+    @Benchmark
+    public PatchGeneration generatePatch(Diffed diffed) {
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diffed.diff);
+        return patchGeneration;
+    }
+
+    /** Applies the patches to the previous model. */
+    @Benchmark
+    public void applyPatch(Generated generated) {
+        applyPatch(generated.patchGeneration);
+    }
+
+    /** Prints the patched model. */
+    @Benchmark
+    public String prettyPrint(Patched patched) {
+        return SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patched.patchedModel);
+    }
+
+    private static void applyPatch(PatchGeneration patchGeneration) {
+        PatchApplication.applyPatch(
+                patchGeneration.getDeletePatches(),
+                patchGeneration.getUpdatePatches(),
+                patchGeneration.getInsertPatches(),
+                patchGeneration.getMovePatches());
+    }
+}
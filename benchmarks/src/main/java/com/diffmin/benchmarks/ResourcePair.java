@@ -0,0 +1,64 @@
+package com.diffmin.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A pair of files from the test resources of diffmin. The resources are looked up in the directory
+ * given by the {@code diffmin.resources} system property, which defaults to the test resources of
+ * the repository when the benchmarks are run from its root.
+ */
+@State(Scope.Benchmark)
+public class ResourcePair {
+    private static final String RESOURCES_PROPERTY = "diffmin.resources";
+    private static final String DEFAULT_RESOURCES = "src/test/resources";
+
+    /** Directory of the pair relative to the test resources. */
+    @Param({
+        "delete/literal",
+        "update/multiple_updates",
+        "insert/multiple-insert",
+        "move/statement",
+        "mix-operation/DU_method+invocation+typeref+binop+localvar"
+    })
+    public String resource;
+
+    File prevFile;
+    File newFile;
+
+    /** Locates the files of the pair. */
+    @Setup(Level.Trial)
+    public void locate() {
+        Path directory =
+                Paths.get(System.getProperty(RESOURCES_PROPERTY, DEFAULT_RESOURCES))
+                        .resolve(resource);
+        prevFile = findByPrefix(directory, "PREV");
+        newFile = findByPrefix(directory, "NEW");
+    }
+
+    private static File findByPrefix(Path directory, String prefix) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix))
+                    .findFirst()
+                    .map(Path::toFile)
+                    .orElseThrow(
+                            () ->
+                                    new IllegalArgumentException(
+                                            String.format(
+                                                    "Expected file with prefix '%s' in directory '%s'",
+                                                    prefix, directory)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.diffmin.benchmarks;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.Pair;
+import com.diffmin.util.SpoonUtil;
+import gumtree.spoon.diff.Diff;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import spoon.reflect.CtModel;
+
+/**
+ * Benchmarks patching a synthetic pair end to end, from parsing both files to printing the patched
+ * model, for growing numbers of statements. A single shot is measured per iteration as the larger
+ * pairs take seconds to patch.
+ *
+ * <p>The sizes stop at 10000 statements, while {@link ScalingReport} goes up to 100000 by default.
+ * A pair of 100000 statements takes long enough to patch that the eight shots of a trial run for
+ * minutes, and it needs a heap of several gigabytes which the default fork would not get, so that
+ * size is only patched once by the report. It can still be measured here by passing {@code -p
+ * statements=100000 -jvmArgsAppend -Xmx8g}.
+ *
+ * <p>Run with {@code -prof gc} to see the allocations next to the time, and see {@link
+ * ScalingReport} for the peak heap and the time of each phase.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+
+    /** Number of statements in the previous file. */
+    @Param({"100", "1000", "10000"})
+    public int statements;
+
+    private Path directory;
+    private File prevFile;
+    private File newFile;
+
+    /** Writes the synthetic pair into a temporary directory. */
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        directory = Files.createTempDirectory("diffmin-scaling");
+        File[] files = SyntheticWorkload.ofSize(statements).writeTo(directory);
+        prevFile = files[0];
+        newFile = files[1];
+    }
+
+    /** Deletes the synthetic pair. */
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Files.delete(prevFile.toPath());
+        Files.delete(newFile.toPath());
+        Files.delete(directory);
+    }
+
+    /** Parses, diffs, patches and prints the synthetic pair. */
+    @Benchmark
+    public String patch() throws IOException {
+        Pair<Diff, CtModel> diffAndModel = SpoonUtil.computeDiff(prevFile, newFile);
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diffAndModel.getFirst());
+        PatchApplication.applyPatch(
+                patchGeneration.getDeletePatches(),
+                patchGeneration.getUpdatePatches(),
+                patchGeneration.getInsertPatches(),
+                patchGeneration.getMovePatches());
+        return SpoonUtil.prettyPrintModelWithSingleCompilationUnit(diffAndModel.getSecond());
+    }
+}
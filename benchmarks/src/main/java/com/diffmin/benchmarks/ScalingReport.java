@@ -0,0 +1,136 @@
+package com.diffmin.benchmarks;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.SpoonUtil;
+import gumtree.spoon.AstComparator;
+import gumtree.spoon.diff.Diff;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtPackage;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+/**
+ * Patches synthetic pairs of growing size once each and reports, for every size, the number of
+ * nodes in the previous model, the time spent in each phase and the peak heap usage. The report is
+ * written as CSV so that time and heap can be plotted against the number of nodes, which shows the
+ * phases that grow faster than the input.
+ *
+ * <p>Usage: {@code ScalingReport <output.csv> [<statements>...]}. The peak heap is the sum of the
+ * peak usage of every heap memory pool since the start of the pair, which overestimates the actual
+ * peak slightly but is comparable across sizes. Run it with a generous {@code -Xmx} and {@code
+ * -Xss} for the largest sizes. The pairs are written to a temporary directory which is deleted once
+ * the report is written, even if a size fails.
+ */
+public class ScalingReport {
+    private static final int[] DEFAULT_SIZES = {100, 1000, 10000, 100000};
+    private static final String HEADER =
+            "statements,methods,nodes,parse_ms,compare_ms,generate_ms,apply_ms,print_ms,"
+                    + "total_ms,peak_heap_mb";
+
+    /**
+     * Writes the report.
+     *
+     * @param args output file followed by the numbers of statements to measure
+     * @throws IOException Exception raised if a pair or the report cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ScalingReport <output.csv> [<statements>...]");
+            System.exit(1);
+        }
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        Path directory = Files.createTempDirectory("diffmin-scaling");
+        try (PrintStream report = new PrintStream(Files.newOutputStream(Paths.get(args[0])))) {
+            report.println(HEADER);
+            System.out.println(HEADER);
+            for (int statements : sizes) {
+                String row = measure(SyntheticWorkload.ofSize(statements), statements, directory);
+                report.println(row);
+                report.flush();
+                System.out.println(row);
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /** Deletes the directory of the pairs along with any pair left by a failed measure. */
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            // children come after their parent in the walk, so they are deleted first
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static String measure(SyntheticWorkload workload, int statements, Path directory)
+            throws IOException {
+        File[] files = workload.writeTo(directory.resolve(String.valueOf(statements)));
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        long start = System.nanoTime();
+        CtPackage prevPackage = SpoonUtil.getPackage(files[0]);
+        CtPackage newPackage = SpoonUtil.getPackage(files[1]);
+        long parsed = System.nanoTime();
+        Diff diff = new AstComparator().compare(prevPackage, newPackage);
+        long compared = System.nanoTime();
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diff);
+        long generated = System.nanoTime();
+        PatchApplication.applyPatch(
+                patchGeneration.getDeletePatches(),
+                patchGeneration.getUpdatePatches(),
+                patchGeneration.getInsertPatches(),
+                patchGeneration.getMovePatches());
+        long applied = System.nanoTime();
+        SpoonUtil.prettyPrintModelWithSingleCompilationUnit(prevPackage.getFactory().getModel());
+        long printed = System.nanoTime();
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        // the previous model has been patched, so the nodes are counted on the new one
+        int nodes = newPackage.getElements(new TypeFilter<>(CtElement.class)).size();
+        return String.format(
+                "%d,%d,%d,%d,%d,%d,%d,%d,%d,%d",
+                statements,
+                workload.getMethods(),
+                nodes,
+                toMillis(parsed - start),
+                toMillis(compared - parsed),
+                toMillis(generated - compared),
+                toMillis(applied - generated),
+                toMillis(printed - applied),
+                toMillis(printed - start),
+                peakHeap / (1024 * 1024));
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,190 @@
+package com.diffmin.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates a pair of Java files of controllable size. Both files declare a single class whose
+ * methods contain the requested number of statements, part of which are nested in {@code if} and
+ * {@code for} blocks up to the requested depth. The new file is derived from the previous one by
+ * updating literals, inserting and deleting statements, and adding methods, each at its own rate.
+ */
+public class SyntheticWorkload {
+    private static final String CLASS_NAME = "Synthetic";
+
+    private final int statements;
+    private final int statementsPerMethod;
+    private final int depth;
+    private final double updateRate;
+    private final double insertRate;
+    private final double deleteRate;
+    private final long seed;
+
+    /**
+     * Constructs a workload.
+     *
+     * @param statements total number of statements in the previous file
+     * @param statementsPerMethod number of statements in each method
+     * @param depth maximum nesting depth of the blocks inside a method
+     * @param updateRate fraction of statements whose literal is updated
+     * @param insertRate fraction of statements followed by an inserted statement
+     * @param deleteRate fraction of statements which are deleted
+     * @param seed seed for choosing which statements are edited
+     */
+    public SyntheticWorkload(
+            int statements,
+            int statementsPerMethod,
+            int depth,
+            double updateRate,
+            double insertRate,
+            double deleteRate,
+            long seed) {
+        if (statements < 1 || statementsPerMethod < 1 || depth < 0) {
+            throw new IllegalArgumentException("Workload must have statements and methods");
+        }
+        this.statements = statements;
+        this.statementsPerMethod = statementsPerMethod;
+        this.depth = depth;
+        this.updateRate = updateRate;
+        this.insertRate = insertRate;
+        this.deleteRate = deleteRate;
+        this.seed = seed;
+    }
+
+    /**
+     * Returns a workload with the given number of statements, 20 statements per method, a nesting
+     * depth of 4 and 1% of the statements updated, inserted and deleted each.
+     */
+    public static SyntheticWorkload ofSize(int statements) {
+        return new SyntheticWorkload(statements, 20, 4, 0.01, 0.01, 0.01, 42);
+    }
+
+    /** Returns the number of methods declared in the previous file. */
+    public int getMethods() {
+        return (statements + statementsPerMethod - 1) / statementsPerMethod;
+    }
+
+    /**
+     * Writes the pair into the directory, using the same naming scheme as the test resources.
+     *
+     * @param directory directory in which the files are created
+     * @return previous and new file
+     * @throws IOException Exception raised if a file cannot be written
+     */
+    public File[] writeTo(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path prevFile = directory.resolve("PREV_" + CLASS_NAME + ".java");
+        Path newFile = directory.resolve("NEW_" + CLASS_NAME + ".java");
+        Files.writeString(prevFile, generate(false));
+        Files.writeString(newFile, generate(true));
+        return new File[] {prevFile.toFile(), newFile.toFile()};
+    }
+
+    /**
+     * Generates the source of either file. Both files draw the same random numbers in the same
+     * order, so the edits applied to the new file line up with the statements of the previous one.
+     *
+     * @param edited whether the edits are applied
+     * @return source of the file
+     */
+    String generate(boolean edited) {
+        Random random = new Random(seed);
+        StringBuilder source = new StringBuilder();
+        source.append("class ").append(CLASS_NAME).append(" {\n");
+        int remaining = statements;
+        for (int method = 0; remaining > 0; method++) {
+            int methodStatements = Math.min(statementsPerMethod, remaining);
+            remaining -= methodStatements;
+            source.append("    int field")
+                    .append(method)
+                    .append(" = ")
+                    .append(method)
+                    .append(";\n\n");
+            appendMethod(source, "method" + method, methodStatements, random, edited);
+            if (random.nextDouble() < insertRate && edited) {
+                appendMethod(source, "addedMethod" + method, 1, new Random(method), false);
+            }
+        }
+        return source.append("}\n").toString();
+    }
+
+    private void appendMethod(
+            StringBuilder source,
+            String name,
+            int methodStatements,
+            Random random,
+            boolean edited) {
+        source.append("    int ").append(name).append("(int p) {\n");
+        source.append("        int acc = p;\n");
+        appendBlock(source, methodStatements, depth, 2, random, edited);
+        source.append("        return acc;\n");
+        source.append("    }\n\n");
+    }
+
+    private void appendBlock(
+            StringBuilder source,
+            int blockStatements,
+            int remainingDepth,
+            int indentation,
+            Random random,
+            boolean edited) {
+        int nested = remainingDepth > 0 ? blockStatements / 2 : 0;
+        for (int i = 0; i < blockStatements - nested; i++) {
+            appendStatement(source, indentation, random, edited);
+        }
+        if (nested > 0) {
+            int literal = random.nextInt(100);
+            String indent = "    ".repeat(indentation);
+            String loopVariable = "i" + indentation;
+            if (remainingDepth % 2 == 0) {
+                source.append(indent).append("if (acc > ").append(literal).append(") {\n");
+            } else {
+                source.append(indent)
+                        .append(
+                                String.format(
+                                        "for (int %1$s = 0; %1$s < %2$d; %1$s++) {\n",
+                                        loopVariable, literal % 4));
+            }
+            appendBlock(source, nested, remainingDepth - 1, indentation + 1, random, edited);
+            source.append(indent).append("}\n");
+        }
+    }
+
+    private void appendStatement(
+            StringBuilder source, int indentation, Random random, boolean edited) {
+        // always draw the same numbers so that both files stay aligned
+        int kind = random.nextInt(3);
+        int literal = random.nextInt(1000);
+        double edit = random.nextDouble();
+        boolean delete = edit < deleteRate;
+        boolean update = !delete && edit < deleteRate + updateRate;
+        boolean insert = !delete && !update && edit < deleteRate + updateRate + insertRate;
+        if (edited && delete) {
+            return;
+        }
+        if (edited && update) {
+            literal += 1000;
+        }
+        String indent = "    ".repeat(indentation);
+        switch (kind) {
+            case 0:
+                source.append(indent).append("acc += ").append(literal).append(";\n");
+                break;
+            case 1:
+                source.append(indent).append("acc = acc * ").append(literal).append(" - p;\n");
+                break;
+            default:
+                source.append(indent)
+                        .append("System.out.println(acc + ")
+                        .append(literal)
+                        .append(");\n");
+                break;
+        }
+        if (edited && insert) {
+            source.append(indent).append("acc -= ").append(literal).append(";\n");
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.diffmin;
+
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.PhaseMetrics;
+import com.diffmin.util.PhaseMetrics.Phase;
+import com.diffmin.util.SourceComparison;
+import com.diffmin.util.SpoonUtil;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import spoon.compiler.SpoonResource;
+import spoon.reflect.CtModel;
+
+/**
+ * Patches many file pairs in a single JVM using a bounded pool of workers.
+ *
+ * <p>Every pair is handled entirely by one worker, so the factories built for a pair are confined
+ * to the thread that processes it, and the parsing context configures the Spoon environment of each
+ * worker once for all its pairs. Either side of a pair is a file or content supplied by the caller,
+ * which is only read once a worker picks the pair up, so that the pairs waiting for a worker hold
+ * nothing in memory. The metrics of each pair are only recorded and reported if asked for, as
+ * counting the nodes of the models requires more work.
+ */
+class BatchRunner {
+    private static final String MANIFEST_SEPARATOR = "\t";
+    private static final String MANIFEST_COMMENT = "#";
+
+    private final int workers;
+    private final ParsingContext parsingContext;
+    private final PrintStream report;
+    private final boolean recordMetrics;
+
+    /**
+     * Constructs a runner building the models with the default parsing context, see {@link
+     * SpoonUtil#getDefaultParsingContext()}.
+     *
+     * @param workers number of pairs processed concurrently
+     * @param report stream to which per-pair results and the summary are written
+     */
+    BatchRunner(int workers, PrintStream report) {
+        this(workers, SpoonUtil.getDefaultParsingContext(), report);
+    }
+
+    /**
+     * Constructs a runner which does not record the metrics of the pairs.
+     *
+     * @param workers number of pairs processed concurrently
+     * @param parsingContext context used for building the models of every pair
+     * @param report stream to which per-pair results and the summary are written
+     */
+    BatchRunner(int workers, ParsingContext parsingContext, PrintStream report) {
+        this(workers, parsingContext, report, false);
+    }
+
+    /**
+     * Constructs a runner.
+     *
+     * @param workers number of pairs processed concurrently
+     * @param parsingContext context used for building the models of every pair
+     * @param report stream to which per-pair results and the summary are written
+     * @param recordMetrics whether the metrics of every pair are recorded and appended to its
+     *     result
+     */
+    BatchRunner(
+            int workers, ParsingContext parsingContext, PrintStream report, boolean recordMetrics) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of workers must be positive: " + workers);
+        }
+        this.workers = workers;
+        this.parsingContext = parsingContext;
+        this.report = report;
+        this.recordMetrics = recordMetrics;
+    }
+
+    /**
+     * Reads a manifest of file pairs. Each non-empty line which does not start with {@code #}
+     * consists of the previous file, the new file and the output file separated by tabs.
+     *
+     * @param manifest path to the manifest
+     * @return entries in the order they appear in the manifest
+     * @throws IOException Exception raised if the manifest cannot be read or is malformed
+     */
+    static List<Entry> readManifest(Path manifest) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<String> lines = Files.readAllLines(manifest);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isBlank() || line.startsWith(MANIFEST_COMMENT)) {
+                continue;
+            }
+            String[] columns = line.split(MANIFEST_SEPARATOR);
+            if (columns.length != 3) {
+                throw new IOException(
+                        String.format(
+                                "%s:%d: expected 3 tab-separated paths, but found %d",
+                                manifest, i + 1, columns.length));
+            }
+            entries.add(
+                    new Entry(Paths.get(columns[0]), Paths.get(columns[1]), Paths.get(columns[2])));
+        }
+        return entries;
+    }
+
+    /**
+     * Patches every entry and writes the patched program to its output file.
+     *
+     * @param entries pairs to be patched
+     * @return number of pairs which could not be patched
+     * @throws InterruptedException Exception raised if the runner is interrupted while waiting
+     */
+    int run(List<Entry> entries) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        ExecutorCompletionService<Result> completionService =
+                new ExecutorCompletionService<>(executor);
+        long start = System.nanoTime();
+        int failures = 0;
+        try {
+            for (Entry entry : entries) {
+                completionService.submit(() -> process(entry));
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                Result result = getResult(completionService);
+                if (!result.isSuccess()) {
+                    failures++;
+                }
+                report.println(result);
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        double pairsPerSecond = entries.size() * 1000.0 / Math.max(elapsedMillis, 1);
+        report.printf(
+                "Processed %d pairs (%d succeeded, %d failed) in %d ms with %d workers, %.2f pairs/s%n",
+                entries.size(),
+                entries.size() - failures,
+                failures,
+                elapsedMillis,
+                workers,
+                pairsPerSecond);
+        return failures;
+    }
+
+    private static Result getResult(ExecutorCompletionService<Result> completionService)
+            throws InterruptedException {
+        try {
+            return completionService.take().get();
+        } catch (ExecutionException e) {
+            // process() reports every failure through its result, including errors
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private Result process(Entry entry) {
+        long start = System.nanoTime();
+        PhaseMetrics metrics = recordMetrics ? new PhaseMetrics() : PhaseMetrics.disabled();
+        try {
+            byte[] prevContent = entry.prevInput.read();
+            byte[] newContent = entry.newInput.read();
+            SpoonResource prevResource = entry.prevInput.toResource(prevContent);
+            SpoonResource newResource = entry.newInput.toResource(newContent);
+            String patchedProgram =
+                    SourceComparison.patchedOrPrevious(
+                            prevContent,
+                            newContent,
+                            () -> {
+                                CtModel patchedModel =
+                                        Main.patchAndGenerateModel(
+                                                prevResource,
+                                                newResource,
+                                                parsingContext,
+                                                Runnable::run,
+                                                metrics);
+                                return metrics.measureAndGet(
+                                        Phase.PRINT,
+                                        () ->
+                                                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                                                        patchedModel));
+                            });
+            Path outputDirectory = entry.outputPath.toAbsolutePath().getParent();
+            if (outputDirectory != null) {
+                Files.createDirectories(outputDirectory);
+            }
+            Files.writeString(entry.outputPath, patchedProgram);
+            return new Result(entry, null, System.nanoTime() - start, metrics);
+        } catch (Exception | StackOverflowError e) {
+            // deeply nested code overflows the stack of the worker, which only fails this pair
+            return new Result(entry, e, System.nanoTime() - start, metrics);
+        }
+    }
+
+    /** A pair to be patched along with the file to which the patched program goes. */
+    static class Entry {
+        final Input prevInput;
+        final Input newInput;
+        final Path outputPath;
+
+        /**
+         * Constructs an entry of two files.
+         *
+         * @param prevPath previous version of the file
+         * @param newPath modified version of the file
+         * @param outputPath file to which the patched program is written
+         */
+        Entry(Path prevPath, Path newPath, Path outputPath) {
+            this(Input.ofFile(prevPath), Input.ofFile(newPath), outputPath);
+        }
+
+        /**
+         * Constructs an entry.
+         *
+         * @param prevInput previous version of the program
+         * @param newInput modified version of the program
+         * @param outputPath file to which the patched program is written
+         */
+        Entry(Input prevInput, Input newInput, Path outputPath) {
+            this.prevInput = prevInput;
+            this.newInput = newInput;
+            this.outputPath = outputPath;
+        }
+    }
+
+    /** One side of an {@link Entry}, read from a file or supplied by the caller. */
+    static class Input {
+        private final String name;
+        private final Path path;
+        private final ContentSupplier content;
+
+        private Input(String name, Path path, ContentSupplier content) {
+            this.name = name;
+            this.path = path;
+            this.content = content;
+        }
+
+        /**
+         * Returns the input read from the file.
+         *
+         * @param path file holding the program
+         * @return input of the file
+         */
+        static Input ofFile(Path path) {
+            return new Input(path.toString(), path, () -> Files.readAllBytes(path));
+        }
+
+        /**
+         * Returns the input whose content is supplied by the caller once a worker processes the
+         * pair. The content is parsed from memory.
+         *
+         * @param name name of the input in the report, ending with the name of the file the content
+         *     stands for, such as {@code HEAD:src/A.java}
+         * @param content supplies the content of the program, encoded in UTF-8
+         * @return input of the content
+         */
+        static Input ofContent(String name, ContentSupplier content) {
+            return new Input(name, null, content);
+        }
+
+        private byte[] read() throws IOException {
+            return content.get();
+        }
+
+        private SpoonResource toResource(byte[] bytes) {
+            // the path of a file is kept, so that its models refer to it
+            if (path != null) {
+                return SpoonUtil.createResource(bytes, path.toString());
+            }
+            return SpoonUtil.createResource(bytes, name.substring(name.lastIndexOf('/') + 1));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /** Supplies the content of an {@link Input}. */
+    @FunctionalInterface
+    interface ContentSupplier {
+        /**
+         * Returns the content.
+         *
+         * @return the content of the program, encoded in UTF-8
+         * @throws IOException Exception raised if the content cannot be read
+         */
+        byte[] get() throws IOException;
+    }
+
+    /** Outcome of patching a single {@link Entry}. */
+    static class Result {
+        final Entry entry;
+        final Throwable error;
+        final long elapsedNanos;
+        final PhaseMetrics metrics;
+
+        private Result(Entry entry, Throwable error, long elapsedNanos, PhaseMetrics metrics) {
+            this.entry = entry;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+            this.metrics = metrics;
+        }
+
+        /** Returns true if the pair was patched and written successfully. */
+        boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            if (isSuccess() && metrics.isEnabled()) {
+                return String.format(
+                        "OK\t%s\t%s\t%s\t%d ms\t%s",
+                        entry.prevInput,
+                        entry.newInput,
+                        entry.outputPath,
+                        elapsedMillis,
+                        metrics.toSummaryLine());
+            }
+            if (isSuccess()) {
+                return String.format(
+                        "OK\t%s\t%s\t%s\t%d ms",
+                        entry.prevInput, entry.newInput, entry.outputPath, elapsedMillis);
+            }
+            return String.format(
+                    "FAILED\t%s\t%s\t%s\t%d ms\t%s",
+                    entry.prevInput, entry.newInput, entry.outputPath, elapsedMillis, error);
+        }
+    }
+}
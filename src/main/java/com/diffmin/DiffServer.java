@@ -0,0 +1,192 @@
+package com.diffmin;
+
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.SpoonUtil;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import spoon.compiler.SpoonResource;
+import spoon.compiler.SpoonResourceHelper;
+import spoon.reflect.CtModel;
+
+/**
+ * Serves patch requests over a line-delimited protocol, so that a single JVM stays warm across any
+ * number of pairs instead of paying for its start-up and the loading of Spoon on every pair.
+ *
+ * <p>Each line of the input is a JSON object describing a pair, for instance {@code {"id": 1,
+ * "prevPath": "A.java", "newSource": "class A {}"}}. Either side is given by a path ({@code
+ * prevPath}, {@code newPath}) or by its source ({@code prevSource}, {@code newSource}), in which
+ * case {@code prevName} and {@code newName} optionally name the file it stands for. Requests are
+ * handled concurrently by a pool of workers, and each one is answered by a single line holding its
+ * {@code id} along with either the {@code patched} program or an {@code error}. The input is only
+ * read while fewer than two requests per worker are waiting for their response. Responses are
+ * written as soon as they are ready, so they may come in a different order than the requests. The
+ * server stops once the input is exhausted and every request has been answered.
+ */
+class DiffServer {
+    private static final String DEFAULT_PREV_NAME = "Prev.java";
+    private static final String DEFAULT_NEW_NAME = "New.java";
+    private static final int PENDING_REQUESTS_PER_WORKER = 2;
+
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private final int workers;
+    private final ParsingContext parsingContext;
+
+    /**
+     * Constructs a server.
+     *
+     * @param workers number of requests handled concurrently
+     * @param parsingContext context used for building the models of every request
+     */
+    DiffServer(int workers, ParsingContext parsingContext) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of workers must be positive: " + workers);
+        }
+        this.workers = workers;
+        this.parsingContext = parsingContext;
+    }
+
+    /**
+     * Answers every request read from the input.
+     *
+     * @param input stream from which the requests are read
+     * @param output stream to which the responses are written
+     * @return number of requests which could not be answered with a patched program
+     * @throws IOException Exception raised if the input cannot be read
+     * @throws InterruptedException Exception raised if the server is interrupted while waiting for
+     *     the pending requests
+     */
+    int serve(InputStream input, PrintStream output) throws IOException, InterruptedException {
+        // the pool queues at most as many requests as have been read but not answered yet
+        int maxPendingRequests = PENDING_REQUESTS_PER_WORKER * workers;
+        ExecutorService executor =
+                new ThreadPoolExecutor(
+                        workers,
+                        workers,
+                        0L,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(maxPendingRequests));
+        Semaphore pendingRequests = new Semaphore(maxPendingRequests);
+        AtomicInteger failures = new AtomicInteger();
+        try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            // a request is only read once there is room for it, so that a client sending requests
+            // faster than they are answered is held back instead of filling up the memory
+            pendingRequests.acquire();
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                String requestLine = line;
+                executor.execute(
+                        () -> {
+                            try {
+                                Response response = handle(requestLine);
+                                if (response.error != null) {
+                                    failures.incrementAndGet();
+                                }
+                                String responseLine = gson.toJson(response);
+                                synchronized (output) {
+                                    output.println(responseLine);
+                                }
+                            } finally {
+                                pendingRequests.release();
+                            }
+                        });
+                pendingRequests.acquire();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        return failures.get();
+    }
+
+    private Response handle(String requestLine) {
+        long start = System.nanoTime();
+        Request request = null;
+        try {
+            request = gson.fromJson(requestLine, Request.class);
+            if (request == null) {
+                throw new JsonParseException("Request is empty");
+            }
+            SpoonResource prevResource =
+                    toResource(
+                            "prev",
+                            request.prevPath,
+                            request.prevSource,
+                            request.prevName,
+                            DEFAULT_PREV_NAME);
+            SpoonResource newResource =
+                    toResource(
+                            "new",
+                            request.newPath,
+                            request.newSource,
+                            request.newName,
+                            DEFAULT_NEW_NAME);
+            CtModel patchedModel =
+                    Main.patchAndGenerateModel(prevResource, newResource, parsingContext);
+            String patched = SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patchedModel);
+            return new Response(request.id, patched, null, System.nanoTime() - start);
+        } catch (Exception | StackOverflowError e) {
+            // deeply nested code overflows the stack of the worker, which only fails this request
+            JsonElement id = request == null ? null : request.id;
+            return new Response(id, null, e.toString(), System.nanoTime() - start);
+        }
+    }
+
+    private static SpoonResource toResource(
+            String side, String path, String source, String name, String defaultName)
+            throws FileNotFoundException {
+        if ((path == null) == (source == null)) {
+            throw new IllegalArgumentException(
+                    String.format("Expected either %1$sPath or %1$sSource", side));
+        }
+        if (path != null) {
+            return SpoonResourceHelper.createResource(new File(path));
+        }
+        return SpoonUtil.createResource(source, name == null ? defaultName : name);
+    }
+
+    /** A pair to be patched, as read from a line of the input. */
+    private static class Request {
+        JsonElement id;
+        String prevPath;
+        String prevSource;
+        String prevName;
+        String newPath;
+        String newSource;
+        String newName;
+    }
+
+    /** Outcome of a {@link Request}, as written to a line of the output. */
+    private static class Response {
+        final JsonElement id;
+        final String patched;
+        final String error;
+        final long elapsedMillis;
+
+        private Response(JsonElement id, String patched, String error, long elapsedNanos) {
+            this.id = id;
+            this.patched = patched;
+            this.error = error;
+            this.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+    }
+}
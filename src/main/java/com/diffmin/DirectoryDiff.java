@@ -0,0 +1,186 @@
+package com.diffmin;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Pairs the Java files of two versions of a source directory, so that a whole project is patched in
+ * a single run.
+ *
+ * <p>Files are paired by their path relative to their directory. A file which is only found in one
+ * of the directories is then paired with a file of the other directory having exactly the same
+ * content, as it has been renamed or moved. The remaining files have been added or deleted.
+ *
+ * <p>Each pair is patched on its own by a {@link BatchRunner}, and the patched program is written
+ * to the path of the new file relative to the output directory. Added files are copied as they are,
+ * replacing the files left by a previous run, and deleted files are not written.
+ *
+ * <p>The models are still built with a single compilation unit each, one per file of a pair, rather
+ * than one model per directory. The patches of a model holding several compilation units cannot be
+ * applied nor printed yet, as a type inserted or deleted at the top level is looked up in the only
+ * compilation unit of its model. The parsing context can keep the models of the files seen before,
+ * see {@link com.diffmin.util.SpoonUtil#PARSING_CACHE_PROPERTY}.
+ */
+class DirectoryDiff {
+    private static final String JAVA_EXTENSION = ".java";
+
+    private final Path prevDirectory;
+    private final Path newDirectory;
+    private final Map<Path, Path> pairs = new LinkedHashMap<>();
+    private final Map<Path, Path> renamedFiles = new LinkedHashMap<>();
+    private final List<Path> addedFiles = new ArrayList<>();
+    private final List<Path> deletedFiles = new ArrayList<>();
+
+    /**
+     * Pairs the files of both directories.
+     *
+     * @param prevDirectory previous version of the source directory
+     * @param newDirectory new version of the source directory
+     * @throws IOException Exception raised if either directory cannot be walked or a file cannot be
+     *     read
+     */
+    DirectoryDiff(Path prevDirectory, Path newDirectory) throws IOException {
+        this.prevDirectory = prevDirectory;
+        this.newDirectory = newDirectory;
+        List<Path> prevFiles = listJavaFiles(prevDirectory);
+        List<Path> newFiles = listJavaFiles(newDirectory);
+        Set<Path> newFileSet = Set.copyOf(newFiles);
+
+        List<Path> unpairedPrevFiles = new ArrayList<>();
+        for (Path prevFile : prevFiles) {
+            if (newFileSet.contains(prevFile)) {
+                pairs.put(prevFile, prevFile);
+            } else {
+                unpairedPrevFiles.add(prevFile);
+            }
+        }
+        List<Path> unpairedNewFiles =
+                newFiles.stream()
+                        .filter(file -> !pairs.containsKey(file))
+                        .collect(Collectors.toList());
+        pairRenamedFiles(unpairedPrevFiles, unpairedNewFiles);
+    }
+
+    /** Returns the relative paths of the Java files under the directory, in sorted order. */
+    private static List<Path> listJavaFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().endsWith(JAVA_EXTENSION))
+                    .map(directory::relativize)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Pairs the files which have the same content, in the order of their paths if several files
+     * have the same content.
+     */
+    private void pairRenamedFiles(List<Path> unpairedPrevFiles, List<Path> unpairedNewFiles)
+            throws IOException {
+        Map<String, Deque<Path>> prevFilesByHash = new HashMap<>();
+        for (Path prevFile : unpairedPrevFiles) {
+            prevFilesByHash
+                    .computeIfAbsent(hash(prevDirectory.resolve(prevFile)), h -> new ArrayDeque<>())
+                    .add(prevFile);
+        }
+        for (Path newFile : unpairedNewFiles) {
+            Deque<Path> candidates = prevFilesByHash.get(hash(newDirectory.resolve(newFile)));
+            if (candidates == null || candidates.isEmpty()) {
+                addedFiles.add(newFile);
+            } else {
+                Path prevFile = candidates.poll();
+                pairs.put(prevFile, newFile);
+                renamedFiles.put(prevFile, newFile);
+            }
+        }
+        for (Path prevFile : unpairedPrevFiles) {
+            if (!pairs.containsKey(prevFile)) {
+                deletedFiles.add(prevFile);
+            }
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(Files.readAllBytes(file)));
+        } catch (NoSuchAlgorithmException e) {
+            // every implementation of the Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the relative paths of the paired files, from the previous to the new file. */
+    Map<Path, Path> getPairs() {
+        return pairs;
+    }
+
+    /** Returns the relative paths of the files paired by their content. */
+    Map<Path, Path> getRenamedFiles() {
+        return renamedFiles;
+    }
+
+    /** Returns the relative paths of the new files which are not paired. */
+    List<Path> getAddedFiles() {
+        return addedFiles;
+    }
+
+    /** Returns the relative paths of the previous files which are not paired. */
+    List<Path> getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    /**
+     * Patches every pair and writes the patched programs, along with the added files, to the output
+     * directory.
+     *
+     * @param outputDirectory directory to which the files are written
+     * @param runner runner by which the pairs are patched concurrently
+     * @param report stream to which the added, deleted and renamed files are written
+     * @return number of pairs which could not be patched
+     * @throws IOException Exception raised if an added file cannot be copied
+     * @throws InterruptedException Exception raised if the runner is interrupted while waiting
+     */
+    int run(Path outputDirectory, BatchRunner runner, PrintStream report)
+            throws IOException, InterruptedException {
+        for (Path addedFile : addedFiles) {
+            Path outputFile = outputDirectory.resolve(addedFile.toString());
+            Files.createDirectories(outputFile.toAbsolutePath().getParent());
+            Files.copy(
+                    newDirectory.resolve(addedFile),
+                    outputFile,
+                    StandardCopyOption.REPLACE_EXISTING);
+            report.println("ADDED\t" + addedFile);
+        }
+        deletedFiles.forEach(deletedFile -> report.println("DELETED\t" + deletedFile));
+        renamedFiles.forEach(
+                (prevFile, newFile) -> report.println("RENAMED\t" + prevFile + "\t" + newFile));
+
+        List<BatchRunner.Entry> entries = new ArrayList<>();
+        pairs.forEach(
+                (prevFile, newFile) ->
+                        entries.add(
+                                new BatchRunner.Entry(
+                                        prevDirectory.resolve(prevFile),
+                                        newDirectory.resolve(newFile),
+                                        outputDirectory.resolve(newFile.toString()))));
+        return runner.run(entries);
+    }
+}
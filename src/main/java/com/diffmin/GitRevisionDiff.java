@@ -0,0 +1,246 @@
+package com.diffmin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Patches the Java files changed between two commits of a local git repository, reading both
+ * versions of each file from the object database instead of a checkout.
+ *
+ * <p>The changed files are listed with {@code git diff-tree}, and the pairs of modified files are
+ * patched by a {@link BatchRunner}. Their contents are read by a single {@code git cat-file
+ * --batch} process shared by the workers, only once a worker picks a pair up, and both versions are
+ * parsed from memory. Only local repositories are supported, as the git commands never fetch
+ * anything.
+ */
+class GitRevisionDiff {
+    private static final String JAVA_PATHSPEC = "*.java";
+    private static final String MISSING_OBJECT = " missing";
+
+    private final Path repository;
+    private final String prevCommit;
+    private final String newCommit;
+
+    /**
+     * Constructs a diff between two commits.
+     *
+     * @param repository working tree or git directory of the local repository
+     * @param prevCommit previous commit, or any revision naming it
+     * @param newCommit new commit, or any revision naming it
+     */
+    GitRevisionDiff(Path repository, String prevCommit, String newCommit) {
+        this.repository = repository;
+        this.prevCommit = prevCommit;
+        this.newCommit = newCommit;
+    }
+
+    /**
+     * Lists the Java files changed between both commits, without detecting renames, so that a
+     * renamed file is listed as deleted and added.
+     *
+     * @return changed files in the order given by git
+     * @throws IOException Exception raised if git cannot be run or fails
+     */
+    List<ChangedFile> listChangedFiles() throws IOException {
+        String output =
+                new String(
+                        runGit(
+                                "diff-tree",
+                                "-r",
+                                "-z",
+                                "--no-renames",
+                                "--name-status",
+                                prevCommit,
+                                newCommit,
+                                "--",
+                                JAVA_PATHSPEC),
+                        StandardCharsets.UTF_8);
+        List<ChangedFile> changedFiles = new ArrayList<>();
+        String[] fields = output.split("\0");
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            changedFiles.add(new ChangedFile(fields[i].charAt(0), fields[i + 1]));
+        }
+        return changedFiles;
+    }
+
+    /**
+     * Patches every modified file and writes the patched program to its path relative to the output
+     * directory. Added files are written as they are, and deleted files are not written.
+     *
+     * @param outputDirectory directory to which the files are written
+     * @param runner runner by which the modified files are patched concurrently
+     * @param report stream to which the added and deleted files are written
+     * @return number of files which could not be patched
+     * @throws IOException Exception raised if git fails or an added file cannot be written
+     * @throws InterruptedException Exception raised if the runner is interrupted while waiting
+     */
+    int run(Path outputDirectory, BatchRunner runner, PrintStream report)
+            throws IOException, InterruptedException {
+        List<ChangedFile> changedFiles = listChangedFiles();
+        try (BlobReader blobReader = new BlobReader()) {
+            List<BatchRunner.Entry> entries = new ArrayList<>();
+            for (ChangedFile changedFile : changedFiles) {
+                Path outputPath = outputDirectory.resolve(changedFile.path);
+                switch (changedFile.status) {
+                    case 'D':
+                        report.println("DELETED\t" + changedFile.path);
+                        break;
+                    case 'A':
+                        write(outputPath, blobReader.read(newCommit, changedFile.path));
+                        report.println("ADDED\t" + changedFile.path);
+                        break;
+                    default:
+                        entries.add(
+                                new BatchRunner.Entry(
+                                        toInput(blobReader, prevCommit, changedFile.path),
+                                        toInput(blobReader, newCommit, changedFile.path),
+                                        outputPath));
+                }
+            }
+            return runner.run(entries);
+        }
+    }
+
+    private static BatchRunner.Input toInput(BlobReader blobReader, String commit, String path) {
+        return BatchRunner.Input.ofContent(
+                commit + ":" + path, () -> blobReader.read(commit, path));
+    }
+
+    private static void write(Path outputPath, byte[] content) throws IOException {
+        Path outputDirectory = outputPath.toAbsolutePath().getParent();
+        if (outputDirectory != null) {
+            Files.createDirectories(outputDirectory);
+        }
+        Files.write(outputPath, content);
+    }
+
+    /**
+     * Runs git to completion and returns its output. The errors of git are written to a temporary
+     * file rather than a pipe, which would block git once full while its output is being read.
+     */
+    private byte[] runGit(String... arguments) throws IOException {
+        Path errorFile = Files.createTempFile("diffmin-git", ".err");
+        try {
+            Process process = git(arguments).redirectError(errorFile.toFile()).start();
+            process.getOutputStream().close();
+            byte[] output = process.getInputStream().readAllBytes();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(
+                        String.format(
+                                "git %s failed with exit code %d: %s",
+                                arguments[0],
+                                exitCode,
+                                new String(Files.readAllBytes(errorFile), StandardCharsets.UTF_8)
+                                        .trim()));
+            }
+            return output;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for git " + arguments[0], e);
+        } finally {
+            Files.deleteIfExists(errorFile);
+        }
+    }
+
+    private ProcessBuilder git(String... arguments) {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.add("-C");
+        command.add(repository.toString());
+        command.addAll(List.of(arguments));
+        return new ProcessBuilder(command);
+    }
+
+    /** A Java file changed between both commits. */
+    static class ChangedFile {
+        /** Status given by git, such as {@code M} for modified, {@code A} or {@code D}. */
+        final char status;
+        /** Path of the file relative to the root of the repository. */
+        final String path;
+
+        /**
+         * Constructs a changed file.
+         *
+         * @param status status given by git
+         * @param path path of the file relative to the root of the repository
+         */
+        ChangedFile(char status, String path) {
+            this.status = status;
+            this.path = path;
+        }
+
+        @Override
+        public String toString() {
+            return status + "\t" + path;
+        }
+    }
+
+    /**
+     * Reads the content of files at a given commit through a single git process, which the workers
+     * share by reading one file at a time.
+     */
+    private class BlobReader implements AutoCloseable {
+        private final Process process;
+        private final OutputStream requests;
+        private final InputStream responses;
+
+        BlobReader() throws IOException {
+            // warnings, such as ambiguous revisions, must neither fill up nor break a pipe
+            process = git("cat-file", "--batch").redirectError(Redirect.DISCARD).start();
+            requests = process.getOutputStream();
+            responses = process.getInputStream();
+        }
+
+        /** Returns the content of the file at the commit. */
+        synchronized byte[] read(String commit, String path) throws IOException {
+            requests.write((commit + ":" + path + "\n").getBytes(StandardCharsets.UTF_8));
+            requests.flush();
+            String header = readLine();
+            if (header.endsWith(MISSING_OBJECT)) {
+                throw new IOException("No file " + path + " in " + commit);
+            }
+            // the header consists of the object name, its type and its size
+            int size = Integer.parseInt(header.substring(header.lastIndexOf(' ') + 1));
+            byte[] content = responses.readNBytes(size);
+            if (content.length != size || responses.read() != '\n') {
+                throw new IOException("Truncated content of " + path + " in " + commit);
+            }
+            return content;
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int next = responses.read();
+            while (next != '\n') {
+                if (next == -1) {
+                    throw new IOException("git cat-file ended unexpectedly");
+                }
+                line.write(next);
+                next = responses.read();
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            requests.close();
+            responses.readAllBytes();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for git cat-file", e);
+            }
+        }
+    }
+}
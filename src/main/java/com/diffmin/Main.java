@@ -1,16 +1,49 @@
 package com.diffmin;
 
+import com.diffmin.patch.EditScript;
 import com.diffmin.patch.PatchApplication;
 import com.diffmin.patch.PatchGeneration;
-import com.diffmin.util.Pair;
+import com.diffmin.util.FlightRecorderEvents;
+import com.diffmin.util.FlightRecorderEvents.PairDiffEvent;
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.PhaseMetrics;
+import com.diffmin.util.PhaseMetrics.Count;
+import com.diffmin.util.PhaseMetrics.Phase;
+import com.diffmin.util.SourceComparison;
 import com.diffmin.util.SpoonUtil;
+import gumtree.spoon.AstComparator;
 import gumtree.spoon.diff.Diff;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import spoon.compiler.SpoonResource;
+import spoon.compiler.SpoonResourceHelper;
 import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.visitor.CtScanner;
 
 /** Main execution of generating and applying patch. */
 class Main {
+    private static final String BATCH_OPTION = "--batch";
+    private static final String DIRECTORIES_OPTION = "--dirs";
+    private static final String GIT_OPTION = "--git";
+    private static final String WRITE_SCRIPT_OPTION = "--write-script";
+    private static final String APPLY_SCRIPT_OPTION = "--apply-script";
+    private static final String SNIPER_OPTION = "--sniper";
+    private static final String CHAIN_OPTION = "--chain";
+    private static final String SERVER_OPTION = "--server";
+    private static final String METRICS_OPTION = "--metrics";
+    private static final String PRE_MATCHING_OPTION = "--pre-match";
+    private static final ParsingContext PARSING_CONTEXT = SpoonUtil.getDefaultParsingContext();
+    private static final ParsingContext SNIPER_PARSING_CONTEXT =
+            new ParsingContext(ParsingContext.PrintingMode.SNIPER);
 
     /**
      * Generates patches and apply them to the previous model.
@@ -20,35 +53,431 @@ class Main {
      * @throws FileNotFoundException Exception is raised when path of either file is invalid
      */
     static CtModel patchAndGenerateModel(File prevFile, File newFile) throws FileNotFoundException {
-        Pair<Diff, CtModel> diffAndModel = SpoonUtil.computeDiff(prevFile, newFile);
+        return patchAndGenerateModel(prevFile, newFile, PARSING_CONTEXT, Runnable::run);
+    }
+
+    /**
+     * Generates patches and apply them to the previous model, parsing both files concurrently.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @param parsingExecutor Executor on which the previous file is parsed
+     * @throws FileNotFoundException Exception is raised when path of either file is invalid
+     */
+    static CtModel patchAndGenerateModel(File prevFile, File newFile, Executor parsingExecutor)
+            throws FileNotFoundException {
+        return patchAndGenerateModel(prevFile, newFile, PARSING_CONTEXT, parsingExecutor);
+    }
+
+    /**
+     * Generates patches and apply them to the previous model, parsing both files concurrently.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @param parsingContext Context used for building the models, which decides how the patched
+     *     model is printed
+     * @param parsingExecutor Executor on which the previous file is parsed
+     * @throws FileNotFoundException Exception is raised when path of either file is invalid
+     */
+    static CtModel patchAndGenerateModel(
+            File prevFile, File newFile, ParsingContext parsingContext, Executor parsingExecutor)
+            throws FileNotFoundException {
+        return patchAndGenerateModel(
+                SpoonResourceHelper.createResource(prevFile),
+                SpoonResourceHelper.createResource(newFile),
+                parsingContext,
+                parsingExecutor,
+                PhaseMetrics.disabled());
+    }
+
+    /**
+     * Generates patches and apply them to the previous model, recording the wall time and the
+     * allocations of each phase along with the sizes they depend on. Both files are parsed on the
+     * calling thread, so that the allocations of parsing are accounted for.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @param parsingContext Context used for building the models
+     * @param metrics Metrics to which the phases are added
+     * @throws FileNotFoundException Exception is raised when path of either file is invalid
+     */
+    static CtModel patchAndGenerateModel(
+            File prevFile, File newFile, ParsingContext parsingContext, PhaseMetrics metrics)
+            throws FileNotFoundException {
+        return patchAndGenerateModel(
+                SpoonResourceHelper.createResource(prevFile),
+                SpoonResourceHelper.createResource(newFile),
+                parsingContext,
+                Runnable::run,
+                metrics);
+    }
+
+    /**
+     * Generates patches and apply them to the previous model, where either program may be held in
+     * memory instead of a file.
+     *
+     * @param prevResource Previous version of the program
+     * @param newResource Modified version of the program
+     * @param parsingContext Context used for building the models
+     */
+    static CtModel patchAndGenerateModel(
+            SpoonResource prevResource, SpoonResource newResource, ParsingContext parsingContext) {
+        return patchAndGenerateModel(
+                prevResource, newResource, parsingContext, Runnable::run, PhaseMetrics.disabled());
+    }
+
+    /**
+     * Generates patches and apply them to the previous model. This is the pipeline every other
+     * overload goes through.
+     *
+     * <p>The mapping is inferred eagerly when metrics are recorded, so that its phase and the
+     * number of mapped nodes cover the whole trees, and lazily otherwise.
+     *
+     * @param prevResource Previous version of the program
+     * @param newResource Modified version of the program
+     * @param parsingContext Context used for building the models
+     * @param parsingExecutor Executor on which the previous program is parsed, while the new one is
+     *     parsed on the calling thread. It must run the parsing on the calling thread if metrics
+     *     are recorded, as they are filled by a single thread.
+     * @param metrics Metrics to which the phases are added, or {@link PhaseMetrics#disabled()}
+     */
+    static CtModel patchAndGenerateModel(
+            SpoonResource prevResource,
+            SpoonResource newResource,
+            ParsingContext parsingContext,
+            Executor parsingExecutor,
+            PhaseMetrics metrics) {
+        PairDiffEvent event = new PairDiffEvent(prevResource.getPath(), newResource.getPath());
+        CompletableFuture<CtModel> pendingPrevModel =
+                CompletableFuture.supplyAsync(
+                        () ->
+                                metrics.measureAndGet(
+                                        Phase.PARSE, () -> parsingContext.buildModel(prevResource)),
+                        parsingExecutor);
+        CtModel newModel =
+                metrics.measureAndGet(Phase.PARSE, () -> parsingContext.buildModel(newResource));
+        CtModel prevModel = SpoonUtil.join(pendingPrevModel);
+        if (metrics.isEnabled()) {
+            metrics.count(Count.PREV_NODES, countNodes(prevModel));
+            metrics.count(Count.NEW_NODES, countNodes(newModel));
+        }
+
+        Diff diff =
+                metrics.measureAndGet(
+                        Phase.MATCH,
+                        () ->
+                                new AstComparator()
+                                        .compare(
+                                                prevModel.getRootPackage(),
+                                                newModel.getRootPackage()));
+        SpoonMapping mapping =
+                metrics.measureAndGet(
+                        Phase.MAPPING,
+                        () ->
+                                metrics.isEnabled()
+                                        ? SpoonMapping.fromGumTreeMapping(diff.getMappingsComp())
+                                        : SpoonMapping.fromGumTreeMappingLazily(
+                                                diff.getMappingsComp()));
+        metrics.count(Count.MAPPED_NODES, mapping.size());
 
-        // Generate patches
         PatchGeneration patchGeneration = new PatchGeneration();
-        patchGeneration.generatePatch(diffAndModel.getFirst());
+        metrics.measure(Phase.GENERATE, () -> patchGeneration.generatePatch(diff, mapping));
+        applyPatches(patchGeneration, metrics, event);
+        return prevModel;
+    }
 
-        // Apply patches
-        PatchApplication.applyPatch(
-                patchGeneration.getDeletePatches(),
-                patchGeneration.getUpdatePatches(),
-                patchGeneration.getInsertPatches(),
-                patchGeneration.getMovePatches());
+    private static int countNodes(CtModel model) {
+        int[] nodes = new int[1];
+        new CtScanner() {
+            @Override
+            protected void enter(CtElement element) {
+                nodes[0]++;
+            }
+        }.scan(model.getRootPackage());
+        return nodes[0];
+    }
 
-        // Modified model
-        return diffAndModel.getSecond();
+    /**
+     * Generates patches and apply them to the previous model, running GumTree only on the members
+     * which are not identical in both files, see {@link PreMatching}.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @throws FileNotFoundException Exception is raised when path of either file is invalid
+     */
+    static CtModel patchAndGenerateModelWithPreMatching(File prevFile, File newFile)
+            throws FileNotFoundException {
+        return patchAndGenerateModelWithPreMatching(prevFile, newFile, Runnable::run);
     }
 
     /**
-     * Runs the patch function and dumps the output in the terminal.
+     * Generates patches and apply them to the previous model, running GumTree only on the members
+     * which are not identical in both files, and hashing the members and diffing the pairs of
+     * members which differ concurrently.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @param executor Executor on which the members are hashed and each pair of members is diffed
+     * @throws FileNotFoundException Exception is raised when path of either file is invalid
+     */
+    static CtModel patchAndGenerateModelWithPreMatching(
+            File prevFile, File newFile, Executor executor) throws FileNotFoundException {
+        PairDiffEvent event = new PairDiffEvent(prevFile.getPath(), newFile.getPath());
+        CtModel prevModel = SpoonUtil.buildModel(prevFile, PARSING_CONTEXT);
+        CtModel newModel = SpoonUtil.buildModel(newFile, PARSING_CONTEXT);
+
+        PatchGeneration patchGeneration = new PatchGeneration();
+        FlightRecorderEvents.recordPhase(
+                Phase.MATCH,
+                () ->
+                        new PreMatching(prevModel, newModel, executor)
+                                .generatePatch(patchGeneration, executor));
+        applyPatches(patchGeneration, PhaseMetrics.disabled(), event);
+        return prevModel;
+    }
+
+    /**
+     * Generates patches, applies them to the previous model and prints the patched program. If both
+     * files have the same bytes or only differ in their layout, the patch is known to be empty
+     * without building their models, and the previous file is returned as it is.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @return the patched program
+     * @throws IOException Exception is raised when either file cannot be read
+     */
+    static String patchAndPrint(File prevFile, File newFile) throws IOException {
+        byte[] prevContent = readContent(prevFile);
+        byte[] newContent = readContent(newFile);
+        SpoonResource prevResource = SpoonResourceHelper.createResource(prevFile);
+        SpoonResource newResource = SpoonResourceHelper.createResource(newFile);
+        return SourceComparison.patchedOrPrevious(
+                prevContent,
+                newContent,
+                () ->
+                        SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                                patchAndGenerateModel(
+                                        prevResource,
+                                        newResource,
+                                        PARSING_CONTEXT,
+                                        ForkJoinPool.commonPool(),
+                                        PhaseMetrics.disabled())));
+    }
+
+    /** Reads the file, raising {@link FileNotFoundException} like parsing it would. */
+    private static byte[] readContent(File file) throws IOException {
+        try (InputStream input = new FileInputStream(file)) {
+            return input.readAllBytes();
+        }
+    }
+
+    /**
+     * Generates patches and writes them to a file as an edit script.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @param scriptFile File to which the edit script is written
+     * @throws IOException Exception is raised when either file cannot be read or the script cannot
+     *     be written
+     */
+    static void writeEditScript(File prevFile, File newFile, Path scriptFile) throws IOException {
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(SpoonUtil.computeDiff(prevFile, newFile).getFirst());
+        EditScript.fromPatches(patchGeneration).write(scriptFile);
+    }
+
+    /**
+     * Applies an edit script read from a file to the previous model.
+     *
+     * @param prevFile Previous version of the file
+     * @param scriptFile File from which the edit script is read
+     * @throws IOException Exception is raised when either file cannot be read
+     */
+    static CtModel applyEditScript(File prevFile, Path scriptFile) throws IOException {
+        EditScript editScript = EditScript.read(scriptFile);
+        CtModel prevModel = SpoonUtil.buildModel(prevFile);
+        PatchApplication.applyPatch(editScript, prevModel);
+        return prevModel;
+    }
+
+    private static void applyPatches(
+            PatchGeneration patchGeneration, PhaseMetrics metrics, PairDiffEvent event) {
+        metrics.count(Count.DELETE_PATCHES, patchGeneration.getDeletePatches().size());
+        metrics.count(Count.UPDATE_PATCHES, patchGeneration.getUpdatePatches().size());
+        metrics.count(Count.INSERT_PATCHES, patchGeneration.getInsertPatches().size());
+        metrics.count(Count.MOVE_PATCHES, patchGeneration.getMovePatches().size());
+        metrics.measure(Phase.APPLY, () -> PatchApplication.applyPatch(patchGeneration));
+        commit(event, patchGeneration);
+    }
+
+    private static void commit(PairDiffEvent event, PatchGeneration patchGeneration) {
+        event.commit(
+                patchGeneration.getDeletePatches().size(),
+                patchGeneration.getUpdatePatches().size(),
+                patchGeneration.getInsertPatches().size(),
+                patchGeneration.getMovePatches().size());
+    }
+
+    /**
+     * Runs the patch function and dumps the output in the terminal. If the first argument is {@code
+     * --batch}, the pairs listed in the manifest are patched instead, see {@link
+     * BatchRunner#readManifest(java.nio.file.Path)} for its format.
      *
      * @param args Arguments passed via command line
      */
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && BATCH_OPTION.equals(args[0])) {
+            System.exit(runBatch(args));
+        }
+        if (args.length > 0 && DIRECTORIES_OPTION.equals(args[0])) {
+            System.exit(runDirectories(args));
+        }
+        if (args.length > 0 && GIT_OPTION.equals(args[0])) {
+            System.exit(runGit(args));
+        }
+        if (args.length == 4 && WRITE_SCRIPT_OPTION.equals(args[0])) {
+            writeEditScript(new File(args[1]), new File(args[2]), Paths.get(args[3]));
+            System.exit(0);
+        }
+        if (args.length == 3 && APPLY_SCRIPT_OPTION.equals(args[0])) {
+            CtModel patchedCtModel = applyEditScript(new File(args[1]), Paths.get(args[2]));
+            System.out.println(SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patchedCtModel));
+            System.exit(0);
+        }
+        if (args.length > 0 && SERVER_OPTION.equals(args[0])) {
+            System.exit(runServer(args));
+        }
+        if (args.length == 3 && METRICS_OPTION.equals(args[0])) {
+            PhaseMetrics metrics = new PhaseMetrics();
+            CtModel patchedCtModel =
+                    Main.patchAndGenerateModel(
+                            new File(args[1]), new File(args[2]), PARSING_CONTEXT, metrics);
+            System.out.println(
+                    metrics.measureAndGet(
+                            Phase.PRINT,
+                            () ->
+                                    SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                                            patchedCtModel)));
+            System.err.print(metrics);
+            System.exit(0);
+        }
+        if (args.length > 2 && CHAIN_OPTION.equals(args[0])) {
+            RevisionChain chain = new RevisionChain(new File(args[1]), PARSING_CONTEXT, true);
+            for (int i = 2; i < args.length; i++) {
+                chain.advance(new File(args[i]));
+            }
+            System.out.println(
+                    SpoonUtil.prettyPrintModelWithSingleCompilationUnit(chain.getModel()));
+            System.exit(0);
+        }
+        if (args.length == 3 && PRE_MATCHING_OPTION.equals(args[0])) {
+            CtModel patchedCtModel =
+                    Main.patchAndGenerateModelWithPreMatching(
+                            new File(args[1]), new File(args[2]), ForkJoinPool.commonPool());
+            System.out.println(SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patchedCtModel));
+            System.exit(0);
+        }
+        if (args.length == 3 && SNIPER_OPTION.equals(args[0])) {
+            CtModel patchedCtModel =
+                    Main.patchAndGenerateModel(
+                            new File(args[1]),
+                            new File(args[2]),
+                            SNIPER_PARSING_CONTEXT,
+                            ForkJoinPool.commonPool());
+            System.out.println(SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patchedCtModel));
+            System.exit(0);
+        }
         if (args.length != 2) {
-            System.out.println("Usage: DiffSpoon <file_1>  <file_2>");
+            printUsage();
             System.exit(1);
         }
-        CtModel patchedCtModel = Main.patchAndGenerateModel(new File(args[0]), new File(args[1]));
-        System.out.println(SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patchedCtModel));
+        System.out.println(patchAndPrint(new File(args[0]), new File(args[1])));
         System.exit(0);
     }
+
+    private static int runBatch(String[] args) throws IOException, InterruptedException {
+        boolean recordMetrics = args.length > 2 && METRICS_OPTION.equals(args[args.length - 1]);
+        int argCount = recordMetrics ? args.length - 1 : args.length;
+        if (argCount != 2 && argCount != 3) {
+            printUsage();
+            return 1;
+        }
+        int workers =
+                argCount == 3
+                        ? Integer.parseInt(args[2])
+                        : Runtime.getRuntime().availableProcessors();
+        BatchRunner runner = new BatchRunner(workers, PARSING_CONTEXT, System.out, recordMetrics);
+        int failures = runner.run(BatchRunner.readManifest(Paths.get(args[1])));
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static int runDirectories(String[] args) throws IOException, InterruptedException {
+        if (args.length != 4 && args.length != 5) {
+            printUsage();
+            return 1;
+        }
+        int workers =
+                args.length == 5
+                        ? Integer.parseInt(args[4])
+                        : Runtime.getRuntime().availableProcessors();
+        DirectoryDiff directoryDiff = new DirectoryDiff(Paths.get(args[1]), Paths.get(args[2]));
+        BatchRunner runner = new BatchRunner(workers, PARSING_CONTEXT, System.out);
+        int failures = directoryDiff.run(Paths.get(args[3]), runner, System.out);
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static int runGit(String[] args) throws IOException, InterruptedException {
+        if (args.length != 5 && args.length != 6) {
+            printUsage();
+            return 1;
+        }
+        int workers =
+                args.length == 6
+                        ? Integer.parseInt(args[5])
+                        : Runtime.getRuntime().availableProcessors();
+        GitRevisionDiff revisionDiff = new GitRevisionDiff(Paths.get(args[1]), args[2], args[3]);
+        BatchRunner runner = new BatchRunner(workers, PARSING_CONTEXT, System.out);
+        int failures = revisionDiff.run(Paths.get(args[4]), runner, System.out);
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static int runServer(String[] args) throws IOException, InterruptedException {
+        if (args.length != 1 && args.length != 2) {
+            printUsage();
+            return 1;
+        }
+        int workers =
+                args.length == 2
+                        ? Integer.parseInt(args[1])
+                        : Runtime.getRuntime().availableProcessors();
+        DiffServer server = new DiffServer(workers, PARSING_CONTEXT);
+        server.serve(System.in, System.out);
+        return 0;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: DiffSpoon <file_1>  <file_2>");
+        System.out.println("       DiffSpoon " + SNIPER_OPTION + " <file_1> <file_2>");
+        System.out.println("       DiffSpoon " + METRICS_OPTION + " <file_1> <file_2>");
+        System.out.println("       DiffSpoon " + PRE_MATCHING_OPTION + " <file_1> <file_2>");
+        System.out.println("       DiffSpoon " + CHAIN_OPTION + " <file_1> <file_2> [<file_3>...]");
+        System.out.println(
+                "       DiffSpoon "
+                        + BATCH_OPTION
+                        + " <manifest> [<workers>] ["
+                        + METRICS_OPTION
+                        + "]");
+        System.out.println(
+                "       DiffSpoon "
+                        + DIRECTORIES_OPTION
+                        + " <prev_dir> <new_dir> <output_dir> [<workers>]");
+        System.out.println(
+                "       DiffSpoon "
+                        + GIT_OPTION
+                        + " <repository> <prev_commit> <new_commit> <output_dir> [<workers>]");
+        System.out.println("       DiffSpoon " + SERVER_OPTION + " [<workers>]");
+        System.out.println(
+                "       DiffSpoon " + WRITE_SCRIPT_OPTION + " <file_1> <file_2> <script>");
+        System.out.println("       DiffSpoon " + APPLY_SCRIPT_OPTION + " <file_1> <script>");
+    }
 }
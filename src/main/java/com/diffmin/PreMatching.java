@@ -0,0 +1,477 @@
+package com.diffmin;
+
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.Pair;
+import com.diffmin.util.SpoonUtil;
+import gumtree.spoon.AstComparator;
+import gumtree.spoon.builder.CtVirtualElement;
+import gumtree.spoon.builder.CtWrapper;
+import gumtree.spoon.diff.Diff;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import spoon.reflect.CtModel;
+import spoon.reflect.code.CtBinaryOperator;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtOperatorAssignment;
+import spoon.reflect.code.CtUnaryOperator;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtModifiable;
+import spoon.reflect.declaration.CtNamedElement;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.declaration.CtTypeMember;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.factory.FactoryImpl;
+import spoon.reflect.reference.CtReference;
+import spoon.reflect.visitor.CtScanner;
+import spoon.support.DefaultCoreFactory;
+import spoon.support.StandardEnvironment;
+
+/**
+ * Pins the members which are identical in both models as matched, so that GumTree only matches the
+ * members which differ instead of the whole package.
+ *
+ * <p>The types of both models are paired by their position in the compilation unit, and their
+ * members by signature, wherever they are in their type. A pair of members is pinned if their
+ * subtrees are identical, which is first checked on structural hashes computed bottom-up and then
+ * confirmed by comparing the subtrees. The hashes of the members of a large type are computed in
+ * parallel on the executor given for hashing. Every other pair of members is diffed on its own,
+ * concurrently with the other pairs. A member left without a pair, as it is added, removed or
+ * renamed, is inserted or deleted as a whole.
+ *
+ * <p>Pre-matching only applies if both models declare the same types in the same order, if these
+ * types only differ inside of their members, and if the paired members are in the same order.
+ * Otherwise the whole models are diffed as usual. As each pair of members is diffed independently,
+ * a node is never moved from one member to another, so the patches may differ from the ones of a
+ * whole diff while producing the same program.
+ */
+public class PreMatching {
+    /** Number of members from which the hashes of a type are computed in parallel. */
+    private static final int PARALLEL_HASHING_THRESHOLD = 64;
+    /** Number of members hashed by each task when hashing in parallel. */
+    private static final int MEMBERS_PER_TASK = 16;
+
+    private final CtModel prevModel;
+    private final CtModel newModel;
+    private final List<Pair<CtTypeMember, CtTypeMember>> changedMembers = new ArrayList<>();
+    private final List<CtElement> removedMembers = new ArrayList<>();
+    private final List<ImmutableTriple<Integer, CtElement, CtElement>> addedMembers =
+            new ArrayList<>();
+    private final Executor hashingExecutor;
+    private final boolean applicable;
+    private int pinnedMembers;
+
+    /**
+     * Pre-matches the members of both models, hashing them on the calling thread.
+     *
+     * @param prevModel model of the previous file
+     * @param newModel model of the new file
+     */
+    public PreMatching(CtModel prevModel, CtModel newModel) {
+        this(prevModel, newModel, Runnable::run);
+    }
+
+    /**
+     * Pre-matches the members of both models.
+     *
+     * @param prevModel model of the previous file
+     * @param newModel model of the new file
+     * @param hashingExecutor executor on which the members of a large type are hashed in parallel
+     */
+    public PreMatching(CtModel prevModel, CtModel newModel, Executor hashingExecutor) {
+        this.prevModel = prevModel;
+        this.newModel = newModel;
+        this.hashingExecutor = hashingExecutor;
+        this.applicable = pairMembers();
+    }
+
+    /**
+     * Generates the patches, diffing each pair of members which differ and inserting or deleting
+     * the members without a pair, or the whole models if pre-matching does not apply.
+     *
+     * @param patchGeneration patch generation to which the patches are added
+     */
+    public void generatePatch(PatchGeneration patchGeneration) {
+        generatePatch(patchGeneration, Runnable::run);
+    }
+
+    /**
+     * Generates the patches, diffing the pairs of members which differ concurrently on the
+     * executor, or the whole models if pre-matching does not apply.
+     *
+     * <p>gumtree-spoon stores metadata on the Spoon nodes it diffs, and all the members of a model
+     * share its factory and environment. Each pair is thus copied on the calling thread into a
+     * factory of its own, where both members are wrapped into a type holding only them, and only
+     * these copies are diffed on the executor. The patches of each pair are then translated back to
+     * the nodes of both models, and added in the order of the members.
+     *
+     * @param patchGeneration patch generation to which the patches are added
+     * @param diffingExecutor executor on which each pair of members is diffed
+     */
+    public void generatePatch(PatchGeneration patchGeneration, Executor diffingExecutor) {
+        if (!applicable) {
+            patchGeneration.generatePatch(
+                    new AstComparator()
+                            .compare(prevModel.getRootPackage(), newModel.getRootPackage()));
+            return;
+        }
+        List<IsolatedPair> pairs = new ArrayList<>();
+        List<CompletableFuture<PatchGeneration>> diffs = new ArrayList<>();
+        for (Pair<CtTypeMember, CtTypeMember> members : changedMembers) {
+            IsolatedPair pair = new IsolatedPair(members.getFirst(), members.getSecond());
+            pairs.add(pair);
+            diffs.add(CompletableFuture.supplyAsync(pair::diff, diffingExecutor));
+        }
+        patchGeneration.getDeletePatches().addAll(removedMembers);
+        for (int i = 0; i < pairs.size(); i++) {
+            pairs.get(i).translate(SpoonUtil.join(diffs.get(i)), patchGeneration);
+        }
+        patchGeneration.getInsertPatches().addAll(addedMembers);
+    }
+
+    /** Returns whether the members could be paired, as opposed to diffing the whole models. */
+    public boolean isApplicable() {
+        return applicable;
+    }
+
+    /** Returns the number of members pinned as matched without running GumTree. */
+    public int getPinnedMembers() {
+        return pinnedMembers;
+    }
+
+    /** Returns the number of pairs of members which are diffed. */
+    public int getChangedMembers() {
+        return changedMembers.size();
+    }
+
+    /** Returns the number of members of the previous model which have no pair and are deleted. */
+    public int getRemovedMembers() {
+        return removedMembers.size();
+    }
+
+    /** Returns the number of members of the new model which have no pair and are inserted. */
+    public int getAddedMembers() {
+        return addedMembers.size();
+    }
+
+    private boolean pairMembers() {
+        List<CtType<?>> prevTypes = getDeclaredTypes(prevModel);
+        List<CtType<?>> newTypes = getDeclaredTypes(newModel);
+        if (prevTypes.size() != newTypes.size()) {
+            return false;
+        }
+        for (int i = 0; i < prevTypes.size(); i++) {
+            if (!pairMembers(prevTypes.get(i), newTypes.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<CtType<?>> getDeclaredTypes(CtModel model) {
+        if (model.getAllTypes().isEmpty()) {
+            return List.of();
+        }
+        return SpoonUtil.getTheOnlyCompilationUnit(model.getRootPackage()).getDeclaredTypes();
+    }
+
+    /**
+     * Pairs the members of both types by signature, the k-th member with a signature in one type
+     * being paired with the k-th member with the same signature in the other. The paired members
+     * must be in the same order in both types, as moving a member is left to GumTree.
+     */
+    private boolean pairMembers(CtType<?> prevType, CtType<?> newType) {
+        if (!Objects.equals(prevType.getQualifiedName(), newType.getQualifiedName())
+                || !getNonMemberChildren(prevType).equals(getNonMemberChildren(newType))) {
+            return false;
+        }
+        List<CtTypeMember> prevMembers = prevType.getTypeMembers();
+        List<CtTypeMember> newMembers = newType.getTypeMembers();
+        Map<String, Deque<Integer>> prevMembersBySignature = new HashMap<>();
+        for (int i = 0; i < prevMembers.size(); i++) {
+            prevMembersBySignature
+                    .computeIfAbsent(
+                            getSignature(prevMembers.get(i)), signature -> new ArrayDeque<>())
+                    .add(i);
+        }
+        int[] pairedPrevMembers = new int[newMembers.size()];
+        boolean[] pairedPrev = new boolean[prevMembers.size()];
+        int lastPairedPrevMember = -1;
+        for (int j = 0; j < newMembers.size(); j++) {
+            Deque<Integer> candidates = prevMembersBySignature.get(getSignature(newMembers.get(j)));
+            if (candidates == null || candidates.isEmpty()) {
+                pairedPrevMembers[j] = -1;
+                continue;
+            }
+            int i = candidates.poll();
+            if (i < lastPairedPrevMember) {
+                return false;
+            }
+            lastPairedPrevMember = i;
+            pairedPrevMembers[j] = i;
+            pairedPrev[i] = true;
+        }
+
+        long[] prevHashes = hashAll(prevMembers);
+        long[] newHashes = hashAll(newMembers);
+        for (int i = 0; i < prevMembers.size(); i++) {
+            if (!pairedPrev[i]) {
+                removedMembers.add(prevMembers.get(i));
+            }
+        }
+        for (int j = 0; j < newMembers.size(); j++) {
+            int i = pairedPrevMembers[j];
+            if (i < 0) {
+                addedMembers.add(new ImmutableTriple<>(j, newMembers.get(j), prevType));
+            } else if (prevHashes[i] == newHashes[j]
+                    && prevMembers.get(i).equals(newMembers.get(j))) {
+                pinnedMembers++;
+            } else {
+                changedMembers.add(new Pair<>(prevMembers.get(i), newMembers.get(j)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the children of the type which are not members, such as its super types or its
+     * annotations, along with the kind of the type and its modifiers.
+     */
+    private static List<Object> getNonMemberChildren(CtType<?> type) {
+        Set<CtElement> members = Collections.newSetFromMap(new IdentityHashMap<>());
+        members.addAll(type.getTypeMembers());
+        List<Object> children = new ArrayList<>();
+        children.add(type.getClass());
+        children.add(type.getModifiers());
+        for (CtElement child : type.getDirectChildren()) {
+            if (!members.contains(child)) {
+                children.add(child);
+            }
+        }
+        return children;
+    }
+
+    private static String getSignature(CtTypeMember member) {
+        String name =
+                member instanceof CtExecutable
+                        ? ((CtExecutable<?>) member).getSignature()
+                        : member.getSimpleName();
+        return member.getClass().getName() + ' ' + name;
+    }
+
+    /** Hashes the members, splitting them into tasks run on the executor if there are many. */
+    private long[] hashAll(List<CtTypeMember> members) {
+        long[] hashes = new long[members.size()];
+        if (members.size() < PARALLEL_HASHING_THRESHOLD) {
+            hashRange(members, hashes, 0, members.size());
+            return hashes;
+        }
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < members.size(); from += MEMBERS_PER_TASK) {
+            int start = from;
+            int end = Math.min(from + MEMBERS_PER_TASK, members.size());
+            tasks.add(
+                    CompletableFuture.runAsync(
+                            () -> hashRange(members, hashes, start, end), hashingExecutor));
+        }
+        tasks.forEach(SpoonUtil::join);
+        return hashes;
+    }
+
+    private static void hashRange(List<CtTypeMember> members, long[] hashes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            hashes[i] = hash(members.get(i));
+        }
+    }
+
+    /**
+     * Computes a structural hash of the subtree, combining the hashes of the children in order with
+     * the kind of the node and the values which are not nodes, such as names and operators. Equal
+     * subtrees always have the same hash.
+     */
+    static long hash(CtElement element) {
+        long hash = element.getClass().getName().hashCode();
+        if (element instanceof CtNamedElement) {
+            hash = 31 * hash + ((CtNamedElement) element).getSimpleName().hashCode();
+        } else if (element instanceof CtReference) {
+            hash = 31 * hash + ((CtReference) element).getSimpleName().hashCode();
+        } else if (element instanceof CtLiteral) {
+            hash = 31 * hash + Objects.hashCode(((CtLiteral<?>) element).getValue());
+        } else if (element instanceof CtBinaryOperator) {
+            hash = 31 * hash + ((CtBinaryOperator<?>) element).getKind().name().hashCode();
+        } else if (element instanceof CtUnaryOperator) {
+            hash = 31 * hash + ((CtUnaryOperator<?>) element).getKind().name().hashCode();
+        } else if (element instanceof CtOperatorAssignment) {
+            hash = 31 * hash + ((CtOperatorAssignment<?, ?>) element).getKind().name().hashCode();
+        }
+        if (element instanceof CtModifiable) {
+            for (ModifierKind modifier : ((CtModifiable) element).getModifiers()) {
+                // the modifiers are unordered, so their hashes are summed
+                hash += modifier.name().hashCode();
+            }
+        }
+        for (CtElement child : element.getDirectChildren()) {
+            hash = 31 * hash + hash(child);
+        }
+        return hash;
+    }
+
+    /**
+     * Copies of a pair of members which can be diffed on any thread, along with the nodes of both
+     * models they have been copied from.
+     */
+    private static class IsolatedPair {
+        private final CtTypeMember newMember;
+        private final CtClass<?> prevShell;
+        private final CtClass<?> newShell;
+        private final Map<CtElement, CtElement> originals = new IdentityHashMap<>();
+
+        /**
+         * Copies both members into a factory of their own.
+         *
+         * @param prevMember member of the previous model
+         * @param newMember member of the new model
+         */
+        IsolatedPair(CtTypeMember prevMember, CtTypeMember newMember) {
+            this.newMember = newMember;
+            Factory factory = new FactoryImpl(new DefaultCoreFactory(), new StandardEnvironment());
+            factory.getEnvironment().setNoClasspath(true);
+            prevShell = createShell(factory, prevMember);
+            newShell = createShell(factory, newMember);
+        }
+
+        /** Wraps a copy of the member into a type of the factory holding only that member. */
+        private CtClass<?> createShell(Factory factory, CtTypeMember member) {
+            CtTypeMember copy = (CtTypeMember) member.clone();
+            List<CtElement> originalNodes = listInPreOrder(member);
+            List<CtElement> copiedNodes = listInPreOrder(copy);
+            for (int i = 0; i < copiedNodes.size(); i++) {
+                copiedNodes.get(i).setFactory(factory);
+                originals.put(copiedNodes.get(i), originalNodes.get(i));
+            }
+            CtClass<?> shell = factory.Core().createClass();
+            shell.setSimpleName(member.getDeclaringType().getSimpleName());
+            factory.getModel().getRootPackage().addType(shell);
+            shell.addTypeMember(copy);
+            originals.put(shell, member.getDeclaringType());
+            return shell;
+        }
+
+        /** Diffs the copies of both members, returning patches on the copies. */
+        PatchGeneration diff() {
+            Diff diff = new AstComparator().compare(prevShell, newShell);
+            SpoonMapping mapping = SpoonMapping.fromGumTreeMappingLazily(diff.getMappingsComp());
+            // GumTree may replace the whole member, which is then inserted into the type
+            mapping.putIfUnmapped(prevShell, newShell);
+            PatchGeneration patches = new PatchGeneration();
+            patches.generatePatch(diff, mapping);
+            return patches;
+        }
+
+        /**
+         * Adds the patches generated on the copies to the patches of both models.
+         *
+         * @param patches patches on the copies of the members
+         * @param patchGeneration patch generation to which the translated patches are added
+         */
+        void translate(PatchGeneration patches, PatchGeneration patchGeneration) {
+            for (CtElement deleted : patches.getDeletePatches()) {
+                patchGeneration.getDeletePatches().add(translate(deleted));
+            }
+            for (Pair<CtElement, CtElement> update : patches.getUpdatePatches()) {
+                patchGeneration
+                        .getUpdatePatches()
+                        .add(
+                                new Pair<>(
+                                        translate(update.getFirst()),
+                                        translate(update.getSecond())));
+            }
+            for (ImmutableTriple<Integer, CtElement, CtElement> insert :
+                    patches.getInsertPatches()) {
+                patchGeneration.getInsertPatches().add(translate(insert));
+            }
+            for (Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>> move :
+                    patches.getMovePatches()) {
+                patchGeneration
+                        .getMovePatches()
+                        .add(new Pair<>(translate(move.getFirst()), translate(move.getSecond())));
+            }
+        }
+
+        private ImmutableTriple<Integer, CtElement, CtElement> translate(
+                ImmutableTriple<Integer, CtElement, CtElement> insert) {
+            // the shell only holds the member, which is inserted at its index in the new type
+            int where =
+                    insert.middle.getParent() == newShell
+                            ? indexOf(newMember.getDeclaringType().getTypeMembers(), newMember)
+                            : insert.left;
+            return new ImmutableTriple<>(where, translate(insert.middle), translate(insert.right));
+        }
+
+        /**
+         * Returns the node of the models a copy stands for. The nodes which gumtree-spoon-ast-diff
+         * adds to the Spoon tree, such as the modifiers, are created again under the original
+         * parent.
+         */
+        private CtElement translate(CtElement copy) {
+            if (copy instanceof CtVirtualElement) {
+                CtVirtualElement virtualElement = (CtVirtualElement) copy;
+                List<Object> children = new ArrayList<>();
+                for (Object child : virtualElement.getChildren()) {
+                    children.add(child instanceof CtElement ? translate((CtElement) child) : child);
+                }
+                return new CtVirtualElement(
+                        virtualElement.getValue(),
+                        translate(virtualElement.getParent()),
+                        children,
+                        virtualElement.getRoleInParent());
+            }
+            if (copy instanceof CtWrapper) {
+                CtWrapper<?> wrapper = (CtWrapper<?>) copy;
+                return new CtWrapper<>(
+                        wrapper.getValue(),
+                        translate(wrapper.getParent()),
+                        wrapper.getRoleInParent());
+            }
+            CtElement original = originals.get(copy);
+            if (original == null) {
+                throw new IllegalStateException("Node not copied from the models: " + copy);
+            }
+            return original;
+        }
+
+        private static int indexOf(List<CtTypeMember> members, CtTypeMember member) {
+            for (int i = 0; i < members.size(); i++) {
+                if (members.get(i) == member) {
+                    return i;
+                }
+            }
+            throw new NoSuchElementException("Member is missing from its type: " + member);
+        }
+
+        private static List<CtElement> listInPreOrder(CtElement root) {
+            List<CtElement> nodes = new ArrayList<>();
+            new CtScanner() {
+                @Override
+                protected void enter(CtElement element) {
+                    nodes.add(element);
+                }
+            }.scan(root);
+            return nodes;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.diffmin;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.SpoonUtil;
+import gumtree.spoon.AstComparator;
+import gumtree.spoon.diff.Diff;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import spoon.reflect.CtModel;
+
+/**
+ * Walks the successive revisions of a file, patching a single model from one revision to the next.
+ *
+ * <p>Once patched, the model of the previous revision is equal to the model of the new one, so it
+ * is kept as the previous side of the next step instead of parsing the new revision again. Each
+ * revision is thus parsed exactly once, whereas diffing every consecutive pair with {@link
+ * SpoonUtil#computeDiff(File, File)} parses every intermediate revision twice.
+ *
+ * <p>The nodes inserted from a revision are copied into the factory of the first one, see {@link
+ * PatchApplication}, so the model of each revision can be collected once the model is patched to
+ * it, and the memory held does not grow with the length of the chain.
+ */
+public class RevisionChain {
+    private final ParsingContext parsingContext;
+    private final boolean checkConsistency;
+    private final CtModel model;
+    private int revisions = 1;
+
+    /**
+     * Starts a chain at the first revision, checking the patched model after every step and
+     * building the models with the default parsing context, see {@link
+     * SpoonUtil#getDefaultParsingContext()}.
+     *
+     * @param firstRevision first revision of the file
+     * @throws FileNotFoundException Exception raised if the file does not exist
+     */
+    public RevisionChain(File firstRevision) throws FileNotFoundException {
+        this(firstRevision, SpoonUtil.getDefaultParsingContext(), true);
+    }
+
+    /**
+     * Starts a chain at the first revision.
+     *
+     * @param firstRevision first revision of the file
+     * @param parsingContext context used for building the model of every revision
+     * @param checkConsistency whether the patched model is compared against the model of the new
+     *     revision after every step, which costs printing both models
+     * @throws FileNotFoundException Exception raised if the file does not exist
+     */
+    public RevisionChain(
+            File firstRevision, ParsingContext parsingContext, boolean checkConsistency)
+            throws FileNotFoundException {
+        this.parsingContext = parsingContext;
+        this.checkConsistency = checkConsistency;
+        this.model = SpoonUtil.buildModel(firstRevision, parsingContext);
+    }
+
+    /**
+     * Patches the model to the next revision.
+     *
+     * @param nextRevision next revision of the file
+     * @return the model, patched to the next revision
+     * @throws FileNotFoundException Exception raised if the file does not exist
+     * @throws IllegalStateException Exception raised if consistency checks are enabled and the
+     *     patched model differs from the model of the next revision
+     */
+    public CtModel advance(File nextRevision) throws FileNotFoundException {
+        CtModel nextModel = SpoonUtil.buildModel(nextRevision, parsingContext);
+        Diff diff = new AstComparator().compare(model.getRootPackage(), nextModel.getRootPackage());
+
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diff);
+        PatchApplication.applyPatch(patchGeneration);
+        revisions++;
+
+        if (checkConsistency && !print(model).equals(print(nextModel))) {
+            throw new IllegalStateException(
+                    String.format(
+                            "Model patched to revision %d differs from the model of %s",
+                            revisions, nextRevision));
+        }
+        return model;
+    }
+
+    /**
+     * Prints the types of the model. Implicit elements, such as default constructors, are not
+     * compared, as the patches only cover the nodes GumTree sees.
+     */
+    private static List<String> print(CtModel model) {
+        List<String> types = new ArrayList<>();
+        model.getAllTypes().forEach(type -> types.add(type.toString()));
+        return types;
+    }
+
+    /** Returns the model, patched to the last revision reached. */
+    public CtModel getModel() {
+        return model;
+    }
+
+    /** Returns the number of revisions reached so far, including the first one. */
+    public int getRevisions() {
+        return revisions;
+    }
+}
@@ -1,16 +1,20 @@
 package com.diffmin;
 
-import com.diffmin.util.Pair;
+import com.diffmin.util.ElementNumbering;
+import com.diffmin.util.InPlaceScanner;
+import com.diffmin.util.TreeIndex;
 import com.github.gumtreediff.matchers.Mapping;
 import com.github.gumtreediff.matchers.MappingStore;
 import com.github.gumtreediff.tree.ITree;
 import gumtree.spoon.builder.SpoonGumTreeBuilder;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 import spoon.reflect.declaration.CtElement;
+import spoon.reflect.path.CtRole;
+import spoon.reflect.visitor.CtScanner;
 
 /**
  * A class for storing matches between tree nodes in two Spoon trees.
@@ -19,19 +23,35 @@ import spoon.reflect.declaration.CtElement;
  * href="https://github.com/KTH/spork/blob/ba0a33f2bd2f02dc6a50474733be67850f47ae2d/src/main/kotlin/se/kth/spork/spoon/matching/SpoonMapping.kt">se.kth.spork.spoon.matching.SpoonMapping.kt</a>
  */
 public class SpoonMapping {
-    private final Map<CtElement, CtElement> srcToDst;
-    private final Map<CtElement, CtElement> dstToSrc;
+    private static final int UNMAPPED = -1;
 
-    private SpoonMapping() {
-        srcToDst = new IdentityHashMap<>();
-        dstToSrc = new IdentityHashMap<>();
-    }
+    private final ElementNumbering srcNumbering = new ElementNumbering();
+    private final ElementNumbering dstNumbering = new ElementNumbering();
+    private int[] srcToDst = new int[0];
+    private int[] dstToSrc = new int[0];
+    private int size;
+    private TreeIndex srcIndex;
+    /** Source nodes whose children have been inferred, or null if every mapping is inferred. */
+    private BitSet inferredSrcNodes;
+
+    private final ChildCollector srcChildren = new ChildCollector();
+    private final ChildCollector dstChildren = new ChildCollector();
+    /** Numbers of the source nodes whose children are still to be inferred, when eager. */
+    private int[] pendingSrcNodes = new int[16];
+
+    private int pendingCount;
+
+    private SpoonMapping() {}
 
     /**
      * Create a Spoon mapping from a GumTree mapping. Every GumTree node must have a "spoon_object"
      * metadata object that refers back to a Spoon node. As this mapping does not cover the whole
      * Spoon tree, additional mappings are inferred.
      *
+     * <p>The Spoon nodes of both trees are numbered in pre-order, and the mapping is kept as two
+     * arrays from the numbers of one tree to the numbers of the other, so that it does not hold an
+     * object per mapped node.
+     *
      * <p>TODO verify that the mapping inference is actually correct
      *
      * @param gumtreeMapping A GumTree mapping in which each mapped node has a "spoon_object"
@@ -40,8 +60,49 @@ public class SpoonMapping {
      */
     public static SpoonMapping fromGumTreeMapping(MappingStore gumtreeMapping) {
         SpoonMapping mapping = new SpoonMapping();
+        mapping.putGumTreeMappings(gumtreeMapping);
+        mapping.inferAdditionalMappings();
+        return mapping;
+    }
+
+    /**
+     * Create a Spoon mapping from a GumTree mapping, inferring the additional mappings only when an
+     * element which is not mapped by GumTree is looked up. The mappings are then inferred down the
+     * path from the closest mapped ancestor of the element, and kept for later lookups.
+     *
+     * <p>Looking up an element gives the same result as with {@link
+     * #fromGumTreeMapping(MappingStore)}, but {@link #size()} only counts the mappings inferred so
+     * far. This is meant for patch generation, which only looks up the parents of the inserted and
+     * moved nodes.
+     *
+     * @param gumtreeMapping A GumTree mapping in which each mapped node has a "spoon_object"
+     *     metadata object.
+     * @return A SpoonMapping corresponding to the passed GumTree mapping.
+     */
+    public static SpoonMapping fromGumTreeMappingLazily(MappingStore gumtreeMapping) {
+        SpoonMapping mapping = new SpoonMapping();
+        mapping.inferredSrcNodes = new BitSet();
+        mapping.putGumTreeMappings(gumtreeMapping);
+        return mapping;
+    }
+
+    /**
+     * Numbers the nodes of both trees and maps the nodes mapped by GumTree. When inferring eagerly,
+     * the mapped pairs are the first ones whose children are to be inferred.
+     */
+    private void putGumTreeMappings(MappingStore gumtreeMapping) {
+        Set<Mapping> gumtreeMappings = gumtreeMapping.asSet();
+        if (gumtreeMappings.isEmpty()) {
+            srcIndex = new TreeIndex(srcNumbering, List.of());
+        } else {
+            Mapping anyMapping = gumtreeMappings.iterator().next();
+            // the source nodes are numbered in pre-order by the index itself
+            srcIndex = new TreeIndex(srcNumbering, getSpoonRoots(anyMapping.first));
+            numberInPreOrder(dstNumbering, getSpoonRoots(anyMapping.second));
+            growMappings();
+        }
 
-        for (Mapping m : gumtreeMapping.asSet()) {
+        for (Mapping m : gumtreeMappings) {
             CtElement spoonSrc = getSpoonNode(m.first);
             CtElement spoonDst = getSpoonNode(m.second);
             if (spoonSrc == null || spoonDst == null) {
@@ -56,18 +117,48 @@ public class SpoonMapping {
                                     + " had no mapped Spoon object");
                 }
             } else {
-                mapping.put(spoonSrc, spoonDst);
+                int srcNumber = put(spoonSrc, spoonDst);
+                if (inferredSrcNodes == null) {
+                    pushPending(srcNumber);
+                }
             }
         }
+    }
 
-        mapping.inferAdditionalMappings(mapping.asList());
-        return mapping;
+    /**
+     * Returns the topmost Spoon nodes of the GumTree tree, as the root itself and the nodes right
+     * below it may have no Spoon node.
+     */
+    private static List<CtElement> getSpoonRoots(ITree gumtreeNode) {
+        ITree root = gumtreeNode;
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        List<CtElement> spoonRoots = new ArrayList<>();
+        addSpoonRoots(root, spoonRoots);
+        return spoonRoots;
     }
 
-    private List<Pair<CtElement, CtElement>> asList() {
-        return srcToDst.entrySet().stream()
-                .map(srcAndDst -> new Pair<>(srcAndDst.getKey(), srcAndDst.getValue()))
-                .collect(Collectors.toList());
+    private static void addSpoonRoots(ITree gumtreeNode, List<CtElement> spoonRoots) {
+        CtElement spoonNode = getSpoonNode(gumtreeNode);
+        if (spoonNode != null) {
+            spoonRoots.add(spoonNode);
+            return;
+        }
+        for (ITree child : gumtreeNode.getChildren()) {
+            addSpoonRoots(child, spoonRoots);
+        }
+    }
+
+    private static void numberInPreOrder(ElementNumbering numbering, List<CtElement> roots) {
+        CtScanner numberer =
+                new InPlaceScanner() {
+                    @Override
+                    protected void enter(CtElement element) {
+                        numbering.getOrAddNumber(element);
+                    }
+                };
+        roots.forEach(numberer::scan);
     }
 
     /**
@@ -78,45 +169,63 @@ public class SpoonMapping {
      * to see how nodes are ignored in gumtree-spoon-ast-diff. The process is repeated for each pair
      * of newly matched nodes, until no new matches can be found.
      *
-     * @param matches Pairs of matched nodes, as computed by GumTree/gumtree-spoon-ast-diff.
+     * <p>The pairs still to be visited are kept as the numbers of their source node, starting with
+     * the pairs matched by GumTree/gumtree-spoon-ast-diff.
      */
-    private void inferAdditionalMappings(List<Pair<CtElement, CtElement>> matches) {
-        while (!matches.isEmpty()) {
-            List<Pair<CtElement, CtElement>> newMatches = new ArrayList<>();
-            for (Pair<CtElement, CtElement> srcAndDst : matches) {
-                newMatches.addAll(
-                        inferAdditionalMappings(srcAndDst.getFirst(), srcAndDst.getSecond()));
-            }
-            matches = newMatches;
+    private void inferAdditionalMappings() {
+        while (pendingCount > 0) {
+            pendingCount--;
+            int srcNumber = pendingSrcNodes[pendingCount];
+            inferAdditionalMappings(
+                    srcNumbering.getElement(srcNumber),
+                    dstNumbering.getElement(srcToDst[srcNumber]));
         }
     }
 
-    private List<Pair<CtElement, CtElement>> inferAdditionalMappings(CtElement src, CtElement dst) {
-        List<CtElement> srcChildren = src.getDirectChildren();
-        List<CtElement> dstChildren = dst.getDirectChildren();
-        List<Pair<CtElement, CtElement>> newMatches = new ArrayList<>();
+    /**
+     * Matches the ignored children of a pair of matched nodes in order, adding the newly matched
+     * pairs to the pending ones when inferring eagerly. The children are collected into buffers
+     * which are reused for every pair, instead of a list allocated for each node.
+     */
+    private void inferAdditionalMappings(CtElement src, CtElement dst) {
+        srcChildren.collect(src);
+        dstChildren.collect(dst);
 
         int srcIdx = 0;
         int dstIdx = 0;
 
-        while (srcIdx < srcChildren.size() && dstIdx < dstChildren.size()) {
-            CtElement srcChild = srcChildren.get(srcIdx);
-            CtElement dstChild = dstChildren.get(dstIdx);
+        while (srcIdx < srcChildren.size && dstIdx < dstChildren.size) {
+            CtElement srcChild = srcChildren.children[srcIdx];
+            CtElement dstChild = dstChildren.children[dstIdx];
 
-            if (srcToDst.containsKey(srcChild) || !GumtreeSpoonAstDiff.isToIgnore(srcChild)) {
+            if (isMapped(srcNumbering, srcToDst, srcChild)
+                    || !GumtreeSpoonAstDiff.isToIgnore(srcChild)) {
                 srcIdx++;
-            } else if (dstToSrc.containsKey(dstChild)
+            } else if (isMapped(dstNumbering, dstToSrc, dstChild)
                     || !GumtreeSpoonAstDiff.isToIgnore(dstChild)) {
                 dstIdx++;
             } else {
-                put(srcChild, dstChild);
-                newMatches.add(new Pair<>(srcChild, dstChild));
+                int srcNumber = put(srcChild, dstChild);
+                if (inferredSrcNodes == null) {
+                    pushPending(srcNumber);
+                }
                 srcIdx++;
                 dstIdx++;
             }
         }
+    }
 
-        return newMatches;
+    /**
+     * Returns an index of the source trees which GumTree has been run on, sharing the numbers of
+     * the source nodes of the mapping.
+     */
+    public TreeIndex getSrcIndex() {
+        return srcIndex;
+    }
+
+    /** Returns the number of nodes of the source tree which are mapped. */
+    public int size() {
+        return size;
     }
 
     /**
@@ -127,38 +236,173 @@ public class SpoonMapping {
      * @return The mapped element
      */
     public CtElement get(CtElement e) {
-        CtElement mappedDst = srcToDst.get(e);
-        CtElement mappedSrc = dstToSrc.get(e);
-
-        if (mappedDst != null) {
-            return mappedDst;
-        } else if (mappedSrc != null) {
-            return mappedSrc;
-        } else {
+        CtElement mapped = find(e);
+        if (mapped == null && inferredSrcNodes != null && inferAlongAncestors(e)) {
+            mapped = find(e);
+        }
+        if (mapped == null) {
             throw new IllegalArgumentException("Element not mapped: " + e);
         }
+        return mapped;
     }
 
-    private void put(CtElement src, CtElement dst) {
-        srcToDst.put(src, dst);
-        dstToSrc.put(dst, src);
+    /** Returns the element mapped to this element, or null if it is not mapped yet. */
+    private CtElement find(CtElement e) {
+        int srcNumber = srcNumbering.getNumber(e);
+        if (srcNumber != ElementNumbering.UNNUMBERED && srcToDst[srcNumber] != UNMAPPED) {
+            return dstNumbering.getElement(srcToDst[srcNumber]);
+        }
+        int dstNumber = dstNumbering.getNumber(e);
+        if (dstNumber != ElementNumbering.UNNUMBERED && dstToSrc[dstNumber] != UNMAPPED) {
+            return srcNumbering.getElement(dstToSrc[dstNumber]);
+        }
+        return null;
+    }
+
+    /**
+     * Infers the mappings of the children of the closest mapped ancestor of the element, and then
+     * of the children of each newly mapped node down the path to the element. As the children of a
+     * pair of nodes are only ever matched when inferring the mappings of that pair, this gives the
+     * same mappings as inferring them over the whole trees.
+     *
+     * @return false if the path was cut by a node which is not mapped
+     */
+    private boolean inferAlongAncestors(CtElement e) {
+        boolean isSrc = srcNumbering.getNumber(e) != ElementNumbering.UNNUMBERED;
+        ElementNumbering numbering = isSrc ? srcNumbering : dstNumbering;
+        List<CtElement> unmappedPath = new ArrayList<>();
+        CtElement current = e;
+        while (find(current) == null) {
+            if (numbering.getNumber(current) == ElementNumbering.UNNUMBERED
+                    || !current.isParentInitialized()) {
+                return false;
+            }
+            unmappedPath.add(current);
+            current = current.getParent();
+        }
+        for (int i = unmappedPath.size() - 1; i >= 0; i--) {
+            CtElement mapped = find(current);
+            CtElement src = isSrc ? current : mapped;
+            if (!inferredSrcNodes.get(srcNumbering.getNumber(src))) {
+                inferredSrcNodes.set(srcNumbering.getNumber(src));
+                inferAdditionalMappings(src, isSrc ? mapped : current);
+            }
+            current = unmappedPath.get(i);
+            if (find(current) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps the elements unless the source element is already mapped, for instance to map the
+     * parents of the subtrees which GumTree has been run on.
+     */
+    void putIfUnmapped(CtElement src, CtElement dst) {
+        if (!isMapped(srcNumbering, srcToDst, src)) {
+            put(src, dst);
+            if (inferredSrcNodes != null) {
+                // the children of these elements are never inferred when inferring eagerly
+                inferredSrcNodes.set(srcNumbering.getNumber(src));
+            }
+        }
+    }
+
+    /** Maps the elements, returning the number of the source element. */
+    private int put(CtElement src, CtElement dst) {
+        int srcNumber = srcNumbering.getOrAddNumber(src);
+        int dstNumber = dstNumbering.getOrAddNumber(dst);
+        growMappings();
+        if (srcToDst[srcNumber] == UNMAPPED) {
+            size++;
+        }
+        srcToDst[srcNumber] = dstNumber;
+        dstToSrc[dstNumber] = srcNumber;
+        return srcNumber;
+    }
+
+    /** Adds the source node to the ones whose children are still to be inferred. */
+    private void pushPending(int srcNumber) {
+        if (pendingCount == pendingSrcNodes.length) {
+            pendingSrcNodes = Arrays.copyOf(pendingSrcNodes, pendingCount * 2);
+        }
+        pendingSrcNodes[pendingCount] = srcNumber;
+        pendingCount++;
+    }
+
+    private static boolean isMapped(ElementNumbering numbering, int[] mappings, CtElement e) {
+        int number = numbering.getNumber(e);
+        return number != ElementNumbering.UNNUMBERED && mappings[number] != UNMAPPED;
+    }
+
+    /** Makes room in the mappings for the elements numbered since they were last grown. */
+    private void growMappings() {
+        srcToDst = grow(srcToDst, srcNumbering.size());
+        dstToSrc = grow(dstToSrc, dstNumbering.size());
+    }
+
+    private static int[] grow(int[] mappings, int minLength) {
+        if (mappings.length >= minLength) {
+            return mappings;
+        }
+        int oldLength = mappings.length;
+        int[] grown = Arrays.copyOf(mappings, Math.max(minLength, oldLength * 2));
+        Arrays.fill(grown, oldLength, grown.length, UNMAPPED);
+        return grown;
     }
 
     private static CtElement getSpoonNode(ITree gumtreeNode) {
         return (CtElement) gumtreeNode.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT);
     }
 
-    private String formatEntry(Map.Entry<CtElement, CtElement> entry) {
-        return "(" + entry.getKey() + ", " + entry.getValue() + ")";
+    private String formatEntry(int srcNumber) {
+        return "("
+                + srcNumbering.getElement(srcNumber)
+                + ", "
+                + dstNumbering.getElement(srcToDst[srcNumber])
+                + ")";
     }
 
     @Override
     public String toString() {
-        return "SpoonMapping{"
-                + "srcs="
-                + srcToDst.entrySet().stream().map(this::formatEntry).collect(Collectors.toList())
-                + ", dsts="
-                + dstToSrc.entrySet().stream().map(this::formatEntry).collect(Collectors.toList())
-                + '}';
+        List<String> entries = new ArrayList<>();
+        for (int srcNumber = 0; srcNumber < srcNumbering.size(); srcNumber++) {
+            if (srcToDst[srcNumber] != UNMAPPED) {
+                entries.add(formatEntry(srcNumber));
+            }
+        }
+        return "SpoonMapping{" + "entries=" + entries + '}';
+    }
+
+    /**
+     * Collects the direct children of a node in the same order as {@link
+     * CtElement#getDirectChildren()}, into a buffer which is reused from one node to the next.
+     */
+    private static class ChildCollector extends InPlaceScanner {
+        private CtElement[] children = new CtElement[16];
+        private int size;
+
+        void collect(CtElement parent) {
+            Arrays.fill(children, 0, size, null);
+            size = 0;
+            parent.accept(this);
+        }
+
+        @Override
+        public void scan(CtElement element) {
+            if (element != null) {
+                if (size == children.length) {
+                    children = Arrays.copyOf(children, size * 2);
+                }
+                children[size] = element;
+                size++;
+            }
+        }
+
+        @Override
+        public void scan(CtRole role, CtElement element) {
+            scan(element);
+        }
     }
 }
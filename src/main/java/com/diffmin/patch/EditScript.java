@@ -0,0 +1,312 @@
+package com.diffmin.patch;
+
+import com.diffmin.util.Pair;
+import com.diffmin.util.SpoonUtil;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import gumtree.spoon.builder.CtVirtualElement;
+import gumtree.spoon.builder.CtWrapper;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtCompilationUnit;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtModifiable;
+import spoon.reflect.declaration.CtPackage;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.path.CtPathStringBuilder;
+import spoon.reflect.path.CtRole;
+import spoon.support.compiler.VirtualFile;
+import spoon.support.compiler.VirtualFolder;
+
+/**
+ * Patches generated for a pair of files in a form which can be written to disk and applied later to
+ * a fresh model of the previous file, without computing the diff again.
+ *
+ * <p>The script is a JSON document holding only text. Every node is referred to by its {@link
+ * spoon.reflect.path.CtPath} relative to the root package of its model, and the sources of the new
+ * model are stored along with the patches. When the script is applied, the sources are parsed again
+ * and the nodes taken from the new model are located in the model parsed, so that they are exactly
+ * the ones the diff was computed with.
+ */
+public class EditScript {
+    private static final String ROOT_PACKAGE_PATH = "";
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private List<Source> sources = new ArrayList<>();
+    private List<Anchor> deletions = new ArrayList<>();
+    private List<Update> updates = new ArrayList<>();
+    private List<Insertion> insertions = new ArrayList<>();
+    private List<Move> moves = new ArrayList<>();
+
+    private EditScript() {}
+
+    /**
+     * Creates the script of the patches generated. The previous model must not have been patched
+     * yet, as the nodes are located by their current path in it.
+     *
+     * @param patchGeneration patches generated for the pair
+     * @return script of the patches
+     */
+    public static EditScript fromPatches(PatchGeneration patchGeneration) {
+        EditScript editScript = new EditScript();
+        List<CtElement> newNodes = new ArrayList<>();
+        for (CtElement deletePatch : patchGeneration.getDeletePatches()) {
+            editScript.deletions.add(Anchor.of(deletePatch));
+        }
+        for (Pair<CtElement, CtElement> updatePatch : patchGeneration.getUpdatePatches()) {
+            editScript.updates.add(
+                    new Update(
+                            Anchor.of(updatePatch.getFirst()), Anchor.of(updatePatch.getSecond())));
+            newNodes.add(updatePatch.getSecond());
+        }
+        for (ImmutableTriple<Integer, CtElement, CtElement> insertPatch :
+                patchGeneration.getInsertPatches()) {
+            editScript.insertions.add(Insertion.of(insertPatch));
+            newNodes.add(insertPatch.middle);
+        }
+        for (Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>> movePatch :
+                patchGeneration.getMovePatches()) {
+            editScript.moves.add(
+                    new Move(Anchor.of(movePatch.getFirst()), Insertion.of(movePatch.getSecond())));
+            newNodes.add(movePatch.getSecond().middle);
+        }
+        if (!newNodes.isEmpty()) {
+            editScript.storeSources(newNodes);
+        }
+        return editScript;
+    }
+
+    /** Stores the sources of the new model which all the nodes taken from it belong to. */
+    private void storeSources(List<CtElement> newNodes) {
+        Factory factory = getFactory(newNodes.get(0));
+        for (CtElement newNode : newNodes) {
+            if (getFactory(newNode) != factory) {
+                throw new IllegalArgumentException("Patches take nodes from several new models");
+            }
+        }
+        for (CtCompilationUnit cu : factory.CompilationUnit().getMap().values()) {
+            // Spoon only knows the source of the compilation units parsed from actual files
+            String content = cu.getOriginalSourceCode();
+            if (content == null) {
+                throw new IllegalArgumentException(
+                        "Source of " + cu.getFile() + " is not available from its file");
+            }
+            sources.add(new Source(cu.getFile().getName(), content));
+        }
+    }
+
+    /** Returns the factory of the node, or of its parent for the nodes added by GumTree. */
+    private static Factory getFactory(CtElement node) {
+        return node instanceof CtWrapper ? node.getParent().getFactory() : node.getFactory();
+    }
+
+    /**
+     * Writes the script to the file.
+     *
+     * @param file file to which the script is written
+     * @throws IOException Exception raised if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            GSON.toJson(this, writer);
+        }
+    }
+
+    /**
+     * Reads a script written by {@link #write(Path)}.
+     *
+     * @param file file from which the script is read
+     * @return script read
+     * @throws IOException Exception raised if the file cannot be read or is not a script
+     */
+    public static EditScript read(Path file) throws IOException {
+        EditScript editScript;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            editScript = GSON.fromJson(reader, EditScript.class);
+        } catch (JsonParseException e) {
+            throw new IOException(file + " is not an edit script", e);
+        }
+        if (editScript == null
+                || editScript.sources == null
+                || editScript.deletions == null
+                || editScript.updates == null
+                || editScript.insertions == null
+                || editScript.moves == null) {
+            throw new IOException(file + " is not an edit script");
+        }
+        return editScript;
+    }
+
+    /**
+     * Locates every node of the script before any of them is modified, the nodes of the previous
+     * model in the given model and the nodes of the new model in a model of the stored sources.
+     */
+    Resolved resolve(CtModel prevModel) {
+        CtPackage prevRootPackage = prevModel.getRootPackage();
+        CtPackage newRootPackage = parseSources().getRootPackage();
+        Resolved resolved = new Resolved();
+        for (Anchor deletion : deletions) {
+            resolved.deletePatches.add(deletion.resolve(prevRootPackage));
+        }
+        for (Update update : updates) {
+            resolved.updatePatches.add(
+                    new Pair<>(
+                            update.prevNode.resolve(prevRootPackage),
+                            update.node.resolve(newRootPackage)));
+        }
+        for (Insertion insertion : insertions) {
+            resolved.insertPatches.add(insertion.resolve(prevRootPackage, newRootPackage));
+        }
+        for (Move move : moves) {
+            resolved.movePatches.add(
+                    new Pair<>(
+                            move.prevNode.resolve(prevRootPackage),
+                            move.insertion.resolve(prevRootPackage, newRootPackage)));
+        }
+        return resolved;
+    }
+
+    /** Parses the stored sources of the new model together, as they were when it was built. */
+    private CtModel parseSources() {
+        VirtualFolder folder = new VirtualFolder();
+        for (Source source : sources) {
+            folder.addFile(new VirtualFile(source.content, source.name));
+        }
+        return SpoonUtil.getDefaultParsingContext().buildModel(folder);
+    }
+
+    /** Patches of a script whose nodes have been located in the models of both files. */
+    static class Resolved {
+        final List<CtElement> deletePatches = new ArrayList<>();
+        final List<Pair<CtElement, CtElement>> updatePatches = new ArrayList<>();
+        final List<ImmutableTriple<Integer, CtElement, CtElement>> insertPatches =
+                new ArrayList<>();
+        final List<Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>>> movePatches =
+                new ArrayList<>();
+    }
+
+    /** Source of a compilation unit of the new model. */
+    private static class Source {
+        private final String name;
+        private final String content;
+
+        private Source(String name, String content) {
+            this.name = name;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Reference to a node of either model. The nodes which only exist in the tree of GumTree, all
+     * the modifiers of an element or one of them, are referred to by the path of that element.
+     */
+    private static class Anchor {
+        private final String path;
+        // label of the node grouping all the modifiers of the element
+        private final String modifiers;
+        // single modifier of the element
+        private final ModifierKind modifier;
+
+        private Anchor(String path, String modifiers, ModifierKind modifier) {
+            this.path = path;
+            this.modifiers = modifiers;
+            this.modifier = modifier;
+        }
+
+        private static Anchor of(CtElement node) {
+            if (node instanceof CtVirtualElement) {
+                return new Anchor(
+                        getPath(node.getParent()), ((CtVirtualElement) node).getValue(), null);
+            }
+            if (node instanceof CtWrapper) {
+                return new Anchor(
+                        getPath(node.getParent()),
+                        null,
+                        (ModifierKind) ((CtWrapper<?>) node).getValue());
+            }
+            return new Anchor(getPath(node), null, null);
+        }
+
+        private static String getPath(CtElement node) {
+            if (node instanceof CtPackage && ((CtPackage) node).isUnnamedPackage()) {
+                return ROOT_PACKAGE_PATH;
+            }
+            return node.getPath().toString();
+        }
+
+        private CtElement resolve(CtPackage rootPackage) {
+            List<CtElement> nodes =
+                    new CtPathStringBuilder().fromString(path).evaluateOn(rootPackage);
+            if (nodes.size() != 1) {
+                throw new IllegalStateException(
+                        String.format(
+                                "Expected a single node at %s, but found %d", path, nodes.size()));
+            }
+            CtElement node = nodes.get(0);
+            if (modifiers != null) {
+                return new CtVirtualElement(
+                        modifiers, node, ((CtModifiable) node).getModifiers(), CtRole.MODIFIER);
+            }
+            if (modifier != null) {
+                return new CtWrapper<>(modifier, node, CtRole.MODIFIER);
+            }
+            return node;
+        }
+    }
+
+    /** Replacement of a node of the previous model by a node of the new model. */
+    private static class Update {
+        private final Anchor prevNode;
+        private final Anchor node;
+
+        private Update(Anchor prevNode, Anchor node) {
+            this.prevNode = prevNode;
+            this.node = node;
+        }
+    }
+
+    /** Insertion of a node of the new model into a parent of the previous model. */
+    private static class Insertion {
+        private final int where;
+        private final Anchor node;
+        private final Anchor parent;
+
+        private Insertion(int where, Anchor node, Anchor parent) {
+            this.where = where;
+            this.node = node;
+            this.parent = parent;
+        }
+
+        private static Insertion of(ImmutableTriple<Integer, CtElement, CtElement> insertPatch) {
+            return new Insertion(
+                    insertPatch.left, Anchor.of(insertPatch.middle), Anchor.of(insertPatch.right));
+        }
+
+        private ImmutableTriple<Integer, CtElement, CtElement> resolve(
+                CtPackage prevRootPackage, CtPackage newRootPackage) {
+            return new ImmutableTriple<>(
+                    where, node.resolve(newRootPackage), parent.resolve(prevRootPackage));
+        }
+    }
+
+    /** Deletion of a node of the previous model followed by the insertion of its new version. */
+    private static class Move {
+        private final Anchor prevNode;
+        private final Insertion insertion;
+
+        private Move(Anchor prevNode, Insertion insertion) {
+            this.prevNode = prevNode;
+            this.insertion = insertion;
+        }
+    }
+}
@@ -1,20 +1,35 @@
 package com.diffmin.patch;
 
+import com.diffmin.util.FlightRecorderEvents.PatchOperationEvent;
 import com.diffmin.util.Pair;
 import com.diffmin.util.SpoonUtil;
+import com.diffmin.util.TreeIndex;
 import gumtree.spoon.builder.CtVirtualElement;
 import gumtree.spoon.builder.CtWrapper;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.apache.commons.lang3.tuple.ImmutableTriple;
+import spoon.reflect.CtModel;
 import spoon.reflect.code.CtAbstractInvocation;
 import spoon.reflect.code.CtAbstractSwitch;
 import spoon.reflect.code.CtCase;
 import spoon.reflect.code.CtExpression;
 import spoon.reflect.code.CtStatement;
 import spoon.reflect.code.CtStatementList;
+import spoon.reflect.cu.CompilationUnit;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.cu.position.BodyHolderSourcePosition;
+import spoon.reflect.cu.position.CompoundSourcePosition;
+import spoon.reflect.cu.position.DeclarationSourcePosition;
 import spoon.reflect.declaration.CtAnnotation;
 import spoon.reflect.declaration.CtCompilationUnit;
 import spoon.reflect.declaration.CtElement;
@@ -27,7 +42,13 @@ import spoon.reflect.declaration.CtType;
 import spoon.reflect.declaration.CtTypeMember;
 import spoon.reflect.declaration.CtTypeParameter;
 import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.CoreFactory;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.path.CtRole;
 import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+import spoon.support.modelobs.ChangeCollector;
+import spoon.support.reflect.CtExtendedModifier;
 
 /** Class for applying patches. */
 public class PatchApplication {
@@ -37,73 +58,329 @@ public class PatchApplication {
         throw new IllegalStateException("Utility classes should not be instantiated");
     }
 
-    /** Apply all the patches generated. */
+    /**
+     * Apply all the patches generated, grouping the deletions and insertions by the list of
+     * children they modify, see {@link #applyPatch(List, List, List, List)}. The index of the
+     * previous model built while generating the patches is reused if there is one.
+     *
+     * @param patchGeneration patches generated for the previous model
+     */
+    public static void applyPatch(PatchGeneration patchGeneration) {
+        List<CtElement> deletePatches = patchGeneration.getDeletePatches();
+        List<Pair<CtElement, CtElement>> updatePatches = patchGeneration.getUpdatePatches();
+        List<ImmutableTriple<Integer, CtElement, CtElement>> insertPatches =
+                patchGeneration.getInsertPatches();
+        List<Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>>> movePatches =
+                patchGeneration.getMovePatches();
+        TreeIndex prevIndex = patchGeneration.getPrevIndex();
+        applyPatchGrouped(
+                deletePatches,
+                updatePatches,
+                insertPatches,
+                movePatches,
+                prevIndex != null
+                        ? prevIndex
+                        : indexPrevModel(deletePatches, updatePatches, insertPatches, movePatches));
+    }
+
+    /**
+     * Apply all the patches generated, grouping the deletions and insertions by the list of
+     * children they modify. Each list is rebuilt once with its final ordering, instead of once per
+     * patch, and the thrown types of an executable are copied once however many are inserted.
+     *
+     * <p>Deletions are applied first, followed by updates, and then by the insertions along with
+     * the moves, whose nodes are removed from their previous list while it is being rebuilt. The
+     * lists are rebuilt in the pre-order of their parents in the previous model, which is indexed
+     * beforehand, and the event of a patch on a list ends once the list is rebuilt.
+     */
     public static void applyPatch(
             List<CtElement> deletePatches,
             List<Pair<CtElement, CtElement>> updatePatches,
             List<ImmutableTriple<Integer, CtElement, CtElement>> insertPatches,
             List<Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>>> movePatches) {
-        deletePatches.forEach(PatchApplication::performDeletion);
+        applyPatchGrouped(
+                deletePatches,
+                updatePatches,
+                insertPatches,
+                movePatches,
+                indexPrevModel(deletePatches, updatePatches, insertPatches, movePatches));
+    }
+
+    /**
+     * Apply the patches of an edit script to a model of the previous file, grouping them like
+     * {@link #applyPatch(List, List, List, List)}. All the nodes of the script are located in the
+     * model before it is modified.
+     *
+     * @param editScript script generated for the previous file
+     * @param prevModel model of the previous file which has not been patched yet
+     */
+    public static void applyPatch(EditScript editScript, CtModel prevModel) {
+        EditScript.Resolved patches = editScript.resolve(prevModel);
+        applyPatchGrouped(
+                patches.deletePatches,
+                patches.updatePatches,
+                patches.insertPatches,
+                patches.movePatches,
+                TreeIndex.of(prevModel));
+    }
+
+    private static void applyPatchGrouped(
+            List<CtElement> deletePatches,
+            List<Pair<CtElement, CtElement>> updatePatches,
+            List<ImmutableTriple<Integer, CtElement, CtElement>> insertPatches,
+            List<Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>>> movePatches,
+            TreeIndex prevIndex) {
+        ChildListEdits deletions = new ChildListEdits(prevIndex);
+        deletePatches.forEach(deletions::delete);
+        deletions.apply();
+
         updatePatches.forEach(PatchApplication::performUpdating);
-        insertPatches.forEach(PatchApplication::performInsertion);
-        movePatches.forEach(PatchApplication::performMovement);
+
+        // a moved node whose ancestor is deleted leaves along with it
+        DeletedSubtrees deletedSubtrees = new DeletedSubtrees(deletePatches, prevIndex);
+        ChildListEdits insertions = new ChildListEdits(prevIndex);
+        for (Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>> movePatch :
+                movePatches) {
+            if (!deletedSubtrees.containsDescendant(movePatch.getFirst())) {
+                insertions.detach(movePatch.getFirst());
+            }
+        }
+        insertPatches.forEach(
+                insertPatch -> insertions.insert(insertPatch, PatchOperationEvent.INSERT));
+        movePatches.forEach(
+                movePatch -> insertions.insert(movePatch.getSecond(), PatchOperationEvent.MOVE));
+        insertions.apply();
+    }
+
+    /**
+     * Indexes the model the patches apply to, which is found from any node of the previous model
+     * they hold. Nothing is indexed if there is no patch.
+     */
+    private static TreeIndex indexPrevModel(
+            List<CtElement> deletePatches,
+            List<Pair<CtElement, CtElement>> updatePatches,
+            List<ImmutableTriple<Integer, CtElement, CtElement>> insertPatches,
+            List<Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>>> movePatches) {
+        CtElement prevNode;
+        if (!insertPatches.isEmpty()) {
+            prevNode = insertPatches.get(0).right;
+        } else if (!movePatches.isEmpty()) {
+            prevNode = movePatches.get(0).getSecond().right;
+        } else if (!updatePatches.isEmpty()) {
+            prevNode = updatePatches.get(0).getFirst();
+        } else if (!deletePatches.isEmpty()) {
+            prevNode = deletePatches.get(0);
+        } else {
+            return new TreeIndex(List.of());
+        }
+        // the nodes which gumtree-spoon-ast-diff adds to the Spoon tree have no factory
+        if (prevNode instanceof CtWrapper) {
+            prevNode = prevNode.getParent();
+        }
+        return TreeIndex.of(prevNode.getFactory().getModel());
     }
 
-    /** Apply the delete patch. */
-    private static void performDeletion(CtElement toBeDeleted) {
+    private static void deleteNode(CtElement toBeDeleted, CtRole role) {
+        if (role == CtRole.MODIFIER) {
+            // modifiers only exist as nodes in the tree of GumTree
+            CtModifiable modifiable = (CtModifiable) toBeDeleted.getParent();
+            if (toBeDeleted instanceof CtVirtualElement) {
+                modifiable.setModifiers(new HashSet<>());
+            } else {
+                modifiable.removeModifier((ModifierKind) ((CtWrapper<?>) toBeDeleted).getValue());
+            }
+            return;
+        }
+        if (role == CtRole.CONTAINED_TYPE) {
+            // the compilation unit refers to its types by name, so it would keep a deleted type
+            // and resolve it again once a type with the same name is inserted
+            CtCompilationUnit compilationUnit = SpoonUtil.getTheOnlyCompilationUnit(toBeDeleted);
+            List<CtType<?>> types = new ArrayList<>(compilationUnit.getDeclaredTypes());
+            types.removeIf(type -> type == toBeDeleted);
+            compilationUnit.setDeclaredTypes(types);
+        }
         toBeDeleted.delete();
     }
 
+    /**
+     * Copies a node of the new model into the factory of the element it is inserted into. The
+     * compilation unit of a type looks it up by name in the factory of its references, so an
+     * inserted type would otherwise keep referring to the type of the new model.
+     *
+     * <p>The copy drops the metadata, which points to the GumTree tree of the new model, and its
+     * positions are moved to a compilation unit of the same file which only holds the line
+     * separators. The patched model thus never keeps the new model reachable, however many times it
+     * is patched. The sniper printer however looks the positions up in their unit, so these are
+     * kept as they are when the changes are collected for it, and dropped before printing.
+     */
+    // SourcePosition still exposes the deprecated CompilationUnit interface
+    @SuppressWarnings({"unchecked", "deprecation"})
+    private static <T extends CtElement> T copyInto(T toBeInserted, CtElement inWhichElement) {
+        T copy = (T) toBeInserted.clone();
+        List<CtElement> originalNodes = listInPreOrder(toBeInserted);
+        List<CtElement> copiedNodes = listInPreOrder(copy);
+        Factory factory = inWhichElement.getFactory();
+        boolean relocatesPositions =
+                ChangeCollector.getChangeCollector(factory.getEnvironment()) == null;
+        Map<CompilationUnit, CompilationUnit> detachedUnits = new IdentityHashMap<>();
+        for (int i = 0; i < copiedNodes.size(); i++) {
+            CtElement original = originalNodes.get(i);
+            CtElement copied = copiedNodes.get(i);
+            copied.setFactory(factory);
+            copied.setAllMetadata(null);
+            SourcePosition position = original.getPosition();
+            // the positions read along with an edit script belong to no compilation unit
+            if (relocatesPositions
+                    && position.isValidPosition()
+                    && position.getCompilationUnit() != null) {
+                CompilationUnit detachedUnit =
+                        detachedUnits.computeIfAbsent(
+                                position.getCompilationUnit(), unit -> detachUnit(unit, factory));
+                copied.setPosition(relocate(position, detachedUnit, factory.Core()));
+            }
+            if (copied instanceof CtModifiable) {
+                // cloning keeps the modifiers, but not whether they are implicit
+                Set<CtExtendedModifier> modifiers = new HashSet<>();
+                for (CtExtendedModifier modifier :
+                        ((CtModifiable) original).getExtendedModifiers()) {
+                    modifiers.add(
+                            new CtExtendedModifier(modifier.getKind(), modifier.isImplicit()));
+                }
+                ((CtModifiable) copied).setExtendedModifiers(modifiers);
+            }
+        }
+        return copy;
+    }
+
+    /** Creates an empty compilation unit of the same file in the factory. */
+    @SuppressWarnings("deprecation")
+    private static CompilationUnit detachUnit(CompilationUnit unit, Factory factory) {
+        CompilationUnit detachedUnit = factory.Core().createCompilationUnit();
+        detachedUnit.setFile(unit.getFile());
+        detachedUnit.setLineSeparatorPositions(unit.getLineSeparatorPositions());
+        return detachedUnit;
+    }
+
+    /** Returns a position with the same extents in another compilation unit. */
+    @SuppressWarnings("deprecation")
+    private static SourcePosition relocate(
+            SourcePosition position, CompilationUnit unit, CoreFactory core) {
+        int[] lineSeparators = unit.getLineSeparatorPositions();
+        if (position instanceof BodyHolderSourcePosition) {
+            BodyHolderSourcePosition bodyHolder = (BodyHolderSourcePosition) position;
+            return core.createBodyHolderSourcePosition(
+                    unit,
+                    bodyHolder.getNameStart(),
+                    bodyHolder.getNameEnd(),
+                    bodyHolder.getModifierSourceStart(),
+                    bodyHolder.getModifierSourceEnd(),
+                    bodyHolder.getDeclarationStart(),
+                    bodyHolder.getDeclarationEnd(),
+                    bodyHolder.getBodyStart(),
+                    bodyHolder.getBodyEnd(),
+                    lineSeparators);
+        }
+        if (position instanceof DeclarationSourcePosition) {
+            DeclarationSourcePosition declaration = (DeclarationSourcePosition) position;
+            DeclarationSourcePosition relocated =
+                    core.createDeclarationSourcePosition(
+                            unit,
+                            declaration.getNameStart(),
+                            declaration.getNameEnd(),
+                            declaration.getModifierSourceStart(),
+                            declaration.getModifierSourceEnd(),
+                            declaration.getDeclarationStart(),
+                            declaration.getDeclarationEnd(),
+                            lineSeparators);
+            return declaration.getDefaultValueEnd() < 0
+                    ? relocated
+                    : relocated.addDefaultValueEnd(declaration.getDefaultValueEnd());
+        }
+        if (position instanceof CompoundSourcePosition) {
+            CompoundSourcePosition compound = (CompoundSourcePosition) position;
+            return core.createCompoundSourcePosition(
+                    unit,
+                    compound.getNameStart(),
+                    compound.getNameEnd(),
+                    compound.getDeclarationStart(),
+                    compound.getDeclarationEnd(),
+                    lineSeparators);
+        }
+        return core.createSourcePosition(
+                unit, position.getSourceStart(), position.getSourceEnd(), lineSeparators);
+    }
+
+    private static List<CtElement> listInPreOrder(CtElement root) {
+        List<CtElement> nodes = new ArrayList<>();
+        new CtScanner() {
+            @Override
+            protected void enter(CtElement element) {
+                nodes.add(element);
+            }
+        }.scan(root);
+        return nodes;
+    }
+
     /** Apply the update patch. */
     private static void performUpdating(Pair<CtElement, CtElement> updatePatch) {
+        PatchOperationEvent event = new PatchOperationEvent();
         CtElement prevNode = updatePatch.getFirst();
         CtElement newNode = updatePatch.getSecond();
-        prevNode.replace(newNode);
+        CtRole role = prevNode.getRoleInParent();
+        prevNode.replace(copyInto(newNode, prevNode));
+        event.commit(PatchOperationEvent.UPDATE, role, newNode);
     }
 
-    /** Apply the insert patch. */
     @SuppressWarnings("unchecked")
-    private static void performInsertion(
-            ImmutableTriple<Integer, CtElement, CtElement> insertPatch) {
+    private static void insertNode(
+            ImmutableTriple<Integer, CtElement, CtElement> insertPatch, CtRole role) {
         int where = insertPatch.left;
         CtElement toBeInserted = insertPatch.middle;
         CtElement inWhichElement = insertPatch.right;
 
-        switch (toBeInserted.getRoleInParent()) {
+        switch (role) {
             case STATEMENT:
                 ((CtStatementList) inWhichElement)
-                        .addStatement(where, (CtStatement) toBeInserted.clone());
+                        .addStatement(where, (CtStatement) copyInto(toBeInserted, inWhichElement));
                 break;
             case ARGUMENT:
                 ((CtAbstractInvocation<?>) inWhichElement)
-                        .addArgumentAt(where, (CtExpression<?>) toBeInserted);
+                        .addArgumentAt(
+                                where, (CtExpression<?>) copyInto(toBeInserted, inWhichElement));
                 break;
             case TYPE_MEMBER:
-                ((CtType<?>) inWhichElement).addTypeMemberAt(where, (CtTypeMember) toBeInserted);
+                ((CtType<?>) inWhichElement)
+                        .addTypeMemberAt(
+                                where, (CtTypeMember) copyInto(toBeInserted, inWhichElement));
                 break;
             case TYPE_PARAMETER:
                 ((CtFormalTypeDeclarer) inWhichElement)
-                        .addFormalCtTypeParameterAt(where, (CtTypeParameter) toBeInserted);
+                        .addFormalCtTypeParameterAt(
+                                where, (CtTypeParameter) copyInto(toBeInserted, inWhichElement));
                 break;
             case PARAMETER:
                 ((CtExecutable<?>) inWhichElement)
-                        .addParameterAt(where, (CtParameter<?>) toBeInserted);
+                        .addParameterAt(
+                                where, (CtParameter<?>) copyInto(toBeInserted, inWhichElement));
                 break;
             case THROWN:
-                Set<CtTypeReference<? extends Throwable>> thrownTypesCopy =
-                        new HashSet<>(
-                                ((CtExecutable<?>) toBeInserted.getParent()).getThrownTypes());
+                Set<CtTypeReference<? extends Throwable>> thrownTypesCopy = new HashSet<>();
+                for (CtTypeReference<? extends Throwable> thrownType :
+                        ((CtExecutable<?>) toBeInserted.getParent()).getThrownTypes()) {
+                    thrownTypesCopy.add(copyInto(thrownType, inWhichElement));
+                }
                 ((CtExecutable<?>) inWhichElement).setThrownTypes(thrownTypesCopy);
                 break;
             case CONTAINED_TYPE:
                 // Inserting into CtPackage
-                ((CtPackage) inWhichElement).addType((CtType<?>) toBeInserted.clone());
+                CtType<?> insertedType = (CtType<?>) copyInto(toBeInserted, inWhichElement);
+                ((CtPackage) inWhichElement).addType(insertedType);
 
                 // Inserting into CtCompilationUnit
                 CtCompilationUnit inWhichCompilationUnit =
                         SpoonUtil.getTheOnlyCompilationUnit(inWhichElement);
                 List<CtType<?>> types = new ArrayList<>(inWhichCompilationUnit.getDeclaredTypes());
-                types.add(where, (CtType<?>) toBeInserted);
+                types.add(where, insertedType);
                 inWhichCompilationUnit.setDeclaredTypes(types);
                 break;
             case MODIFIER:
@@ -120,37 +397,244 @@ public class PatchApplication {
                 break;
             case CASE:
                 ((CtAbstractSwitch<Object>) inWhichElement)
-                        .addCaseAt(where, (CtCase<? super Object>) toBeInserted);
+                        .addCaseAt(
+                                where,
+                                (CtCase<? super Object>) copyInto(toBeInserted, inWhichElement));
                 break;
             case EXPRESSION:
+                CtExpression<Object> insertedExpression =
+                        (CtExpression<Object>) copyInto(toBeInserted, inWhichElement);
                 List<CtExpression<Object>> caseExpressions =
                         ((CtCase<Object>) inWhichElement).getCaseExpressions();
                 if (caseExpressions.isEmpty()) {
-                    ((CtCase<Object>) inWhichElement)
-                            .addCaseExpression((CtExpression<Object>) toBeInserted);
+                    ((CtCase<Object>) inWhichElement).addCaseExpression(insertedExpression);
                 } else {
-                    caseExpressions.add(where, (CtExpression<Object>) toBeInserted);
+                    // the list is set again so that the change is reported to the model listeners
+                    List<CtExpression<Object>> newCaseExpressions =
+                            new ArrayList<>(caseExpressions);
+                    newCaseExpressions.add(where, insertedExpression);
+                    ((CtCase<Object>) inWhichElement).setCaseExpressions(newCaseExpressions);
                 }
                 break;
             case ANNOTATION:
                 // it is necessary to copy annotations because it returns an unmodifiable list
                 List<CtAnnotation<?>> annotations =
                         new ArrayList<>(inWhichElement.getAnnotations());
-                annotations.add(where, (CtAnnotation<?>) toBeInserted);
+                annotations.add(where, (CtAnnotation<?>) copyInto(toBeInserted, inWhichElement));
                 inWhichElement.setAnnotations(annotations);
                 break;
             default:
-                inWhichElement.setValueByRole(toBeInserted.getRoleInParent(), toBeInserted);
+                inWhichElement.setValueByRole(role, copyInto(toBeInserted, inWhichElement));
                 break;
         }
     }
 
-    private static void performMovement(
-            Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>> movePatch) {
-        CtElement toBeDeleted = movePatch.getFirst();
-        ImmutableTriple<Integer, CtElement, CtElement> toBeInserted = movePatch.getSecond();
+    /**
+     * Deletions and insertions of the children of the previous model, grouped by parent and role.
+     * Patches on a node which is not part of a list are applied right away.
+     */
+    private static class ChildListEdits {
+        private static final Set<CtRole> LIST_ROLES =
+                EnumSet.of(
+                        CtRole.STATEMENT,
+                        CtRole.ARGUMENT,
+                        CtRole.TYPE_MEMBER,
+                        CtRole.TYPE_PARAMETER,
+                        CtRole.PARAMETER,
+                        CtRole.CASE,
+                        CtRole.EXPRESSION,
+                        CtRole.ANNOTATION);
 
-        performDeletion(toBeDeleted);
-        performInsertion(toBeInserted);
+        private final Map<CtElement, Map<CtRole, ChildListEdit>> edits = new IdentityHashMap<>();
+        private final Set<CtElement> executablesWithThrownTypes =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+        private final TreeIndex prevIndex;
+
+        /**
+         * Creates the edits of a model.
+         *
+         * @param prevIndex index of the model, which orders the edited lists
+         */
+        ChildListEdits(TreeIndex prevIndex) {
+            this.prevIndex = prevIndex;
+        }
+
+        /** Records the deletion of the node. */
+        void delete(CtElement toBeDeleted) {
+            PatchOperationEvent event = new PatchOperationEvent();
+            CtRole role = toBeDeleted.getRoleInParent();
+            remove(
+                    toBeDeleted,
+                    role,
+                    () -> event.commit(PatchOperationEvent.DELETE, role, toBeDeleted));
+        }
+
+        /** Records the removal of a moved node, whose event is committed by its insertion. */
+        void detach(CtElement toBeMoved) {
+            remove(toBeMoved, toBeMoved.getRoleInParent(), () -> {});
+        }
+
+        private void remove(CtElement toBeRemoved, CtRole role, Runnable commitEvent) {
+            CtElement parent = toBeRemoved.getParent();
+            if (LIST_ROLES.contains(role) && parent.getValueByRole(role) instanceof List) {
+                getEdit(parent, role).delete(toBeRemoved, commitEvent);
+            } else {
+                deleteNode(toBeRemoved, role);
+                commitEvent.run();
+            }
+        }
+
+        /**
+         * Records the insertion of the node.
+         *
+         * @param insertPatch patch of the inserted node
+         * @param operation operation reported by the event of the patch
+         */
+        void insert(ImmutableTriple<Integer, CtElement, CtElement> insertPatch, String operation) {
+            PatchOperationEvent event = new PatchOperationEvent();
+            int where = insertPatch.left;
+            CtElement toBeInserted = insertPatch.middle;
+            CtElement inWhichElement = insertPatch.right;
+            CtRole role = toBeInserted.getRoleInParent();
+            Runnable commitEvent = () -> event.commit(operation, role, toBeInserted);
+            if (LIST_ROLES.contains(role) && where >= 0) {
+                getEdit(inWhichElement, role)
+                        .insert(where, copyInto(toBeInserted, inWhichElement), commitEvent);
+            } else if (role == CtRole.CONTAINED_TYPE) {
+                CtType<?> insertedType = (CtType<?>) copyInto(toBeInserted, inWhichElement);
+                ((CtPackage) inWhichElement).addType(insertedType);
+                getEdit(SpoonUtil.getTheOnlyCompilationUnit(inWhichElement), role)
+                        .insert(where, insertedType, commitEvent);
+            } else {
+                // all the thrown types of the new executable are copied by the first insertion
+                if (role != CtRole.THROWN || executablesWithThrownTypes.add(inWhichElement)) {
+                    insertNode(insertPatch, role);
+                }
+                commitEvent.run();
+            }
+        }
+
+        /**
+         * Rebuilds every list which has been edited, in the pre-order of their parents, so that the
+         * events of the patches are committed in the same order on every run. The compilation
+         * units, which are not part of the index, come last.
+         */
+        void apply() {
+            List<CtElement> parents = new ArrayList<>(edits.keySet());
+            parents.sort(
+                    Comparator.comparingInt(
+                            parent ->
+                                    prevIndex.contains(parent)
+                                            ? prevIndex.getPreOrder(parent)
+                                            : Integer.MAX_VALUE));
+            for (CtElement parent : parents) {
+                for (var roleAndEdit : edits.get(parent).entrySet()) {
+                    roleAndEdit.getValue().apply(parent, roleAndEdit.getKey());
+                }
+            }
+        }
+
+        private ChildListEdit getEdit(CtElement parent, CtRole role) {
+            return edits.computeIfAbsent(parent, p -> new EnumMap<>(CtRole.class))
+                    .computeIfAbsent(role, r -> new ChildListEdit());
+        }
+    }
+
+    /** Subtrees of the previous model removed by the delete patches. */
+    private static class DeletedSubtrees {
+        private final TreeIndex prevIndex;
+        private final List<CtElement> roots = new ArrayList<>();
+        private final int[] preOrders;
+
+        /**
+         * Collects the deleted subtrees which are part of the index, in pre-order.
+         *
+         * @param deletePatches deleted nodes
+         * @param prevIndex index of the previous model built before it is patched
+         */
+        DeletedSubtrees(List<CtElement> deletePatches, TreeIndex prevIndex) {
+            this.prevIndex = prevIndex;
+            for (CtElement deleted : deletePatches) {
+                if (prevIndex.contains(deleted)) {
+                    roots.add(deleted);
+                }
+            }
+            roots.sort(Comparator.comparingInt(prevIndex::getPreOrder));
+            preOrders = roots.stream().mapToInt(prevIndex::getPreOrder).toArray();
+        }
+
+        /** Returns whether the node is a strict descendant of a deleted node. */
+        boolean containsDescendant(CtElement element) {
+            if (roots.isEmpty() || !prevIndex.contains(element)) {
+                return false;
+            }
+            // the closest deleted node preceding the node in pre-order is its only candidate
+            // ancestor, as the deleted subtrees never overlap
+            int slot = Arrays.binarySearch(preOrders, prevIndex.getPreOrder(element));
+            int closest = slot >= 0 ? slot - 1 : -slot - 2;
+            return closest >= 0 && prevIndex.isAncestor(roots.get(closest), element);
+        }
+    }
+
+    /** Deletions and insertions to be applied on a single list of children. */
+    private static class ChildListEdit {
+        private final Set<CtElement> deleted = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final List<Pair<Integer, CtElement>> inserted = new ArrayList<>();
+        private final List<Runnable> pendingEvents = new ArrayList<>();
+
+        private void delete(CtElement toBeDeleted, Runnable commitEvent) {
+            deleted.add(toBeDeleted);
+            pendingEvents.add(commitEvent);
+        }
+
+        private void insert(int where, CtElement toBeInserted, Runnable commitEvent) {
+            inserted.add(new Pair<>(where, toBeInserted));
+            pendingEvents.add(commitEvent);
+        }
+
+        /**
+         * Replaces the list with the children which are not deleted, interleaved with the inserted
+         * nodes at their index in the new model.
+         */
+        @SuppressWarnings("unchecked")
+        private void apply(CtElement parent, CtRole role) {
+            List<? extends CtElement> children =
+                    parent instanceof CtCompilationUnit
+                            ? ((CtCompilationUnit) parent).getDeclaredTypes()
+                            : parent.getValueByRole(role);
+            // a stable sort keeps the order of the patches inserted at the same index
+            inserted.sort(Comparator.comparingInt(Pair::getFirst));
+            List<CtElement> editedChildren = new ArrayList<>(children.size() + inserted.size());
+            int nextInserted = 0;
+            for (CtElement child : children) {
+                if (deleted.contains(child)) {
+                    continue;
+                }
+                nextInserted = addInsertedUpTo(editedChildren, nextInserted);
+                editedChildren.add(child);
+            }
+            for (; nextInserted < inserted.size(); nextInserted++) {
+                editedChildren.add(inserted.get(nextInserted).getSecond());
+            }
+
+            if (parent instanceof CtCompilationUnit) {
+                List<CtType<?>> types = new ArrayList<>();
+                editedChildren.forEach(type -> types.add((CtType<?>) type));
+                ((CtCompilationUnit) parent).setDeclaredTypes(types);
+            } else {
+                parent.setValueByRole(role, editedChildren);
+            }
+            pendingEvents.forEach(Runnable::run);
+        }
+
+        /** Adds the inserted nodes whose index is already reached, returning the next one. */
+        private int addInsertedUpTo(List<CtElement> editedChildren, int nextInserted) {
+            while (nextInserted < inserted.size()
+                    && inserted.get(nextInserted).getFirst() <= editedChildren.size()) {
+                editedChildren.add(inserted.get(nextInserted).getSecond());
+                nextInserted++;
+            }
+            return nextInserted;
+        }
     }
 }
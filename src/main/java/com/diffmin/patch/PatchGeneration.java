@@ -3,6 +3,7 @@ package com.diffmin.patch;
 import com.diffmin.SpoonMapping;
 import com.diffmin.util.Pair;
 import com.diffmin.util.SpoonUtil;
+import com.diffmin.util.TreeIndex;
 import com.github.gumtreediff.actions.model.Delete;
 import com.github.gumtreediff.actions.model.Insert;
 import com.github.gumtreediff.actions.model.Move;
@@ -11,8 +12,13 @@ import gumtree.spoon.diff.Diff;
 import gumtree.spoon.diff.operations.Operation;
 import gumtree.spoon.diff.operations.UpdateOperation;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.stream.IntStream;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import org.apache.commons.lang3.tuple.ImmutableTriple;
 import spoon.reflect.code.CtAbstractInvocation;
 import spoon.reflect.code.CtAbstractSwitch;
@@ -33,6 +39,8 @@ public class PatchGeneration {
             new ArrayList<>();
     private final List<Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>>>
             movePatches = new ArrayList<>();
+    private TreeIndex prevIndex;
+    private int diffs;
 
     /** Returns the delete patches. */
     public List<CtElement> getDeletePatches() {
@@ -54,49 +62,133 @@ public class PatchGeneration {
         return movePatches;
     }
 
+    /**
+     * Returns the index of the previous model built while mapping the diff, which patch application
+     * reuses, or null if the patches come from several diffs.
+     */
+    public TreeIndex getPrevIndex() {
+        return diffs == 1 ? prevIndex : null;
+    }
+
     @SuppressWarnings("rawtypes")
-    private List<Operation> getRootOperations(Diff diff) {
+    private static List<Operation> getRootOperations(Diff diff, SpoonMapping mapping) {
         List<Operation> operations = diff.getRootOperations();
-        List<Operation> rootOperations = new ArrayList<>();
-
-        for (Operation<?> operation : operations) {
-            if (isRootOperation(operation, rootOperations)) {
-                rootOperations.add(operation);
+        List<Integer> updateIndices = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            if (operations.get(i) instanceof UpdateOperation) {
+                updateIndices.add(i);
             }
         }
+        if (updateIndices.size() < 2) {
+            return operations;
+        }
 
+        boolean[] dropped = getUpdatesWithUpdatedAncestor(operations, updateIndices, mapping);
+        List<Operation> rootOperations = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            // assuming that insert, delete, and move root operations are correctly computed by
+            // gumtree-spoon-ast-diff
+            if (!dropped[i]) {
+                rootOperations.add(operations.get(i));
+            }
+        }
         return rootOperations;
     }
 
+    /**
+     * Marks the update operations applied on a node which is a descendant of another node updated
+     * by a preceding operation.
+     *
+     * <p>The updates are visited in the pre-order of their nodes, keeping the updated ancestors of
+     * the current node on a stack, along with the index of the first update applied on each of them
+     * or on their ancestors. An ancestor is popped once the current node falls outside of its
+     * subtree, which the index of the source tree tells without walking up the parents. The nodes
+     * which gumtree-spoon-ast-diff adds to the Spoon tree, such as the modifiers, are not indexed
+     * and are visited as leaves right after their closest indexed ancestor.
+     */
     @SuppressWarnings("rawtypes")
-    private boolean isRootOperation(Operation<?> operation, List<Operation> rootOperations) {
-        // assuming that insert, delete, and move root operations are correctly computed by
-        // gumtree-spoon-ast-diff
-        return !(operation instanceof UpdateOperation)
-                // excludes update operations if they are applied on node which is a descendant
-                // of another node and it is also being updated
-                || rootOperations.stream()
-                        .filter(UpdateOperation.class::isInstance)
-                        .map(Operation::getSrcNode)
-                        .noneMatch(
-                                rootOperationSrcNode ->
-                                        operation.getSrcNode().hasParent(rootOperationSrcNode));
+    private static boolean[] getUpdatesWithUpdatedAncestor(
+            List<Operation> operations, List<Integer> updateIndices, SpoonMapping mapping) {
+        TreeIndex index = mapping.getSrcIndex();
+        int[] preOrders = new int[operations.size()];
+        boolean[] notIndexed = new boolean[operations.size()];
+        for (int i : updateIndices) {
+            CtElement node = operations.get(i).getSrcNode();
+            notIndexed[i] = !index.contains(node);
+            while (!index.contains(node)) {
+                node = node.getParent();
+            }
+            preOrders[i] = index.getPreOrder(node);
+        }
+        updateIndices.sort(
+                Comparator.comparingInt((Integer i) -> preOrders[i])
+                        .thenComparing(i -> notIndexed[i])
+                        .thenComparingInt(i -> i));
+
+        boolean[] dropped = new boolean[operations.size()];
+        int[] ancestorPreOrders = new int[updateIndices.size()];
+        int[] ancestorLastDescendants = new int[updateIndices.size()];
+        int[] firstAncestorUpdates = new int[updateIndices.size()];
+        int top = -1;
+        for (int i : updateIndices) {
+            int preOrder = preOrders[i];
+            while (top >= 0 && ancestorLastDescendants[top] < preOrder) {
+                top--;
+            }
+            int firstStrictAncestorUpdate;
+            if (notIndexed[i]) {
+                // the closest indexed ancestor is on top of the stack if it is updated
+                firstStrictAncestorUpdate =
+                        top >= 0 ? firstAncestorUpdates[top] : Integer.MAX_VALUE;
+            } else if (top >= 0 && ancestorPreOrders[top] == preOrder) {
+                // the node has already been updated by a preceding operation
+                firstStrictAncestorUpdate =
+                        top > 0 ? firstAncestorUpdates[top - 1] : Integer.MAX_VALUE;
+            } else {
+                CtElement node = operations.get(i).getSrcNode();
+                firstStrictAncestorUpdate =
+                        top >= 0 ? firstAncestorUpdates[top] : Integer.MAX_VALUE;
+                top++;
+                ancestorPreOrders[top] = preOrder;
+                ancestorLastDescendants[top] = preOrder + index.getSubtreeSize(node) - 1;
+                firstAncestorUpdates[top] = Math.min(firstStrictAncestorUpdate, i);
+            }
+            dropped[i] = firstStrictAncestorUpdate < i;
+        }
+        return dropped;
     }
 
     /** Generates the patches. */
     public void generatePatch(Diff diff) {
+        generatePatch(diff, SpoonMapping.fromGumTreeMappingLazily(diff.getMappingsComp()));
+    }
+
+    /**
+     * Generates the patches using a mapping which has already been inferred from the diff.
+     *
+     * @param diff diff between the previous and the new model
+     * @param mapping mapping inferred from the mappings of the diff
+     */
+    public void generatePatch(Diff diff, SpoonMapping mapping) {
+        prevIndex = mapping.getSrcIndex();
+        diffs++;
         @SuppressWarnings("rawtypes")
-        List<Operation> operations = getRootOperations(diff);
-        SpoonMapping mapping = SpoonMapping.fromGumTreeMapping(diff.getMappingsComp());
+        List<Operation> operations = getRootOperations(diff, mapping);
+        ChildPositions childPositions = new ChildPositions();
         for (Operation<?> operation : operations) {
             if (operation.getAction() instanceof Delete) {
                 deletePatches.add(delete(operation.getSrcNode()));
             } else if (operation.getAction() instanceof Update) {
                 updatePatches.add(update(operation.getSrcNode(), operation.getDstNode()));
             } else if (operation.getAction() instanceof Insert) {
-                insertPatches.add(insert(operation.getSrcNode(), mapping));
+                insertPatches.add(insert(operation.getSrcNode(), mapping, childPositions));
             } else if (operation.getAction() instanceof Move) {
-                movePatches.add(move(operation.getSrcNode(), operation.getDstNode(), mapping));
+                movePatches.add(
+                        move(
+                                operation.getSrcNode(),
+                                operation.getDstNode(),
+                                mapping,
+                                childPositions));
             }
         }
     }
@@ -110,70 +202,93 @@ public class PatchGeneration {
     }
 
     private static ImmutableTriple<Integer, CtElement, CtElement> insert(
-            CtElement insertedNode, SpoonMapping mapping) {
-
-        InsertionUtil iUtil =
-                new InsertionUtil() {
-
-                    /** Computes the index at which the `insertedNode` has to be inserted. */
-                    @Override
-                    public int getSrcNodeIndex(CtElement srcNode) {
-                        CtElement srcNodeParent = srcNode.getParent();
-                        if (srcNodeParent.getValueByRole(srcNode.getRoleInParent()) instanceof List
-                                || srcNode.getRoleInParent() == CtRole.CONTAINED_TYPE) {
-                            List<? extends CtElement> newCollectionList =
-                                    getCollectionElementList(srcNode);
-                            return IntStream.range(0, newCollectionList.size())
-                                    .filter((i) -> newCollectionList.get(i) == srcNode)
-                                    .findFirst()
-                                    .getAsInt();
-                        }
-                        return -1;
-                    }
-
-                    /** Returns the corresponding list of elements in parent. */
-                    private List<? extends CtElement> getCollectionElementList(CtElement element) {
-                        switch (element.getRoleInParent()) {
-                            case STATEMENT:
-                                return ((CtStatementList) element.getParent()).getStatements();
-                            case ARGUMENT:
-                                return ((CtAbstractInvocation<?>) element.getParent())
-                                        .getArguments();
-                            case TYPE_MEMBER:
-                                return ((CtType<?>) element.getParent()).getTypeMembers();
-                            case TYPE_PARAMETER:
-                                return ((CtFormalTypeDeclarer) element.getParent())
-                                        .getFormalCtTypeParameters();
-                            case PARAMETER:
-                                return ((CtExecutable<?>) element.getParent()).getParameters();
-                            case CONTAINED_TYPE:
-                                CtCompilationUnit cu = SpoonUtil.getTheOnlyCompilationUnit(element);
-                                return cu.getDeclaredTypes();
-                            case CASE:
-                                return ((CtAbstractSwitch<?>) element.getParent()).getCases();
-                            case EXPRESSION:
-                                return ((CtCase<?>) element.getParent()).getCaseExpressions();
-                            case ANNOTATION:
-                                return element.getParent().getAnnotations();
-                            default:
-                                throw new UnsupportedOperationException(
-                                        "Unsupported role: " + element.getRoleInParent());
-                        }
-                    }
-                };
-        int srcNodeIndex = iUtil.getSrcNodeIndex(insertedNode);
+            CtElement insertedNode, SpoonMapping mapping, ChildPositions childPositions) {
+        int srcNodeIndex = childPositions.getSrcNodeIndex(insertedNode);
         CtElement parentElementInPrevModel = mapping.get(insertedNode.getParent());
         return new ImmutableTriple<>(srcNodeIndex, insertedNode, parentElementInPrevModel);
     }
 
-    private interface InsertionUtil {
-        int getSrcNodeIndex(CtElement element);
+    /**
+     * Positions of the nodes of the new model among their siblings. The siblings sharing a parent
+     * and a role are indexed together the first time one of them is looked up, so that inserting
+     * many nodes into the same list does not scan it again for each node.
+     */
+    private static class ChildPositions {
+        private static final Map<CtElement, Integer> NOT_A_COLLECTION = Collections.emptyMap();
+
+        private final Map<CtElement, Map<CtRole, Map<CtElement, Integer>>> positions =
+                new IdentityHashMap<>();
+
+        /** Computes the index at which the `insertedNode` has to be inserted. */
+        int getSrcNodeIndex(CtElement srcNode) {
+            Map<CtElement, Integer> siblingPositions =
+                    positions
+                            .computeIfAbsent(
+                                    srcNode.getParent(), parent -> new EnumMap<>(CtRole.class))
+                            .computeIfAbsent(
+                                    srcNode.getRoleInParent(), role -> indexSiblings(srcNode));
+            if (siblingPositions == NOT_A_COLLECTION) {
+                return -1;
+            }
+            Integer index = siblingPositions.get(srcNode);
+            if (index == null) {
+                throw new NoSuchElementException(
+                        "Node is missing from the children of its parent: " + srcNode);
+            }
+            return index;
+        }
+
+        private static Map<CtElement, Integer> indexSiblings(CtElement srcNode) {
+            CtElement srcNodeParent = srcNode.getParent();
+            if (!(srcNodeParent.getValueByRole(srcNode.getRoleInParent()) instanceof List)
+                    && srcNode.getRoleInParent() != CtRole.CONTAINED_TYPE) {
+                return NOT_A_COLLECTION;
+            }
+            List<? extends CtElement> newCollectionList = getCollectionElementList(srcNode);
+            Map<CtElement, Integer> siblingPositions = new IdentityHashMap<>();
+            for (int i = 0; i < newCollectionList.size(); i++) {
+                siblingPositions.putIfAbsent(newCollectionList.get(i), i);
+            }
+            return siblingPositions;
+        }
+
+        /** Returns the corresponding list of elements in parent. */
+        private static List<? extends CtElement> getCollectionElementList(CtElement element) {
+            switch (element.getRoleInParent()) {
+                case STATEMENT:
+                    return ((CtStatementList) element.getParent()).getStatements();
+                case ARGUMENT:
+                    return ((CtAbstractInvocation<?>) element.getParent()).getArguments();
+                case TYPE_MEMBER:
+                    return ((CtType<?>) element.getParent()).getTypeMembers();
+                case TYPE_PARAMETER:
+                    return ((CtFormalTypeDeclarer) element.getParent()).getFormalCtTypeParameters();
+                case PARAMETER:
+                    return ((CtExecutable<?>) element.getParent()).getParameters();
+                case CONTAINED_TYPE:
+                    CtCompilationUnit cu = SpoonUtil.getTheOnlyCompilationUnit(element);
+                    return cu.getDeclaredTypes();
+                case CASE:
+                    return ((CtAbstractSwitch<?>) element.getParent()).getCases();
+                case EXPRESSION:
+                    return ((CtCase<?>) element.getParent()).getCaseExpressions();
+                case ANNOTATION:
+                    return element.getParent().getAnnotations();
+                default:
+                    throw new UnsupportedOperationException(
+                            "Unsupported role: " + element.getRoleInParent());
+            }
+        }
     }
 
     private static Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>> move(
-            CtElement srcNode, CtElement dstNode, SpoonMapping mapping) {
+            CtElement srcNode,
+            CtElement dstNode,
+            SpoonMapping mapping,
+            ChildPositions childPositions) {
         CtElement deletedNode = delete(srcNode);
-        ImmutableTriple<Integer, CtElement, CtElement> insertedNode = insert(dstNode, mapping);
+        ImmutableTriple<Integer, CtElement, CtElement> insertedNode =
+                insert(dstNode, mapping, childPositions);
         return new Pair<>(deletedNode, insertedNode);
     }
 }
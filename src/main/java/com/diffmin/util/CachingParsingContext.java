@@ -0,0 +1,221 @@
+package com.diffmin.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import spoon.compiler.SpoonFile;
+import spoon.compiler.SpoonResource;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtCompilationUnit;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtModifiable;
+import spoon.reflect.declaration.CtPackage;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.support.reflect.CtExtendedModifier;
+import spoon.support.visitor.equals.CloneHelper;
+
+/**
+ * Parsing context which keeps the models it builds in a least-recently-used cache keyed by a hash
+ * of the source and the path of its file.
+ *
+ * <p>Patch application mutates the previous model in place, so the cached models are never handed
+ * out. Every call returns a copy of the cached model backed by a fresh {@link Factory}, which is
+ * much cheaper than parsing the source again. The cache is bounded by the total length of the
+ * sources it holds, which is a proxy for the heap used by their models.
+ */
+public class CachingParsingContext extends ParsingContext {
+    private final long maxCachedBytes;
+    private final Map<String, CachedModel> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructs a cache.
+     *
+     * @param maxCachedBytes maximum total length of the sources whose models are kept
+     */
+    public CachingParsingContext(long maxCachedBytes) {
+        if (maxCachedBytes < 0) {
+            throw new IllegalArgumentException(
+                    "Maximum cache size must not be negative: " + maxCachedBytes);
+        }
+        this.maxCachedBytes = maxCachedBytes;
+    }
+
+    /**
+     * Returns a copy of the cached model of the resource, building and caching the model first if
+     * the same file has not been seen with the same source before. Resources other than files are
+     * not cached.
+     *
+     * @param resource program whose model needs to be built
+     * @return model of the program which is safe to mutate
+     */
+    @Override
+    public CtModel buildModel(SpoonResource resource) {
+        if (!(resource instanceof SpoonFile)) {
+            return super.buildModel(resource);
+        }
+        byte[] content = readContent((SpoonFile) resource);
+        String key = computeKey(resource.getPath(), content);
+        CachedModel cachedModel = lookUp(key);
+        if (cachedModel == null) {
+            cachedModel = new CachedModel(super.buildModel(resource), content.length);
+            store(key, cachedModel);
+        }
+        return cachedModel.copy(createFactory());
+    }
+
+    /** Returns the number of models currently cached. */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /** Returns the number of builds served from the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of builds which required parsing the source. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private synchronized CachedModel lookUp(String key) {
+        CachedModel cachedModel = cache.get(key);
+        if (cachedModel == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return cachedModel;
+    }
+
+    private synchronized void store(String key, CachedModel cachedModel) {
+        if (cachedModel.sourceLength > maxCachedBytes) {
+            return;
+        }
+        CachedModel previous = cache.put(key, cachedModel);
+        if (previous != null) {
+            cachedBytes -= previous.sourceLength;
+        }
+        cachedBytes += cachedModel.sourceLength;
+        var iterator = cache.values().iterator();
+        while (cachedBytes > maxCachedBytes) {
+            cachedBytes -= iterator.next().sourceLength;
+            iterator.remove();
+        }
+    }
+
+    private static byte[] readContent(SpoonFile file) {
+        try (InputStream content = file.getContent()) {
+            return content.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String computeKey(String path, byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported", e);
+        }
+        // the path is part of the key as the compilation units and positions of the copies refer to
+        // the file of the cached model
+        digest.update(path.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] hash = digest.digest(content);
+        StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /** A model which is only ever read, in order to create copies of it. */
+    private static class CachedModel {
+        private final CtModel model;
+        private final int sourceLength;
+
+        private CachedModel(CtModel model, int sourceLength) {
+            this.model = model;
+            this.sourceLength = sourceLength;
+        }
+
+        /**
+         * Copies the types and compilation units of the cached model into the given factory. Spoon
+         * lazily initialises parts of a model while it is read, so copies are made one at a time.
+         */
+        // CompilationUnitFactory still exposes the deprecated CompilationUnit interface
+        @SuppressWarnings("deprecation")
+        private synchronized CtModel copy(Factory factory) {
+            Factory cachedFactory = model.getUnnamedModule().getFactory();
+            ModelCloneHelper cloneHelper = new ModelCloneHelper(factory);
+            for (CtType<?> type : model.getAllTypes()) {
+                if (type.isTopLevel()) {
+                    getOrCreatePackage(factory, type.getPackage()).addType(cloneHelper.clone(type));
+                }
+            }
+            for (var pathAndCu : cachedFactory.CompilationUnit().getMap().entrySet()) {
+                CtCompilationUnit cu = pathAndCu.getValue();
+                CtCompilationUnit copiedCu =
+                        factory.CompilationUnit().getOrCreate(pathAndCu.getKey());
+                copiedCu.setFile(cu.getFile());
+                copiedCu.setLineSeparatorPositions(cu.getLineSeparatorPositions());
+                if (cu.getPackageDeclaration() != null) {
+                    copiedCu.setPackageDeclaration(cloneHelper.clone(cu.getPackageDeclaration()));
+                }
+                copiedCu.setImports(cloneHelper.clone(cu.getImports()));
+                copiedCu.setDeclaredTypeReferences(
+                        cloneHelper.clone(cu.getDeclaredTypeReferences()));
+            }
+            CtModel copiedModel = factory.getModel();
+            copiedModel.setBuildModelIsFinished(true);
+            return copiedModel;
+        }
+
+        private static CtPackage getOrCreatePackage(Factory factory, CtPackage cachedPackage) {
+            if (cachedPackage.isUnnamedPackage()) {
+                return factory.getModel().getRootPackage();
+            }
+            return factory.Package().getOrCreate(cachedPackage.getQualifiedName());
+        }
+    }
+
+    /** Clones elements of the cached model into the factory of a copied model. */
+    private static class ModelCloneHelper extends CloneHelper {
+        private final Factory factory;
+
+        private ModelCloneHelper(Factory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public void tailor(CtElement topLevelElement, CtElement topLevelClone) {
+            super.tailor(topLevelElement, topLevelClone);
+            topLevelClone.setFactory(factory);
+            if (topLevelElement instanceof CtModifiable) {
+                // the clone builder copies the modifiers without keeping them implicit
+                Set<CtExtendedModifier> modifiers = new HashSet<>();
+                for (CtExtendedModifier modifier :
+                        ((CtModifiable) topLevelElement).getExtendedModifiers()) {
+                    CtExtendedModifier copiedModifier =
+                            new CtExtendedModifier(modifier.getKind(), modifier.isImplicit());
+                    copiedModifier.setPosition(modifier.getPosition());
+                    modifiers.add(copiedModifier);
+                }
+                ((CtModifiable) topLevelClone).setExtendedModifiers(modifiers);
+            }
+        }
+    }
+}
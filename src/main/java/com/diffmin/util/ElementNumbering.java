@@ -0,0 +1,92 @@
+package com.diffmin.util;
+
+import java.util.Arrays;
+import spoon.reflect.declaration.CtElement;
+
+/**
+ * Numbers given to Spoon nodes in the order they are added, starting from 0. The numbers are looked
+ * up in an open-addressing table keyed by the identity of the nodes, which holds no object per
+ * node. An instance is meant to be filled by a single thread.
+ */
+public class ElementNumbering {
+    /** Number returned for a node which has not been numbered. */
+    public static final int UNNUMBERED = -1;
+
+    private Object[] keys = new Object[16];
+    private int[] numbers = new int[16];
+    private CtElement[] elements = new CtElement[8];
+    private int size;
+
+    /** Returns the number of numbered nodes. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the node with the number.
+     *
+     * @param number number of the node, between 0 and {@link #size()}
+     * @return node with the number
+     */
+    public CtElement getElement(int number) {
+        return elements[number];
+    }
+
+    /**
+     * Returns the number of the node, or {@link #UNNUMBERED} if it has not been numbered.
+     *
+     * @param element node to look up
+     * @return number of the node
+     */
+    public int getNumber(CtElement element) {
+        int slot = findSlot(keys, element);
+        return keys[slot] == null ? UNNUMBERED : numbers[slot];
+    }
+
+    /**
+     * Returns the number of the node, giving it the next number if it has not been numbered.
+     *
+     * @param element node to look up
+     * @return number of the node
+     */
+    public int getOrAddNumber(CtElement element) {
+        int slot = findSlot(keys, element);
+        if (keys[slot] != null) {
+            return numbers[slot];
+        }
+        keys[slot] = element;
+        numbers[slot] = size;
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+        elements[size] = element;
+        size++;
+        // keeps the table at most half full
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    private void rehash() {
+        Object[] newKeys = new Object[keys.length * 2];
+        int[] newNumbers = new int[newKeys.length];
+        for (int number = 0; number < size; number++) {
+            int slot = findSlot(newKeys, elements[number]);
+            newKeys[slot] = elements[number];
+            newNumbers[slot] = number;
+        }
+        keys = newKeys;
+        numbers = newNumbers;
+    }
+
+    /** Returns the slot holding the node, or the empty slot where it would be added. */
+    private static int findSlot(Object[] keys, Object element) {
+        int mask = keys.length - 1;
+        int slot = System.identityHashCode(element) & mask;
+        while (keys[slot] != null && keys[slot] != element) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,184 @@
+package com.diffmin.util;
+
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.path.CtRole;
+
+/**
+ * Events emitted to the JDK Flight Recorder while patching, so that the time spent by diffmin can
+ * be told apart from the frames of Spoon and GumTree in a recording.
+ *
+ * <p>The events are enabled in any recording, for instance one started with {@code
+ * -XX:StartFlightRecording}. While no recording is running, the fields of an event are never
+ * computed and the event itself is usually optimized away by the JIT.
+ */
+public class FlightRecorderEvents {
+    private static final String CATEGORY = "diffmin";
+
+    /** Override constructor to prevent instantiating of this class (RSPEC-1118). */
+    private FlightRecorderEvents() {
+        throw new IllegalStateException("Utility classes should not be instantiated");
+    }
+
+    /**
+     * Runs the action within a {@link PhaseEvent}.
+     *
+     * @param phase phase the action belongs to
+     * @param action action to be recorded
+     * @param <T> type of the result of the action
+     * @return result of the action
+     */
+    public static <T> T recordPhase(PhaseMetrics.Phase phase, Supplier<T> action) {
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+        try {
+            return action.get();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.name();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Runs the action within a {@link PhaseEvent}.
+     *
+     * @param phase phase the action belongs to
+     * @param action action to be recorded
+     */
+    public static void recordPhase(PhaseMetrics.Phase phase, Runnable action) {
+        recordPhase(
+                phase,
+                () -> {
+                    action.run();
+                    return null;
+                });
+    }
+
+    /** Diff of a pair of files, from parsing them to applying the patches. */
+    @Name("com.diffmin.PairDiff")
+    @Label("Pair Diff")
+    @Category(CATEGORY)
+    @Description("Patching of the previous version of a file into its new version")
+    @StackTrace(false)
+    public static class PairDiffEvent extends Event {
+        @Label("Previous File")
+        String prevFile;
+
+        @Label("New File")
+        String newFile;
+
+        @Label("Delete Patches")
+        int deletePatches;
+
+        @Label("Update Patches")
+        int updatePatches;
+
+        @Label("Insert Patches")
+        int insertPatches;
+
+        @Label("Move Patches")
+        int movePatches;
+
+        /**
+         * Starts timing the diff of a pair.
+         *
+         * @param prevFile name of the previous version of the file
+         * @param newFile name of the new version of the file
+         */
+        public PairDiffEvent(String prevFile, String newFile) {
+            this.prevFile = prevFile;
+            this.newFile = newFile;
+            begin();
+        }
+
+        /**
+         * Stops timing the diff of the pair and commits the event if it is enabled.
+         *
+         * @param deletePatches number of delete patches
+         * @param updatePatches number of update patches
+         * @param insertPatches number of insert patches
+         * @param movePatches number of move patches
+         */
+        public void commit(
+                int deletePatches, int updatePatches, int insertPatches, int movePatches) {
+            end();
+            if (shouldCommit()) {
+                this.deletePatches = deletePatches;
+                this.updatePatches = updatePatches;
+                this.insertPatches = insertPatches;
+                this.movePatches = movePatches;
+                commit();
+            }
+        }
+    }
+
+    /** Single phase of patching a pair, see {@link PhaseMetrics.Phase}. */
+    @Name("com.diffmin.Phase")
+    @Label("Phase")
+    @Category(CATEGORY)
+    @Description("Phase of patching a pair of files")
+    @StackTrace(false)
+    public static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    /** Single patch applied to the previous model. */
+    @Name("com.diffmin.PatchOperation")
+    @Label("Patch Operation")
+    @Category(CATEGORY)
+    @Description("Application of a single patch to the previous model")
+    @StackTrace(false)
+    public static class PatchOperationEvent extends Event {
+        /** Deletion of a node. */
+        public static final String DELETE = "delete";
+        /** Replacement of a node by its updated version. */
+        public static final String UPDATE = "update";
+        /** Insertion of a node. */
+        public static final String INSERT = "insert";
+        /** Deletion of a node followed by its insertion at another place. */
+        public static final String MOVE = "move";
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Role")
+        @Description("Role of the node in its parent")
+        String role;
+
+        @Label("Node Type")
+        @Description("Simple name of the class of the node")
+        String nodeType;
+
+        /** Starts timing a patch. */
+        public PatchOperationEvent() {
+            begin();
+        }
+
+        /**
+         * Stops timing the patch and commits the event if it is enabled.
+         *
+         * @param operation kind of the patch, one of the constants of this class
+         * @param role role of the node in its parent, or {@code null} if it has none
+         * @param node node which is patched
+         */
+        public void commit(String operation, CtRole role, CtElement node) {
+            end();
+            if (shouldCommit()) {
+                this.operation = operation;
+                this.role = role == null ? null : role.name();
+                this.nodeType = node.getClass().getSimpleName();
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.diffmin.util;
+
+import java.util.Collection;
+import java.util.Map;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.path.CtRole;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * Scanner which reads the lists of children in place, whereas the default scanner copies each of
+ * them so that they may be modified while being scanned. The scanned trees must not be modified.
+ */
+public class InPlaceScanner extends CtScanner {
+    @Override
+    public void scan(CtRole role, Collection<? extends CtElement> elements) {
+        if (elements != null) {
+            for (CtElement element : elements) {
+                scan(role, element);
+            }
+        }
+    }
+
+    @Override
+    public void scan(CtRole role, Map<String, ? extends CtElement> elements) {
+        if (elements != null) {
+            for (CtElement element : elements.values()) {
+                scan(role, element);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.diffmin.util;
+
+import java.nio.charset.StandardCharsets;
+import spoon.Launcher;
+import spoon.SpoonModelBuilder;
+import spoon.compiler.Environment;
+import spoon.compiler.SpoonResource;
+import spoon.reflect.CtModel;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.factory.FactoryImpl;
+import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
+import spoon.support.DefaultCoreFactory;
+import spoon.support.StandardEnvironment;
+import spoon.support.compiler.jdt.JDTBasedSpoonCompiler;
+import spoon.support.modelobs.ChangeCollector;
+import spoon.support.sniper.SniperJavaPrettyPrinter;
+
+/**
+ * Reusable context for building Spoon models with the configuration diffmin relies upon.
+ *
+ * <p>Building a model through a {@link Launcher} parses its whole command-line specification every
+ * time a launcher is instantiated. A context instead holds the configuration once and hands the
+ * input straight to the JDT-based compiler. Each thread configures its environment once and builds
+ * every model with it, so a single context can be shared by any number of threads, and every call
+ * still returns a model backed by its own {@link Factory} and compiler.
+ */
+public class ParsingContext {
+    private final PrintingMode printingMode;
+    private final ThreadLocal<Environment> environments =
+            ThreadLocal.withInitial(this::createEnvironment);
+
+    /** Constructs a context whose models are printed in full by the default pretty-printer. */
+    public ParsingContext() {
+        this(PrintingMode.PRETTY);
+    }
+
+    /**
+     * Constructs a context.
+     *
+     * @param printingMode how the models built are printed
+     */
+    public ParsingContext(PrintingMode printingMode) {
+        this.printingMode = printingMode;
+    }
+
+    /**
+     * Builds an isolated model of the resource.
+     *
+     * @param resource program whose model needs to be built
+     * @return model of the program
+     */
+    public CtModel buildModel(SpoonResource resource) {
+        Factory factory = createFactory();
+        SpoonModelBuilder compiler = new JDTBasedSpoonCompiler(factory);
+        compiler.addInputSource(resource);
+        compiler.build();
+        CtModel model = factory.getModel();
+        model.setBuildModelIsFinished(true);
+        return model;
+    }
+
+    /**
+     * Creates an empty factory configured like the ones backing the models built. The environment
+     * of the calling thread is reused, except when printing with the sniper printer: its change
+     * collector keeps the changes of every model built with the environment, so each model gets its
+     * own.
+     */
+    Factory createFactory() {
+        Environment env =
+                printingMode == PrintingMode.SNIPER ? createEnvironment() : environments.get();
+        return new FactoryImpl(new DefaultCoreFactory(), env);
+    }
+
+    private Environment createEnvironment() {
+        Environment env = new StandardEnvironment();
+        // same defaults as the ones set by Launcher
+        env.setNoClasspath(true);
+        env.setEncoding(StandardCharsets.UTF_8);
+        env.setCommentEnabled(printingMode == PrintingMode.SNIPER);
+
+        if (printingMode == PrintingMode.SNIPER) {
+            // the sniper printer needs to know which elements have changed since the model was
+            // built
+            new ChangeCollector().attachTo(env);
+            env.setPrettyPrinterCreator(() -> new SniperJavaPrettyPrinter(env));
+            return env;
+        }
+        env.setPrettyPrinterCreator(() -> createDefaultPrettyPrinter(env));
+        return env;
+    }
+
+    /** Creates the pretty-printer which prints a model of the environment in full. */
+    static DefaultJavaPrettyPrinter createDefaultPrettyPrinter(Environment env) {
+        DefaultJavaPrettyPrinter printer = new DefaultJavaPrettyPrinter(env);
+        printer.setIgnoreImplicit(false); // required to NOT print e.g. implicit "this"
+
+        return printer;
+    }
+
+    /** Ways in which the models built can be printed. */
+    public enum PrintingMode {
+        /** Prints the whole model with the default pretty-printer. */
+        PRETTY,
+        /**
+         * Keeps the original source text of the elements which have not been modified since the
+         * model was built, and only prints the modified ones.
+         */
+        SNIPER
+    }
+}
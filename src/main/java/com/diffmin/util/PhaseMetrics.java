@@ -0,0 +1,235 @@
+package com.diffmin.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Wall time, allocated bytes and counts recorded while patching a single pair, broken down by the
+ * phase they are spent in.
+ *
+ * <p>The bytes allocated by a phase are read from the allocation counter of the thread running it,
+ * so a phase must not hand work over to other threads for its allocations to be accounted for. They
+ * are reported as -1 if the JVM does not count the allocations of threads. An instance is meant to
+ * be filled by a single thread.
+ *
+ * <p>Code which only records metrics on demand takes {@link #disabled()} instead, which runs the
+ * phases without measuring them, so that the same code path serves both cases.
+ */
+public class PhaseMetrics {
+    private static final long UNSUPPORTED = -1;
+    private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+    private static final PhaseMetrics DISABLED = new PhaseMetrics(false);
+
+    private final boolean enabled;
+
+    private final Map<Phase, Long> wallNanos = new EnumMap<>(Phase.class);
+    private final Map<Phase, Long> allocatedBytes = new EnumMap<>(Phase.class);
+    private final Map<Count, Long> counts = new EnumMap<>(Count.class);
+
+    /** Phases of patching a pair, in the order they run. */
+    public enum Phase {
+        /** Building the models of both files. */
+        PARSE,
+        /** Building the GumTree trees, matching them and computing the edit script. */
+        MATCH,
+        /** Inferring the mapping of the Spoon nodes which GumTree does not see. */
+        MAPPING,
+        /** Generating the patches from the edit script. */
+        GENERATE,
+        /** Applying the patches to the previous model. */
+        APPLY,
+        /** Printing the patched model. */
+        PRINT
+    }
+
+    /** Quantities which the cost of the phases depends on. */
+    public enum Count {
+        /** Number of nodes in the model of the previous file. */
+        PREV_NODES,
+        /** Number of nodes in the model of the new file. */
+        NEW_NODES,
+        /** Number of nodes of the previous model mapped to a node of the new model. */
+        MAPPED_NODES,
+        /** Number of delete patches. */
+        DELETE_PATCHES,
+        /** Number of update patches. */
+        UPDATE_PATCHES,
+        /** Number of insert patches. */
+        INSERT_PATCHES,
+        /** Number of move patches. */
+        MOVE_PATCHES
+    }
+
+    /** Constructs empty metrics. */
+    public PhaseMetrics() {
+        this(true);
+    }
+
+    private PhaseMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns metrics which record nothing. The phases are still recorded as {@link
+     * FlightRecorderEvents.PhaseEvent}s, and the instance can be shared by any number of threads.
+     *
+     * @return metrics which record nothing
+     */
+    public static PhaseMetrics disabled() {
+        return DISABLED;
+    }
+
+    /** Returns whether the phases and counts are recorded, as opposed to {@link #disabled()}. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs the action and adds its wall time and allocated bytes to the phase. The action is also
+     * recorded as a {@link FlightRecorderEvents.PhaseEvent}.
+     *
+     * @param phase phase the action belongs to
+     * @param action action to be measured
+     * @param <T> type of the result of the action
+     * @return result of the action
+     */
+    public <T> T measureAndGet(Phase phase, Supplier<T> action) {
+        if (!enabled) {
+            return FlightRecorderEvents.recordPhase(phase, action);
+        }
+        long startBytes = getCurrentThreadAllocatedBytes();
+        long startNanos = System.nanoTime();
+        try {
+            return FlightRecorderEvents.recordPhase(phase, action);
+        } finally {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            long endBytes = getCurrentThreadAllocatedBytes();
+            wallNanos.merge(phase, elapsedNanos, Long::sum);
+            long bytes =
+                    startBytes == UNSUPPORTED || endBytes == UNSUPPORTED
+                            ? UNSUPPORTED
+                            : endBytes - startBytes;
+            allocatedBytes.merge(
+                    phase,
+                    bytes,
+                    (previous, added) ->
+                            previous == UNSUPPORTED || added == UNSUPPORTED
+                                    ? UNSUPPORTED
+                                    : previous + added);
+        }
+    }
+
+    /**
+     * Runs the action and adds its wall time and allocated bytes to the phase.
+     *
+     * @param phase phase the action belongs to
+     * @param action action to be measured
+     */
+    public void measure(Phase phase, Runnable action) {
+        measureAndGet(
+                phase,
+                () -> {
+                    action.run();
+                    return null;
+                });
+    }
+
+    /**
+     * Sets a count.
+     *
+     * @param count quantity which is counted
+     * @param value value of the count
+     */
+    public void count(Count count, long value) {
+        if (!enabled) {
+            return;
+        }
+        counts.put(count, value);
+    }
+
+    /** Returns the wall time spent in the phase, in nanoseconds. */
+    public long getWallNanos(Phase phase) {
+        return wallNanos.getOrDefault(phase, 0L);
+    }
+
+    /** Returns the bytes allocated during the phase, or -1 if they could not be counted. */
+    public long getAllocatedBytes(Phase phase) {
+        return allocatedBytes.getOrDefault(phase, 0L);
+    }
+
+    /** Returns the value of the count, or 0 if it has not been set. */
+    public long getCount(Count count) {
+        return counts.getOrDefault(count, 0L);
+    }
+
+    /** Returns the wall time spent in all the phases, in nanoseconds. */
+    public long getTotalWallNanos() {
+        return wallNanos.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Returns the metrics on a single line of tab-separated {@code name=value} fields, which is
+     * meant to be appended to a report and filtered with the usual command-line tools.
+     */
+    public String toSummaryLine() {
+        StringJoiner summary = new StringJoiner("\t");
+        for (Phase phase : Phase.values()) {
+            String name = phase.name().toLowerCase(Locale.ROOT);
+            summary.add(
+                    String.format(
+                            "%s_ms=%d", name, TimeUnit.NANOSECONDS.toMillis(getWallNanos(phase))));
+            summary.add(String.format("%s_bytes=%d", name, getAllocatedBytes(phase)));
+        }
+        for (Count count : Count.values()) {
+            summary.add(
+                    String.format("%s=%d", count.name().toLowerCase(Locale.ROOT), getCount(count)));
+        }
+        return summary.toString();
+    }
+
+    /** Returns the metrics as a table with one row per phase, followed by the counts. */
+    @Override
+    public String toString() {
+        StringBuilder table = new StringBuilder();
+        table.append(String.format("%-10s %10s %14s%n", "phase", "wall ms", "allocated MB"));
+        for (Phase phase : Phase.values()) {
+            table.append(
+                    String.format(
+                            "%-10s %10.1f %14s%n",
+                            phase.name().toLowerCase(Locale.ROOT),
+                            getWallNanos(phase) / 1e6,
+                            formatMegabytes(getAllocatedBytes(phase))));
+        }
+        table.append(String.format("%-10s %10.1f%n", "total", getTotalWallNanos() / 1e6));
+        for (Count count : Count.values()) {
+            table.append(
+                    String.format(
+                            "%-15s %d%n", count.name().toLowerCase(Locale.ROOT), getCount(count)));
+        }
+        return table.toString();
+    }
+
+    private static String formatMegabytes(long bytes) {
+        return bytes == UNSUPPORTED ? "n/a" : String.format("%.1f", bytes / BYTES_PER_MEGABYTE);
+    }
+
+    private static long getCurrentThreadAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return UNSUPPORTED;
+        }
+        com.sun.management.ThreadMXBean allocationBean =
+                (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported()
+                || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+            return UNSUPPORTED;
+        }
+        return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,229 @@
+package com.diffmin.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Cheap comparisons of two versions of a source file, which tell whether the versions are bound to
+ * have an empty diff without building their models.
+ *
+ * <p>The versions are first compared byte by byte, and then token by token, skipping the white
+ * spaces in between the tokens. Comments are compared as tokens, so that a change in a comment is
+ * still handed over to the diff. Operators are split the way the Java compiler splits them, taking
+ * the longest operator at each position, so that {@code - -x} and {@code --x} are different.
+ */
+public class SourceComparison {
+    private static final String[] OPERATORS = {
+        ">>>=", "<<=", ">>=", ">>>", "...", "->", "::", "++", "--", "&&", "||", "==", "!=", "<=",
+        ">=", "+=", "-=", "*=", "/=", "&=", "|=", "^=", "%=", "<<", ">>"
+    };
+    private static final String TEXT_BLOCK_DELIMITER = "\"\"\"";
+
+    /** Outcome of comparing two versions. */
+    public enum Outcome {
+        /** Both versions have the same bytes. */
+        SAME_BYTES,
+        /** Both versions have the same tokens, and only differ in their layout. */
+        SAME_TOKENS,
+        /** The versions may differ in their syntax tree. */
+        DIFFERENT
+    }
+
+    /** Override constructor to prevent instantiating of this class (RSPEC-1118). */
+    private SourceComparison() {
+        throw new IllegalStateException("Utility classes should not be instantiated");
+    }
+
+    /**
+     * Compares two versions of a source file encoded in UTF-8.
+     *
+     * @param prevContent content of the previous version
+     * @param newContent content of the new version
+     * @return the first comparison on which both versions are the same, or {@link
+     *     Outcome#DIFFERENT}
+     */
+    public static Outcome compare(byte[] prevContent, byte[] newContent) {
+        if (Arrays.equals(prevContent, newContent)) {
+            return Outcome.SAME_BYTES;
+        }
+        String prevSource = new String(prevContent, StandardCharsets.UTF_8);
+        String newSource = new String(newContent, StandardCharsets.UTF_8);
+        return haveSameTokens(prevSource, newSource) ? Outcome.SAME_TOKENS : Outcome.DIFFERENT;
+    }
+
+    /**
+     * Returns the patched program, unless both versions are bound to have an empty diff, in which
+     * case the previous version is returned as it is without patching anything.
+     *
+     * @param prevContent content of the previous version, encoded in UTF-8
+     * @param newContent content of the new version, encoded in UTF-8
+     * @param patch patches the previous version and prints the patched program
+     * @return the patched program, or the previous version if the patch is known to be empty
+     */
+    public static String patchedOrPrevious(
+            byte[] prevContent, byte[] newContent, Supplier<String> patch) {
+        if (compare(prevContent, newContent) != Outcome.DIFFERENT) {
+            return new String(prevContent, StandardCharsets.UTF_8);
+        }
+        return patch.get();
+    }
+
+    /**
+     * Returns whether both sources are made of the same tokens, however the tokens are laid out.
+     *
+     * @param prevSource source of the previous version
+     * @param newSource source of the new version
+     * @return true if the sources only differ in their white spaces
+     */
+    public static boolean haveSameTokens(CharSequence prevSource, CharSequence newSource) {
+        Tokenizer prevTokens = new Tokenizer(prevSource);
+        Tokenizer newTokens = new Tokenizer(newSource);
+        while (true) {
+            boolean prevHasNext = prevTokens.next();
+            boolean newHasNext = newTokens.next();
+            if (!prevHasNext || !newHasNext) {
+                return prevHasNext == newHasNext;
+            }
+            if (!prevTokens.hasSameToken(newTokens)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Splits a source into tokens, one at a time. Tokens are not copied, but delimited by their
+     * start and end in the source.
+     */
+    private static class Tokenizer {
+        private final CharSequence source;
+        private int start;
+        private int end;
+
+        Tokenizer(CharSequence source) {
+            this.source = source;
+        }
+
+        /** Moves to the next token, returning false if the source has no more tokens. */
+        boolean next() {
+            start = end;
+            while (start < source.length() && Character.isWhitespace(source.charAt(start))) {
+                start++;
+            }
+            if (start == source.length()) {
+                end = start;
+                return false;
+            }
+            end = start + getTokenLength();
+            return true;
+        }
+
+        boolean hasSameToken(Tokenizer other) {
+            int length = end - start;
+            if (length != other.end - other.start) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (source.charAt(start + i) != other.source.charAt(other.start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int getTokenLength() {
+            char first = source.charAt(start);
+            if (Character.isJavaIdentifierPart(first)) {
+                // identifiers, keywords and numbers
+                return lengthOfWord();
+            }
+            if (startsWith(start, "//")) {
+                // the line terminator is left out, so that line endings do not matter
+                int position = start + 2;
+                while (position < source.length()
+                        && source.charAt(position) != '\n'
+                        && source.charAt(position) != '\r') {
+                    position++;
+                }
+                return position - start;
+            }
+            if (startsWith(start, "/*")) {
+                return lengthUntil(start + 2, "*/", false);
+            }
+            if (startsWith(start, TEXT_BLOCK_DELIMITER)) {
+                return lengthUntil(start + 3, TEXT_BLOCK_DELIMITER, true);
+            }
+            if (first == '"' || first == '\'') {
+                return lengthUntil(start + 1, String.valueOf(first), true);
+            }
+            if (first == '.'
+                    && start + 1 < source.length()
+                    && Character.isDigit(source.charAt(start + 1))) {
+                // numbers starting with a dot, such as .5
+                return lengthOfWord();
+            }
+            for (String operator : OPERATORS) {
+                if (startsWith(start, operator)) {
+                    return operator.length();
+                }
+            }
+            return 1;
+        }
+
+        private int lengthOfWord() {
+            int position = start + 1;
+            while (position < source.length()
+                    && (Character.isJavaIdentifierPart(source.charAt(position))
+                            || isNumberPart(position))) {
+                position++;
+            }
+            return position - start;
+        }
+
+        /** Returns whether the character continues a number, such as the dot of 1.5 or 1e-3. */
+        private boolean isNumberPart(int position) {
+            char current = source.charAt(position);
+            char first = source.charAt(start);
+            if (!Character.isDigit(first) && first != '.') {
+                return false;
+            }
+            if (current == '.') {
+                return true;
+            }
+            char previous = source.charAt(position - 1);
+            boolean isExponent =
+                    previous == 'e' || previous == 'E' || previous == 'p' || previous == 'P';
+            return (current == '+' || current == '-') && isExponent;
+        }
+
+        /**
+         * Returns the length of the token up to and including the delimiter, or up to the end of
+         * the source if the delimiter is missing. Escaped characters are skipped in literals.
+         */
+        private int lengthUntil(int from, String delimiter, boolean escapes) {
+            int position = from;
+            while (position < source.length()) {
+                if (escapes && source.charAt(position) == '\\') {
+                    position += 2;
+                } else if (startsWith(position, delimiter)) {
+                    return Math.min(position + delimiter.length(), source.length()) - start;
+                } else {
+                    position++;
+                }
+            }
+            return source.length() - start;
+        }
+
+        private boolean startsWith(int position, String prefix) {
+            if (position + prefix.length() > source.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (source.charAt(position + i) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -4,38 +4,193 @@ import gumtree.spoon.AstComparator;
 import gumtree.spoon.diff.Diff;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import spoon.Launcher;
-import spoon.compiler.Environment;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import spoon.compiler.SpoonResource;
 import spoon.compiler.SpoonResourceHelper;
 import spoon.reflect.CtModel;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.cu.SourcePosition;
 import spoon.reflect.declaration.CtCompilationUnit;
 import spoon.reflect.declaration.CtElement;
 import spoon.reflect.declaration.CtModule;
 import spoon.reflect.declaration.CtPackage;
-import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.path.CtRole;
+import spoon.reflect.visitor.CtScanner;
 import spoon.reflect.visitor.PrettyPrinter;
+import spoon.support.compiler.VirtualFile;
+import spoon.support.modelobs.ChangeCollector;
+import spoon.support.sniper.SniperJavaPrettyPrinter;
 
 /** Utility class for interacting with the {@link CtModel} and computing {@link Diff}. */
 public class SpoonUtil {
+    /**
+     * System property giving the maximum total length, in bytes, of the sources whose models the
+     * default parsing context keeps, see {@link CachingParsingContext}. Models are not cached
+     * unless it is set.
+     */
+    public static final String PARSING_CACHE_PROPERTY = "diffmin.parsingCache";
+
+    private static final ParsingContext DEFAULT_PARSING_CONTEXT =
+            createParsingContext(System.getProperty(PARSING_CACHE_PROPERTY));
+    private static final String DEFAULT_PREV_NAME = "Prev.java";
+    private static final String DEFAULT_NEW_NAME = "New.java";
+
     /** Override constructor to prevent instantiating of this class (RSPEC-1118). */
     private SpoonUtil() {
         throw new IllegalStateException("Utility classes should not be instantiated");
     }
 
     /**
-     * Returns the root package of the file.
+     * Returns the parsing context used whenever none is given, which caches the models it builds if
+     * {@link #PARSING_CACHE_PROPERTY} is set.
+     *
+     * @return default parsing context
+     */
+    public static ParsingContext getDefaultParsingContext() {
+        return DEFAULT_PARSING_CONTEXT;
+    }
+
+    /**
+     * Creates a parsing context which caches the models it builds if a cache size is given.
+     *
+     * @param maxCachedBytes maximum total length of the sources whose models are kept, or {@code
+     *     null} for no cache
+     * @return parsing context
+     * @throws NumberFormatException Exception raised if the cache size is not a number
+     */
+    static ParsingContext createParsingContext(String maxCachedBytes) {
+        if (maxCachedBytes == null) {
+            return new ParsingContext();
+        }
+        return new CachingParsingContext(Long.parseLong(maxCachedBytes.trim()));
+    }
+
+    /**
+     * Returns the root package of the file, built by the default parsing context.
      *
      * @param file File whose all {@link CtPackage} needs to returned
      * @return Root package of the file
      * @throws FileNotFoundException Exception raise via {@link SpoonResourceHelper}
      */
     public static CtPackage getPackage(File file) throws FileNotFoundException {
-        CtModel model = buildModel(file);
+        return getPackage(file, DEFAULT_PARSING_CONTEXT);
+    }
+
+    /**
+     * Returns the root package of the file.
+     *
+     * @param file File whose all {@link CtPackage} needs to returned
+     * @param parsingContext context used for building the model of the file
+     * @return Root package of the file
+     * @throws FileNotFoundException Exception raise via {@link SpoonResourceHelper}
+     */
+    public static CtPackage getPackage(File file, ParsingContext parsingContext)
+            throws FileNotFoundException {
+        CtModel model = buildModel(file, parsingContext);
         return model.getRootPackage();
     }
 
+    /**
+     * Returns the root package of the program.
+     *
+     * @param resource program, held in a file or in memory
+     * @param parsingContext context used for building the model of the program
+     * @return Root package of the program
+     */
+    public static CtPackage getPackage(SpoonResource resource, ParsingContext parsingContext) {
+        return parsingContext.buildModel(resource).getRootPackage();
+    }
+
+    /**
+     * Wraps a source held in memory into a resource which Spoon parses without any file.
+     *
+     * @param source source of the program
+     * @param name name of the file the source would be held in, such as {@code A.java}
+     * @return resource holding the source
+     */
+    public static SpoonResource createResource(CharSequence source, String name) {
+        return new VirtualFile(source.toString(), name);
+    }
+
+    /**
+     * Wraps a source held in memory and encoded in UTF-8 into a resource which Spoon parses without
+     * any file.
+     *
+     * @param content content of the program, encoded in UTF-8
+     * @param name name of the file the source would be held in, such as {@code A.java}
+     * @return resource holding the source
+     */
+    public static SpoonResource createResource(byte[] content, String name) {
+        return new VirtualFile(new String(content, StandardCharsets.UTF_8), name);
+    }
+
+    /**
+     * Reads a file encoded in UTF-8 and wraps its source into a resource, so that the file is not
+     * read again by Spoon.
+     *
+     * @param file file holding the program
+     * @return resource holding the source of the file
+     * @throws IOException Exception raised if the file cannot be read
+     */
+    public static SpoonResource createResource(Path file) throws IOException {
+        return createResource(Files.readString(file), file.getFileName().toString());
+    }
+
+    /**
+     * Computes the diff between the two sources held in memory and returns the diff and the model
+     * to be patched.
+     *
+     * @param prevSource Previous version of the program
+     * @param newSource Modified version of the program
+     * @return List of operations in the edit script
+     */
+    public static Pair<Diff, CtModel> computeDiff(CharSequence prevSource, CharSequence newSource) {
+        return computeDiff(
+                createResource(prevSource, DEFAULT_PREV_NAME),
+                createResource(newSource, DEFAULT_NEW_NAME),
+                DEFAULT_PARSING_CONTEXT);
+    }
+
+    /**
+     * Computes the diff between the two sources held in memory and encoded in UTF-8, and returns
+     * the diff and the model to be patched.
+     *
+     * @param prevContent Previous version of the program, encoded in UTF-8
+     * @param newContent Modified version of the program, encoded in UTF-8
+     * @return List of operations in the edit script
+     */
+    public static Pair<Diff, CtModel> computeDiff(byte[] prevContent, byte[] newContent) {
+        return computeDiff(
+                createResource(prevContent, DEFAULT_PREV_NAME),
+                createResource(newContent, DEFAULT_NEW_NAME),
+                DEFAULT_PARSING_CONTEXT);
+    }
+
+    /**
+     * Computes the diff between the two files, reading each of them once, and returns the diff and
+     * the model to be patched.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @return List of operations in the edit script
+     * @throws IOException Exception raised if either file cannot be read
+     */
+    public static Pair<Diff, CtModel> computeDiff(Path prevFile, Path newFile) throws IOException {
+        return computeDiff(
+                createResource(prevFile), createResource(newFile), DEFAULT_PARSING_CONTEXT);
+    }
+
     /**
      * Computes the diff between the two files and returns the diff and the model to be patched.
      *
@@ -46,13 +201,106 @@ public class SpoonUtil {
      */
     public static Pair<Diff, CtModel> computeDiff(File prevFile, File newFile)
             throws FileNotFoundException {
-        CtElement prevPackage = getPackage(prevFile);
-        CtElement newPackage = getPackage(newFile);
-        Diff diff = new AstComparator().compare(prevPackage, newPackage);
+        return computeDiff(prevFile, newFile, DEFAULT_PARSING_CONTEXT);
+    }
+
+    /**
+     * Computes the diff between the two files and returns the diff and the model to be patched.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @param parsingContext context used for building the models of both files
+     * @return List of operations in the edit script
+     * @throws FileNotFoundException Exception raised via {@link AstComparator}
+     */
+    public static Pair<Diff, CtModel> computeDiff(
+            File prevFile, File newFile, ParsingContext parsingContext)
+            throws FileNotFoundException {
+        return computeDiff(
+                SpoonResourceHelper.createResource(prevFile),
+                SpoonResourceHelper.createResource(newFile),
+                parsingContext);
+    }
+
+    /**
+     * Computes the diff between the two resources and returns the diff and the model to be patched.
+     * The resources may be files or sources held in memory, such as {@link
+     * spoon.support.compiler.VirtualFile}.
+     *
+     * @param prevResource Previous version of the program
+     * @param newResource Modified version of the program
+     * @param parsingContext context used for building the models of both programs
+     * @return List of operations in the edit script
+     */
+    public static Pair<Diff, CtModel> computeDiff(
+            SpoonResource prevResource, SpoonResource newResource, ParsingContext parsingContext) {
+        CtElement prevPackage = parse(prevResource, parsingContext).getRootPackage();
+        CtElement newPackage = parse(newResource, parsingContext).getRootPackage();
+        Diff diff = compare(prevPackage, newPackage);
+        CtModel modelToBeModified = prevPackage.getFactory().getModel();
+        return new Pair<>(diff, modelToBeModified);
+    }
+
+    /**
+     * Computes the diff between the two files and returns the diff and the model to be patched. The
+     * models of both files are independent, so the previous file is parsed on the executor while
+     * the new file is parsed on the calling thread.
+     *
+     * @param prevFile Previous version of the file
+     * @param newFile Modified version of the file
+     * @param parsingContext context used for building the models of both files
+     * @param parsingExecutor executor on which the previous file is parsed
+     * @return List of operations in the edit script
+     * @throws FileNotFoundException Exception raised via {@link SpoonResourceHelper}
+     */
+    public static Pair<Diff, CtModel> computeDiff(
+            File prevFile, File newFile, ParsingContext parsingContext, Executor parsingExecutor)
+            throws FileNotFoundException {
+        final SpoonResource prevResource = SpoonResourceHelper.createResource(prevFile);
+        final SpoonResource newResource = SpoonResourceHelper.createResource(newFile);
+        CompletableFuture<CtModel> prevModel =
+                CompletableFuture.supplyAsync(
+                        () -> parse(prevResource, parsingContext), parsingExecutor);
+        CtElement newPackage = parse(newResource, parsingContext).getRootPackage();
+        CtElement prevPackage = join(prevModel).getRootPackage();
+        Diff diff = compare(prevPackage, newPackage);
         CtModel modelToBeModified = prevPackage.getFactory().getModel();
         return new Pair<>(diff, modelToBeModified);
     }
 
+    private static CtModel parse(SpoonResource resource, ParsingContext parsingContext) {
+        return FlightRecorderEvents.recordPhase(
+                PhaseMetrics.Phase.PARSE, () -> parsingContext.buildModel(resource));
+    }
+
+    private static Diff compare(CtElement prevPackage, CtElement newPackage) {
+        return FlightRecorderEvents.recordPhase(
+                PhaseMetrics.Phase.MATCH,
+                () -> new AstComparator().compare(prevPackage, newPackage));
+    }
+
+    /**
+     * Waits for the future to complete, rethrowing the exception it completed with instead of
+     * wrapping it.
+     *
+     * @param future future to wait for
+     * @param <T> type of the result of the future
+     * @return result of the future
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     /**
      * Build a model.
      *
@@ -61,20 +309,54 @@ public class SpoonUtil {
      * @throws FileNotFoundException Exception raised via {@link SpoonResourceHelper}
      */
     public static CtModel buildModel(File file) throws FileNotFoundException {
+        return buildModel(file, DEFAULT_PARSING_CONTEXT);
+    }
+
+    /**
+     * Build a model using the given parsing context.
+     *
+     * @param file program whose model needs to be built
+     * @param parsingContext context used for building the model
+     * @return located node in the prev file model
+     * @throws FileNotFoundException Exception raised via {@link SpoonResourceHelper}
+     */
+    public static CtModel buildModel(File file, ParsingContext parsingContext)
+            throws FileNotFoundException {
         final SpoonResource resource = SpoonResourceHelper.createResource(file);
-        final Launcher launcher = new Launcher();
-        Environment env = launcher.getEnvironment();
-        env.setCommentEnabled(false); // TODO enable comments
+        return parsingContext.buildModel(resource);
+    }
+
+    /**
+     * Build a model of a source held in memory.
+     *
+     * @param source source of the program
+     * @param name name of the file the source would be held in, such as {@code A.java}
+     * @return model of the program
+     */
+    public static CtModel buildModel(CharSequence source, String name) {
+        return DEFAULT_PARSING_CONTEXT.buildModel(createResource(source, name));
+    }
 
-        env.setPrettyPrinterCreator(
-                () -> {
-                    DefaultJavaPrettyPrinter printer = new DefaultJavaPrettyPrinter(env);
-                    printer.setIgnoreImplicit(false); // required to NOT print e.g. implicit "this"
+    /**
+     * Build a model of a source held in memory and encoded in UTF-8.
+     *
+     * @param content content of the program, encoded in UTF-8
+     * @param name name of the file the source would be held in, such as {@code A.java}
+     * @return model of the program
+     */
+    public static CtModel buildModel(byte[] content, String name) {
+        return DEFAULT_PARSING_CONTEXT.buildModel(createResource(content, name));
+    }
 
-                    return printer;
-                });
-        launcher.addInputResource(resource);
-        return launcher.buildModel();
+    /**
+     * Build a model of a file, reading it once.
+     *
+     * @param file program whose model needs to be built
+     * @return model of the program
+     * @throws IOException Exception raised if the file cannot be read
+     */
+    public static CtModel buildModel(Path file) throws IOException {
+        return DEFAULT_PARSING_CONTEXT.buildModel(createResource(file));
     }
 
     private static List<CtCompilationUnit> getAllCompilationUnits(CtElement element) {
@@ -118,6 +400,115 @@ public class SpoonUtil {
         // CompilationUnit.prettyprint() always uses the auto-import pretty-printer, and not
         // our custom configured one.
         PrettyPrinter printer = modelCu.getFactory().getEnvironment().createPrettyPrinter();
+        if (printer instanceof SniperJavaPrettyPrinter) {
+            if (getDeclaredTypes(modelCu).isEmpty()) {
+                // there are no fragments left to keep once all the types are deleted
+                return ParsingContext.createDefaultPrettyPrinter(
+                                modelCu.getFactory().getEnvironment())
+                        .prettyprint(modelCu);
+            }
+            prepareForSniperPrinting(modelCu);
+            // the sniper printer only starts from the source fragments of a whole compilation unit
+            printer.calculate(modelCu, getDeclaredTypes(modelCu));
+            return printer.getResult();
+        }
         return printer.prettyprint(modelCu);
     }
+
+    /**
+     * Removes the source positions which the sniper printer cannot reuse, so that the elements they
+     * belong to are printed from scratch. These are the positions of the nodes inserted from the
+     * new file, which point into another compilation unit, and the positions inside the elements
+     * whose changes the sniper printer does not lay out correctly. The latter are replaced by
+     * copies without positions, as the source fragments of the compilation unit may already refer
+     * to them. The literals inserted from the new file are replaced by snippets of their source
+     * beforehand, as printing them from their value would change how they are written.
+     */
+    private static void prepareForSniperPrinting(CtCompilationUnit modelCu) {
+        List<CtLiteral<?>> insertedLiterals = new ArrayList<>();
+        CtScanner literalFinder =
+                new CtScanner() {
+                    @Override
+                    public <T> void visitCtLiteral(CtLiteral<T> literal) {
+                        SourcePosition position = literal.getPosition();
+                        if (position.isValidPosition()
+                                && position.getCompilationUnit() != modelCu
+                                && position.getCompilationUnit().getOriginalSourceCode() != null
+                                && literal.getTypeCasts().isEmpty()) {
+                            insertedLiterals.add(literal);
+                        }
+                        super.visitCtLiteral(literal);
+                    }
+                };
+        getDeclaredTypes(modelCu).forEach(literalFinder::scan);
+        for (CtLiteral<?> literal : insertedLiterals) {
+            SourcePosition position = literal.getPosition();
+            String source =
+                    position.getCompilationUnit()
+                            .getOriginalSourceCode()
+                            .substring(position.getSourceStart(), position.getSourceEnd() + 1);
+            literal.replace(literal.getFactory().Code().createCodeSnippetExpression(source));
+        }
+
+        ChangeCollector changeCollector =
+                ChangeCollector.getChangeCollector(modelCu.getFactory().getEnvironment());
+        List<CtElement> elementsPrintedInFull = new ArrayList<>();
+        CtScanner scanner =
+                new CtScanner() {
+                    @Override
+                    public void scan(CtElement element) {
+                        if (element != null
+                                && isPrintedInFull(changeCollector.getDirectChanges(element))) {
+                            elementsPrintedInFull.add(element);
+                            return;
+                        }
+                        super.scan(element);
+                    }
+
+                    @Override
+                    protected void enter(CtElement element) {
+                        SourcePosition position = element.getPosition();
+                        if (position.isValidPosition()
+                                && position.getCompilationUnit() != modelCu) {
+                            element.setPosition(SourcePosition.NOPOSITION);
+                        }
+                    }
+                };
+        getDeclaredTypes(modelCu).forEach(scanner::scan);
+
+        CtScanner positionRemover =
+                new CtScanner() {
+                    @Override
+                    protected void enter(CtElement element) {
+                        // thrown types are ordered by their positions
+                        if (element.getRoleInParent() != CtRole.THROWN) {
+                            element.setPosition(SourcePosition.NOPOSITION);
+                        }
+                    }
+                };
+        for (CtElement element : elementsPrintedInFull) {
+            CtElement copy = element.clone();
+            positionRemover.scan(copy);
+            element.replace(copy);
+        }
+    }
+
+    /** Returns the types declared in the compilation unit which have not been deleted. */
+    private static List<CtType<?>> getDeclaredTypes(CtCompilationUnit modelCu) {
+        // deleted types are still referred to by the compilation unit, but resolve to null
+        List<CtType<?>> types = new ArrayList<>(modelCu.getDeclaredTypes());
+        types.removeIf(Objects::isNull);
+        return types;
+    }
+
+    /**
+     * Returns whether the element has to be printed in full, without reusing the source of its
+     * children, for the sniper printer to output valid code.
+     */
+    private static boolean isPrintedInFull(Set<CtRole> changedRoles) {
+        // modifiers are printed without the whitespace separating them from the next token
+        return changedRoles.contains(CtRole.MODIFIER)
+                // thrown types are printed in the order of their original positions
+                || changedRoles.contains(CtRole.THROWN);
+    }
 }
@@ -0,0 +1,139 @@
+package com.diffmin.util;
+
+import java.util.Arrays;
+import java.util.List;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtElement;
+
+/**
+ * Pre-order and post-order numbers, along with the depth, of every node of one or more Spoon trees,
+ * which answer questions on the relationship of two nodes without walking up their parents.
+ *
+ * <p>The descendants of a node are numbered right after it in pre-order, so a node is an ancestor
+ * of another if the pre-order number of the other falls within the numbers of its subtree. The
+ * index is a snapshot of the trees when it is built, and must be built again once they are
+ * modified.
+ */
+public class TreeIndex {
+    private final ElementNumbering preOrder;
+    private final int size;
+    private int[] postOrders = new int[16];
+    private int[] lastDescendants = new int[16];
+    private int[] depths = new int[16];
+
+    /**
+     * Indexes the trees.
+     *
+     * @param roots roots of the trees, none of which is a descendant of another
+     */
+    public TreeIndex(List<? extends CtElement> roots) {
+        this(new ElementNumbering(), roots);
+    }
+
+    /**
+     * Indexes the trees, numbering their nodes in pre-order. The numbering can be given more
+     * numbers afterwards, which are not part of the index.
+     *
+     * @param preOrder empty numbering to which the nodes of the trees are added
+     * @param roots roots of the trees, none of which is a descendant of another
+     */
+    public TreeIndex(ElementNumbering preOrder, List<? extends CtElement> roots) {
+        if (preOrder.size() != 0) {
+            throw new IllegalArgumentException("The numbering already holds nodes");
+        }
+        this.preOrder = preOrder;
+        Indexer indexer = new Indexer();
+        roots.forEach(indexer::scan);
+        size = preOrder.size();
+    }
+
+    /**
+     * Indexes every node of the model, starting from its root package.
+     *
+     * @param model model to index
+     * @return index of the model
+     */
+    public static TreeIndex of(CtModel model) {
+        return new TreeIndex(List.of(model.getRootPackage()));
+    }
+
+    /** Returns the number of indexed nodes. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns whether the node is indexed. */
+    public boolean contains(CtElement element) {
+        int number = preOrder.getNumber(element);
+        return number != ElementNumbering.UNNUMBERED && number < size;
+    }
+
+    /** Returns the position of the node in a pre-order traversal of the trees. */
+    public int getPreOrder(CtElement element) {
+        return getNumber(element);
+    }
+
+    /** Returns the position of the node in a post-order traversal of the trees. */
+    public int getPostOrder(CtElement element) {
+        return postOrders[getNumber(element)];
+    }
+
+    /** Returns the number of ancestors of the node, which is 0 for a root. */
+    public int getDepth(CtElement element) {
+        return depths[getNumber(element)];
+    }
+
+    /** Returns the number of nodes in the subtree of the node, including the node itself. */
+    public int getSubtreeSize(CtElement element) {
+        int number = getNumber(element);
+        return lastDescendants[number] - number + 1;
+    }
+
+    /**
+     * Returns whether a node is a strict ancestor of another.
+     *
+     * @param ancestor node which may be an ancestor
+     * @param descendant node which may be a descendant
+     * @return true if the ancestor is the parent of the descendant, or an ancestor of its parent
+     */
+    public boolean isAncestor(CtElement ancestor, CtElement descendant) {
+        int ancestorNumber = getNumber(ancestor);
+        int descendantNumber = getNumber(descendant);
+        return ancestorNumber < descendantNumber
+                && descendantNumber <= lastDescendants[ancestorNumber];
+    }
+
+    private int getNumber(CtElement element) {
+        if (!contains(element)) {
+            throw new IllegalArgumentException("Element not indexed: " + element);
+        }
+        return preOrder.getNumber(element);
+    }
+
+    /** Numbers the nodes when entering them, and closes their subtree when exiting them. */
+    private class Indexer extends InPlaceScanner {
+        private int depth;
+        private int nextPostOrder;
+
+        @Override
+        protected void enter(CtElement element) {
+            int number = preOrder.getOrAddNumber(element);
+            if (number == postOrders.length) {
+                postOrders = Arrays.copyOf(postOrders, number * 2);
+                lastDescendants = Arrays.copyOf(lastDescendants, number * 2);
+                depths = Arrays.copyOf(depths, number * 2);
+            }
+            depths[number] = depth;
+            depth++;
+        }
+
+        @Override
+        protected void exit(CtElement element) {
+            depth--;
+            int number = preOrder.getNumber(element);
+            lastDescendants[number] = preOrder.size() - 1;
+            postOrders[number] = nextPostOrder;
+            nextPostOrder++;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.util.CachingParsingContext;
+import com.diffmin.util.SpoonUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Unit tests for patching many file pairs in a single run. */
+class BatchRunnerTest {
+    @Test
+    @DisplayName("should patch every pair of the manifest using multiple workers")
+    void should_patch_every_pair_of_the_manifest(@TempDir Path tempDir) throws Exception {
+        List<ResourceProvider.TestResources> sources =
+                ResourceProvider.getAllTestResources().collect(Collectors.toList());
+        StringBuilder manifest = new StringBuilder("# prev\tnew\toutput\n");
+        for (int i = 0; i < sources.size(); i++) {
+            ResourceProvider.TestResources source = sources.get(i);
+            manifest.append(source.prevPath)
+                    .append('\t')
+                    .append(source.newPath)
+                    .append('\t')
+                    .append(tempDir.resolve("out").resolve(i + ".java"))
+                    .append('\n');
+        }
+        Path manifestPath = tempDir.resolve("manifest.tsv");
+        Files.writeString(manifestPath, manifest);
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        BatchRunner runner = new BatchRunner(4, new PrintStream(report, true));
+        int failures = runner.run(BatchRunner.readManifest(manifestPath));
+
+        assertEquals(0, failures, report.toString());
+        for (int i = 0; i < sources.size(); i++) {
+            ResourceProvider.TestResources source = sources.get(i);
+            String expected =
+                    SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                            Main.patchAndGenerateModel(
+                                    source.prevPath.toFile(), source.newPath.toFile()));
+            String actual = Files.readString(tempDir.resolve("out").resolve(i + ".java"));
+            assertEquals(expected, actual, "Batch output differs for " + source);
+        }
+    }
+
+    @Test
+    @DisplayName("should patch pairs seen before with models from the parsing cache")
+    void should_patch_pairs_seen_before_from_the_parsing_cache(@TempDir Path tempDir)
+            throws Exception {
+        ResourceProvider.TestResources source =
+                ResourceProvider.getAllTestResources().findFirst().orElseThrow();
+        Path manifestPath = tempDir.resolve("manifest.tsv");
+        Files.writeString(
+                manifestPath,
+                source.prevPath + "\t" + source.newPath + "\t" + tempDir.resolve("1.java") + "\n");
+        CachingParsingContext cache = new CachingParsingContext(Long.MAX_VALUE);
+        BatchRunner runner =
+                new BatchRunner(1, cache, new PrintStream(new ByteArrayOutputStream()));
+
+        assertEquals(0, runner.run(BatchRunner.readManifest(manifestPath)));
+        Files.move(tempDir.resolve("1.java"), tempDir.resolve("first.java"));
+        assertEquals(0, runner.run(BatchRunner.readManifest(manifestPath)));
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(
+                Files.readString(tempDir.resolve("first.java")),
+                Files.readString(tempDir.resolve("1.java")));
+    }
+
+    @Test
+    @DisplayName("should append the metrics of each pair to the report only if asked to")
+    void should_report_metrics_only_if_asked(@TempDir Path tempDir) throws Exception {
+        String prevFile = "src/test/resources/delete/literal/PREV_DeleteLiteral.java";
+        String newFile = "src/test/resources/delete/literal/NEW_DeleteLiteral.java";
+        Path manifestPath = tempDir.resolve("manifest.tsv");
+        Files.writeString(manifestPath, prevFile + "\t" + newFile + "\t" + tempDir.resolve("a"));
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        new BatchRunner(1, new PrintStream(report, true))
+                .run(BatchRunner.readManifest(manifestPath));
+        ByteArrayOutputStream reportWithMetrics = new ByteArrayOutputStream();
+        new BatchRunner(
+                        1,
+                        SpoonUtil.getDefaultParsingContext(),
+                        new PrintStream(reportWithMetrics, true),
+                        true)
+                .run(BatchRunner.readManifest(manifestPath));
+
+        assertTrue(report.toString().startsWith("OK\t"), report.toString());
+        assertFalse(report.toString().contains("parse_ms="), report.toString());
+        assertTrue(
+                reportWithMetrics.toString().contains("parse_ms="), reportWithMetrics.toString());
+    }
+
+    @Test
+    @DisplayName("should keep the previous file if the pair only differs in layout")
+    void should_keep_the_previous_file_if_only_the_layout_differs(@TempDir Path tempDir)
+            throws Exception {
+        String prevSource = "class A {\n    int x = 1;\n}\n";
+        Path prevPath = Files.writeString(tempDir.resolve("Prev.java"), prevSource);
+        Path newPath = Files.writeString(tempDir.resolve("New.java"), "class A { int x\n= 1; }");
+        Path outputPath = tempDir.resolve("Out.java");
+        Path manifestPath = tempDir.resolve("manifest.tsv");
+        Files.writeString(manifestPath, prevPath + "\t" + newPath + "\t" + outputPath);
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        BatchRunner runner = new BatchRunner(1, new PrintStream(report, true));
+
+        assertEquals(0, runner.run(BatchRunner.readManifest(manifestPath)), report.toString());
+        assertEquals(prevSource, Files.readString(outputPath));
+    }
+
+    @Test
+    @DisplayName("should report a failure without aborting the remaining pairs")
+    void should_report_failure_and_continue(@TempDir Path tempDir) throws Exception {
+        String prevFile = "src/test/resources/delete/literal/PREV_DeleteLiteral.java";
+        String newFile = "src/test/resources/delete/literal/NEW_DeleteLiteral.java";
+        Path manifestPath = tempDir.resolve("manifest.tsv");
+        Files.writeString(
+                manifestPath,
+                String.join(
+                        "\n",
+                        "wrong/path/to/prevFile\twrong/path/to/newFile\t" + tempDir.resolve("a"),
+                        prevFile + "\t" + newFile + "\t" + tempDir.resolve("b")));
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        BatchRunner runner = new BatchRunner(2, new PrintStream(report, true));
+
+        assertEquals(1, runner.run(BatchRunner.readManifest(manifestPath)));
+        assertTrue(Files.exists(tempDir.resolve("b")));
+        assertTrue(report.toString().contains("FAILED\twrong/path/to/prevFile"));
+    }
+
+    @Test
+    @DisplayName("should report an error thrown by a pair as the failure of that pair")
+    void should_report_error_as_failure_of_the_pair(@TempDir Path tempDir) throws Exception {
+        // the nested blocks overflow the stack of the worker while the model is built
+        Path prevFile = Files.writeString(tempDir.resolve("Prev.java"), nestBlocks("int a = 1;"));
+        Path newFile = Files.writeString(tempDir.resolve("New.java"), nestBlocks("int a = 2;"));
+        String otherPrevFile = "src/test/resources/delete/literal/PREV_DeleteLiteral.java";
+        String otherNewFile = "src/test/resources/delete/literal/NEW_DeleteLiteral.java";
+        Path manifestPath = tempDir.resolve("manifest.tsv");
+        Files.writeString(
+                manifestPath,
+                String.join(
+                        "\n",
+                        prevFile + "\t" + newFile + "\t" + tempDir.resolve("a"),
+                        otherPrevFile + "\t" + otherNewFile + "\t" + tempDir.resolve("b")));
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        BatchRunner runner = new BatchRunner(1, new PrintStream(report, true));
+
+        assertEquals(1, runner.run(BatchRunner.readManifest(manifestPath)), report.toString());
+        assertTrue(Files.exists(tempDir.resolve("b")));
+        assertTrue(report.toString().contains("StackOverflowError"), report.toString());
+    }
+
+    @Test
+    @DisplayName("should throw IOException if a manifest line does not have three paths")
+    void should_throw_IOException_if_manifest_is_malformed(@TempDir Path tempDir)
+            throws IOException {
+        Path manifestPath = tempDir.resolve("manifest.tsv");
+        Files.writeString(manifestPath, "only/one/path\n");
+        assertThrows(IOException.class, () -> BatchRunner.readManifest(manifestPath));
+    }
+
+    /** Returns a class whose method nests the statement in thousands of blocks. */
+    static String nestBlocks(String statement) {
+        int depth = 5000;
+        return "class Deep { void f() { "
+                + "{".repeat(depth)
+                + statement
+                + "}".repeat(depth)
+                + " } }\n";
+    }
+}
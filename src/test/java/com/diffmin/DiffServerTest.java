@@ -0,0 +1,247 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.util.CachingParsingContext;
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.SpoonUtil;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import spoon.compiler.SpoonResource;
+import spoon.reflect.CtModel;
+
+/** Unit tests for serving patch requests from a single JVM. */
+class DiffServerTest {
+    private static final Gson GSON = new Gson();
+
+    @Test
+    @DisplayName("should answer every request using multiple workers")
+    void should_answer_every_request() throws Exception {
+        List<ResourceProvider.TestResources> sources =
+                ResourceProvider.getAllTestResources().collect(Collectors.toList());
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < sources.size(); i++) {
+            JsonObject request = new JsonObject();
+            request.addProperty("id", i);
+            request.addProperty("prevPath", sources.get(i).prevPath.toString());
+            if (i % 2 == 0) {
+                request.addProperty("newPath", sources.get(i).newPath.toString());
+            } else {
+                request.addProperty("newSource", Files.readString(sources.get(i).newPath));
+            }
+            requests.append(GSON.toJson(request)).append('\n');
+        }
+
+        Map<Integer, JsonObject> responses = serve(requests.toString(), 0);
+
+        assertEquals(sources.size(), responses.size());
+        for (int i = 0; i < sources.size(); i++) {
+            ResourceProvider.TestResources source = sources.get(i);
+            String expected =
+                    SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                            Main.patchAndGenerateModel(
+                                    source.prevPath.toFile(), source.newPath.toFile()));
+            assertEquals(
+                    expected,
+                    responses.get(i).get("patched").getAsString(),
+                    "Server output differs for " + source);
+        }
+    }
+
+    @Test
+    @DisplayName("should answer malformed requests with an error and keep serving")
+    void should_answer_malformed_requests_with_an_error() throws Exception {
+        String requests =
+                "not json\n"
+                        + "{\"id\": 1, \"prevSource\": \"class A {}\"}\n"
+                        + "{\"id\": 2, \"prevPath\": \"wrong/path/to/prevFile\", \"newSource\": \"\"}\n"
+                        + "\n"
+                        + "{\"id\": 3, \"prevSource\": \"class A { int x = 1; }\","
+                        + " \"newSource\": \"class A { int x = 2; }\"}\n";
+
+        Map<Integer, JsonObject> responses = serve(requests, 3);
+
+        assertTrue(responses.get(1).has("error"));
+        assertTrue(responses.get(2).get("error").getAsString().contains("FileNotFoundException"));
+        assertEquals("class A {\n    int x = 2;\n}", responses.get(3).get("patched").getAsString());
+    }
+
+    @Test
+    @DisplayName("should answer a request overflowing the stack with an error and keep serving")
+    void should_answer_request_overflowing_the_stack_with_an_error() throws Exception {
+        JsonObject deepRequest = new JsonObject();
+        deepRequest.addProperty("id", 1);
+        deepRequest.addProperty("prevSource", BatchRunnerTest.nestBlocks("int a = 1;"));
+        deepRequest.addProperty("newSource", BatchRunnerTest.nestBlocks("int a = 2;"));
+        String requests =
+                GSON.toJson(deepRequest)
+                        + "\n"
+                        + "{\"id\": 2, \"prevSource\": \"class A { int x = 1; }\","
+                        + " \"newSource\": \"class A { int x = 2; }\"}\n";
+
+        Map<Integer, JsonObject> responses = serve(requests, 1);
+
+        assertTrue(responses.get(1).get("error").getAsString().contains("StackOverflowError"));
+        assertEquals("class A {\n    int x = 2;\n}", responses.get(2).get("patched").getAsString());
+    }
+
+    @Test
+    @DisplayName("should stop reading requests while the workers are busy")
+    void should_stop_reading_requests_while_workers_are_busy() throws Exception {
+        int requestCount = 50;
+        CountDownLatch release = new CountDownLatch(1);
+        ParsingContext blockingContext =
+                new ParsingContext() {
+                    @Override
+                    public CtModel buildModel(SpoonResource resource) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return super.buildModel(resource);
+                    }
+                };
+        RequestStream input = new RequestStream(requestCount);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ExecutorService serving = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> failures =
+                    serving.submit(
+                            () ->
+                                    new DiffServer(1, blockingContext)
+                                            .serve(
+                                                    input,
+                                                    new PrintStream(
+                                                            output, true, StandardCharsets.UTF_8)));
+            Thread.sleep(500);
+            // two pending requests for the worker, plus what the readers buffer ahead
+            assertTrue(input.requestsRead() <= 4, "Read " + input.requestsRead() + " requests");
+
+            release.countDown();
+            assertEquals(0, failures.get(1, TimeUnit.MINUTES));
+        } finally {
+            release.countDown();
+            serving.shutdownNow();
+        }
+        assertEquals(requestCount, parse(output.toString(StandardCharsets.UTF_8)).size());
+    }
+
+    @Test
+    @DisplayName("should answer repeated requests with models from the parsing cache")
+    void should_answer_repeated_requests_from_the_parsing_cache() throws Exception {
+        List<ResourceProvider.TestResources> sources =
+                ResourceProvider.getAllTestResources().collect(Collectors.toList());
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < 2 * sources.size(); i++) {
+            JsonObject request = new JsonObject();
+            request.addProperty("id", i);
+            request.addProperty("prevPath", sources.get(i % sources.size()).prevPath.toString());
+            request.addProperty(
+                    "newSource", Files.readString(sources.get(i % sources.size()).newPath));
+            requests.append(GSON.toJson(request)).append('\n');
+        }
+        CachingParsingContext cache = new CachingParsingContext(Long.MAX_VALUE);
+
+        Map<Integer, JsonObject> responses = serve(requests.toString(), 0, cache);
+
+        for (int i = 0; i < sources.size(); i++) {
+            assertEquals(
+                    responses.get(i).get("patched").getAsString(),
+                    responses.get(sources.size() + i).get("patched").getAsString(),
+                    "Cached output differs for " + sources.get(i));
+        }
+        assertTrue(cache.getHits() >= 2 * sources.size(), cache.getHits() + " hits");
+    }
+
+    private static Map<Integer, JsonObject> serve(String requests, int expectedFailures)
+            throws Exception {
+        return serve(requests, expectedFailures, new ParsingContext());
+    }
+
+    private static Map<Integer, JsonObject> serve(
+            String requests, int expectedFailures, ParsingContext parsingContext) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DiffServer server = new DiffServer(4, parsingContext);
+        int failures =
+                server.serve(
+                        new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)),
+                        new PrintStream(output, true, StandardCharsets.UTF_8));
+        assertEquals(expectedFailures, failures, output.toString(StandardCharsets.UTF_8));
+        return parse(output.toString(StandardCharsets.UTF_8));
+    }
+
+    private static Map<Integer, JsonObject> parse(String output) {
+        Map<Integer, JsonObject> responses = new HashMap<>();
+        for (String line : output.split("\n")) {
+            JsonObject response = GSON.fromJson(line, JsonObject.class);
+            if (response.has("id")) {
+                responses.put(response.get("id").getAsInt(), response);
+            }
+        }
+        return responses;
+    }
+
+    /** Stream of requests that are only produced once the previous one has been consumed. */
+    private static class RequestStream extends InputStream {
+        // every request is larger than the buffers of the readers, so that they read few ahead
+        private static final int PADDING = 10_000;
+
+        private final int requestCount;
+        private int requestsRead = 0;
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        /**
+         * Creates a stream of identical requests with distinct ids.
+         *
+         * @param requestCount number of requests in the stream
+         */
+        RequestStream(int requestCount) {
+            this.requestCount = requestCount;
+        }
+
+        /**
+         * Returns the number of requests started to be read so far.
+         *
+         * @return number of requests started to be read so far
+         */
+        synchronized int requestsRead() {
+            return requestsRead;
+        }
+
+        @Override
+        public synchronized int read() {
+            if (position == current.length) {
+                if (requestsRead == requestCount) {
+                    return -1;
+                }
+                JsonObject request = new JsonObject();
+                request.addProperty("id", requestsRead);
+                request.addProperty("prevSource", "class A { int x = 1; }" + " ".repeat(PADDING));
+                request.addProperty("newSource", "class A { int x = 2; }");
+                current = (GSON.toJson(request) + "\n").getBytes(StandardCharsets.UTF_8);
+                position = 0;
+                requestsRead++;
+            }
+            return current[position++] & 0xff;
+        }
+    }
+}
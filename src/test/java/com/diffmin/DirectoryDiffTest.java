@@ -0,0 +1,112 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.util.SpoonUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Unit tests for patching two versions of a source directory. */
+class DirectoryDiffTest {
+    private static final Path PREV_FILE =
+            Paths.get("src/test/resources/delete/literal/PREV_DeleteLiteral.java");
+    private static final Path NEW_FILE =
+            Paths.get("src/test/resources/delete/literal/NEW_DeleteLiteral.java");
+
+    @Test
+    @DisplayName("should pair the files by path and the renamed files by content")
+    void should_pair_files_by_path_and_renamed_files_by_content(@TempDir Path tempDir)
+            throws Exception {
+        Path prevDirectory = tempDir.resolve("prev");
+        Path newDirectory = tempDir.resolve("new");
+        write(prevDirectory, "a/Modified.java", Files.readString(PREV_FILE));
+        write(newDirectory, "a/Modified.java", Files.readString(NEW_FILE));
+        write(prevDirectory, "a/Renamed.java", "class Renamed { int x; }");
+        write(newDirectory, "b/Moved.java", "class Renamed { int x; }");
+        write(prevDirectory, "Deleted.java", "class Deleted {}");
+        write(newDirectory, "Added.java", "class Added {}");
+        write(newDirectory, "README.md", "not a Java file");
+
+        DirectoryDiff directoryDiff = new DirectoryDiff(prevDirectory, newDirectory);
+
+        assertEquals(
+                Map.of(
+                        Paths.get("a/Modified.java"), Paths.get("a/Modified.java"),
+                        Paths.get("a/Renamed.java"), Paths.get("b/Moved.java")),
+                directoryDiff.getPairs());
+        assertEquals(
+                Map.of(Paths.get("a/Renamed.java"), Paths.get("b/Moved.java")),
+                directoryDiff.getRenamedFiles());
+        assertEquals(List.of(Paths.get("Added.java")), directoryDiff.getAddedFiles());
+        assertEquals(List.of(Paths.get("Deleted.java")), directoryDiff.getDeletedFiles());
+    }
+
+    @Test
+    @DisplayName("should write every patched file along with the added files")
+    void should_write_patched_and_added_files(@TempDir Path tempDir) throws Exception {
+        Path prevDirectory = tempDir.resolve("prev");
+        Path newDirectory = tempDir.resolve("new");
+        Path outputDirectory = tempDir.resolve("out");
+        write(prevDirectory, "a/Modified.java", Files.readString(PREV_FILE));
+        write(newDirectory, "a/Modified.java", Files.readString(NEW_FILE));
+        write(prevDirectory, "a/Renamed.java", "class Renamed { int x; }");
+        write(newDirectory, "b/Moved.java", "class Renamed { int x; }");
+        write(prevDirectory, "Deleted.java", "class Deleted {}");
+        write(newDirectory, "Added.java", "class Added {}");
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        BatchRunner runner = new BatchRunner(2, new PrintStream(report, true));
+        int failures =
+                new DirectoryDiff(prevDirectory, newDirectory)
+                        .run(outputDirectory, runner, new PrintStream(report, true));
+
+        assertEquals(0, failures, report.toString());
+        assertEquals(
+                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                        Main.patchAndGenerateModel(PREV_FILE.toFile(), NEW_FILE.toFile())),
+                Files.readString(outputDirectory.resolve("a/Modified.java")));
+        assertEquals(
+                "class Renamed { int x; }",
+                Files.readString(outputDirectory.resolve("b/Moved.java")));
+        assertEquals("class Added {}", Files.readString(outputDirectory.resolve("Added.java")));
+        assertFalse(Files.exists(outputDirectory.resolve("Deleted.java")));
+        assertFalse(Files.exists(outputDirectory.resolve("a/Renamed.java")));
+        assertTrue(report.toString().contains("RENAMED\ta/Renamed.java\tb/Moved.java"));
+    }
+
+    @Test
+    @DisplayName("should overwrite the files of a previous run in the output directory")
+    void should_overwrite_files_of_previous_run(@TempDir Path tempDir) throws Exception {
+        Path prevDirectory = tempDir.resolve("prev");
+        Path newDirectory = tempDir.resolve("new");
+        Path outputDirectory = tempDir.resolve("out");
+        write(prevDirectory, "Kept.java", "class Kept {}");
+        write(newDirectory, "Kept.java", "class Kept {}");
+        write(newDirectory, "Added.java", "class Added {}");
+        write(outputDirectory, "Added.java", "class Stale {}");
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        BatchRunner runner = new BatchRunner(1, new PrintStream(report, true));
+        int failures =
+                new DirectoryDiff(prevDirectory, newDirectory)
+                        .run(outputDirectory, runner, new PrintStream(report, true));
+
+        assertEquals(0, failures, report.toString());
+        assertEquals("class Added {}", Files.readString(outputDirectory.resolve("Added.java")));
+    }
+
+    private static void write(Path directory, String relativePath, String content)
+            throws Exception {
+        Path file = directory.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
@@ -0,0 +1,125 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.SpoonUtil;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ArgumentsSource;
+
+/** Unit tests for the events emitted to the JDK Flight Recorder. */
+class FlightRecorderEventsTest {
+    private static final String PAIR_DIFF = "com.diffmin.PairDiff";
+    private static final String PHASE = "com.diffmin.Phase";
+    private static final String PATCH_OPERATION = "com.diffmin.PatchOperation";
+
+    @Test
+    @DisplayName("should record the pair, its phases and its patch operations")
+    void should_record_pair_phases_and_patch_operations() throws Exception {
+        File prevFile = new File("src/test/resources/delete/literal/PREV_DeleteLiteral.java");
+        File newFile = new File("src/test/resources/delete/literal/NEW_DeleteLiteral.java");
+
+        List<RecordedEvent> events = record(() -> Main.patchAndGenerateModel(prevFile, newFile));
+
+        List<RecordedEvent> pairs = filter(events, PAIR_DIFF);
+        assertEquals(1, pairs.size());
+        assertEquals(prevFile.getCanonicalPath(), pairs.get(0).getString("prevFile"));
+        assertEquals(1, pairs.get(0).getInt("deletePatches"));
+
+        List<String> phases =
+                filter(events, PHASE).stream()
+                        .map(event -> event.getString("phase"))
+                        .collect(Collectors.toList());
+        assertEquals(List.of("PARSE", "PARSE", "MATCH", "MAPPING", "GENERATE", "APPLY"), phases);
+
+        List<RecordedEvent> operations = filter(events, PATCH_OPERATION);
+        assertEquals(1, operations.size());
+        assertEquals("delete", operations.get(0).getString("operation"));
+        assertNotNull(operations.get(0).getString("nodeType"));
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    @DisplayName("should record the same patch operations when grouping them by parent")
+    void should_record_same_patch_operations_when_grouped(ResourceProvider.TestResources sources)
+            throws Exception {
+        File prevFile = sources.prevPath.toFile();
+        File newFile = sources.newPath.toFile();
+
+        List<String> groupedOperations =
+                describeOperations(
+                        record(
+                                () ->
+                                        PatchApplication.applyPatch(
+                                                generatePatch(prevFile, newFile))));
+        List<String> oneByOneOperations =
+                describeOperations(
+                        record(
+                                () ->
+                                        OneByOnePatchApplication.applyPatch(
+                                                generatePatch(prevFile, newFile))));
+
+        assertFalse(groupedOperations.isEmpty());
+        assertEquals(oneByOneOperations, groupedOperations);
+    }
+
+    private static PatchGeneration generatePatch(File prevFile, File newFile) throws Exception {
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(SpoonUtil.computeDiff(prevFile, newFile).getFirst());
+        return patchGeneration;
+    }
+
+    /** Returns the operation, role and node type of every patch, in sorted order. */
+    private static List<String> describeOperations(List<RecordedEvent> events) {
+        return filter(events, PATCH_OPERATION).stream()
+                .map(
+                        event ->
+                                String.join(
+                                        " ",
+                                        event.getString("operation"),
+                                        String.valueOf(event.getString("role")),
+                                        event.getString("nodeType")))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static List<RecordedEvent> record(PatchAction action) throws Exception {
+        Path recordingFile = Files.createTempFile("diffmin", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(PAIR_DIFF);
+            recording.enable(PHASE);
+            recording.enable(PATCH_OPERATION);
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(recordingFile);
+            return RecordingFile.readAllEvents(recordingFile);
+        } finally {
+            Files.delete(recordingFile);
+        }
+    }
+
+    private static List<RecordedEvent> filter(List<RecordedEvent> events, String name) {
+        return events.stream()
+                .filter(event -> name.equals(event.getEventType().getName()))
+                .sorted((first, second) -> first.getStartTime().compareTo(second.getStartTime()))
+                .collect(Collectors.toList());
+    }
+
+    /** Patching which is recorded. */
+    @FunctionalInterface
+    private interface PatchAction {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,131 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.util.SpoonUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Unit tests for patching the files changed between two commits. */
+class GitRevisionDiffTest {
+    private static final Path PREV_FILE =
+            Paths.get("src/test/resources/delete/literal/PREV_DeleteLiteral.java");
+    private static final Path NEW_FILE =
+            Paths.get("src/test/resources/delete/literal/NEW_DeleteLiteral.java");
+
+    @Test
+    @DisplayName("should patch the Java files changed between two commits")
+    void should_patch_java_files_changed_between_commits(@TempDir Path tempDir) throws Exception {
+        Path repository = tempDir.resolve("repository");
+        Path outputDirectory = tempDir.resolve("out");
+        git(tempDir, "init", "-q", repository.toString());
+        write(repository, "src/Modified.java", Files.readString(PREV_FILE));
+        write(repository, "src/Unchanged.java", "class Unchanged {}");
+        write(repository, "Deleted.java", "class Deleted {}");
+        commit(repository, "first");
+        write(repository, "src/Modified.java", Files.readString(NEW_FILE));
+        write(repository, "src/Added.java", "class Added {}");
+        write(repository, "README.md", "not a Java file");
+        Files.delete(repository.resolve("Deleted.java"));
+        commit(repository, "second");
+
+        GitRevisionDiff revisionDiff = new GitRevisionDiff(repository, "HEAD~1", "HEAD");
+        List<String> changedFiles =
+                revisionDiff.listChangedFiles().stream()
+                        .map(Object::toString)
+                        .collect(Collectors.toList());
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        PrintStream reportStream = new PrintStream(report, true);
+        int failures =
+                revisionDiff.run(outputDirectory, new BatchRunner(2, reportStream), reportStream);
+
+        assertEquals(
+                List.of("D\tDeleted.java", "A\tsrc/Added.java", "M\tsrc/Modified.java"),
+                changedFiles);
+        assertEquals(0, failures, report.toString());
+        assertEquals(
+                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                        Main.patchAndGenerateModel(PREV_FILE.toFile(), NEW_FILE.toFile())),
+                Files.readString(outputDirectory.resolve("src/Modified.java")));
+        assertEquals("class Added {}", Files.readString(outputDirectory.resolve("src/Added.java")));
+        assertFalse(Files.exists(outputDirectory.resolve("Deleted.java")));
+        assertFalse(Files.exists(outputDirectory.resolve("src/Unchanged.java")));
+    }
+
+    @Test
+    @DisplayName("should report a commit which does not exist")
+    void should_report_missing_commit(@TempDir Path tempDir) throws Exception {
+        git(tempDir, "init", "-q", tempDir.toString());
+        write(tempDir, "A.java", "class A {}");
+        commit(tempDir, "first");
+
+        GitRevisionDiff revisionDiff = new GitRevisionDiff(tempDir, "HEAD", "no-such-commit");
+
+        assertThrows(IOException.class, revisionDiff::listChangedFiles);
+    }
+
+    @Test
+    @DisplayName("should patch the changed files while git warns about an ambiguous revision")
+    void should_patch_files_while_git_warns(@TempDir Path tempDir) throws Exception {
+        Path outputDirectory = tempDir.resolve("out");
+        Path repository = tempDir.resolve("repository");
+        git(tempDir, "init", "-q", repository.toString());
+        write(repository, "Modified.java", Files.readString(PREV_FILE));
+        commit(repository, "first");
+        write(repository, "Modified.java", Files.readString(NEW_FILE));
+        commit(repository, "second");
+        // a tag and a branch of the same name make git write a warning for each revision read
+        git(repository, "tag", "ambiguous", "HEAD~1");
+        git(repository, "branch", "ambiguous", "HEAD~1");
+
+        GitRevisionDiff revisionDiff = new GitRevisionDiff(repository, "ambiguous", "HEAD");
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        PrintStream reportStream = new PrintStream(report, true);
+        int failures =
+                revisionDiff.run(outputDirectory, new BatchRunner(2, reportStream), reportStream);
+
+        assertEquals(0, failures, report.toString());
+        assertEquals(
+                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                        Main.patchAndGenerateModel(PREV_FILE.toFile(), NEW_FILE.toFile())),
+                Files.readString(outputDirectory.resolve("Modified.java")));
+    }
+
+    private static void commit(Path repository, String message) throws Exception {
+        git(repository, "add", "-A");
+        git(
+                repository,
+                "-c",
+                "user.name=diffmin",
+                "-c",
+                "user.email=diffmin@example.com",
+                "commit",
+                "-q",
+                "-m",
+                message);
+    }
+
+    private static void git(Path directory, String... arguments) throws Exception {
+        List<String> command = new ArrayList<>(List.of("git", "-C", directory.toString()));
+        command.addAll(List.of(arguments));
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        assertEquals(0, process.waitFor(), "git " + String.join(" ", arguments));
+    }
+
+    private static void write(Path directory, String relativePath, String content)
+            throws Exception {
+        Path file = directory.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
@@ -0,0 +1,45 @@
+package com.diffmin;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import java.util.List;
+
+/**
+ * Applies the patches generated one at a time, each deletion and insertion rebuilding the list of
+ * children it modifies on its own. Only used to compare it with the grouped application of {@link
+ * PatchApplication#applyPatch(PatchGeneration)}.
+ */
+final class OneByOnePatchApplication {
+
+    private OneByOnePatchApplication() {}
+
+    /**
+     * Applies the deletions, then the updates, the insertions and the moves, one patch at a time.
+     */
+    static void applyPatch(PatchGeneration patchGeneration) {
+        patchGeneration
+                .getDeletePatches()
+                .forEach(
+                        deletePatch ->
+                                PatchApplication.applyPatch(
+                                        List.of(deletePatch), List.of(), List.of(), List.of()));
+        patchGeneration
+                .getUpdatePatches()
+                .forEach(
+                        updatePatch ->
+                                PatchApplication.applyPatch(
+                                        List.of(), List.of(updatePatch), List.of(), List.of()));
+        patchGeneration
+                .getInsertPatches()
+                .forEach(
+                        insertPatch ->
+                                PatchApplication.applyPatch(
+                                        List.of(), List.of(), List.of(insertPatch), List.of()));
+        patchGeneration
+                .getMovePatches()
+                .forEach(
+                        movePatch ->
+                                PatchApplication.applyPatch(
+                                        List.of(), List.of(), List.of(), List.of(movePatch)));
+    }
+}
@@ -0,0 +1,334 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.Pair;
+import com.diffmin.util.SpoonUtil;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ArgumentsSource;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtType;
+
+/** Unit tests for pinning the identical members before running GumTree. */
+class PreMatchingTest {
+    private static final int METHODS = 100;
+
+    @Test
+    @DisplayName("should only diff the members which differ")
+    void should_only_diff_the_members_which_differ(@TempDir Path tempDir) throws Exception {
+        File prevFile = write(tempDir, "prev", generateClass(i -> false, false));
+        File newFile = write(tempDir, "new", generateClass(i -> i == 42, false));
+
+        PreMatching preMatching =
+                new PreMatching(SpoonUtil.buildModel(prevFile), SpoonUtil.buildModel(newFile));
+
+        assertTrue(preMatching.isApplicable());
+        assertEquals(1, preMatching.getChangedMembers());
+        // the implicit default constructor is a member as well
+        assertEquals(METHODS, preMatching.getPinnedMembers());
+        assertEquals(
+                print(SpoonUtil.buildModel(newFile)),
+                print(Main.patchAndGenerateModelWithPreMatching(prevFile, newFile)));
+    }
+
+    @Test
+    @DisplayName("should insert an added member and patch like a whole diff")
+    void should_insert_added_member_like_whole_diff(@TempDir Path tempDir) throws Exception {
+        File prevFile = write(tempDir, "prev", generateClass(i -> false, false));
+        File newFile = write(tempDir, "new", generateClass(i -> i == 42, true));
+
+        PreMatching preMatching =
+                new PreMatching(SpoonUtil.buildModel(prevFile), SpoonUtil.buildModel(newFile));
+
+        assertTrue(preMatching.isApplicable());
+        assertEquals(1, preMatching.getAddedMembers());
+        assertEquals(0, preMatching.getRemovedMembers());
+        assertEquals(1, preMatching.getChangedMembers());
+        assertEquals(METHODS, preMatching.getPinnedMembers());
+        assertEquals(
+                print(Main.patchAndGenerateModel(prevFile, newFile)),
+                print(Main.patchAndGenerateModelWithPreMatching(prevFile, newFile)));
+    }
+
+    @Test
+    @DisplayName("should delete a removed member and insert a renamed one like a whole diff")
+    void should_delete_removed_and_insert_renamed_members_like_whole_diff(@TempDir Path tempDir)
+            throws Exception {
+        String prevSource = generateClass(i -> false, true);
+        File prevFile = write(tempDir, "prev", prevSource);
+        File newFile =
+                write(
+                        tempDir,
+                        "new",
+                        prevSource
+                                .replace("    int added;\n", "")
+                                .replace("int method7(", "int renamed7(")
+                                .replace("int method9(int x)", "int method9(long x)"));
+
+        PreMatching preMatching =
+                new PreMatching(SpoonUtil.buildModel(prevFile), SpoonUtil.buildModel(newFile));
+
+        assertTrue(preMatching.isApplicable());
+        assertEquals(2, preMatching.getAddedMembers());
+        assertEquals(3, preMatching.getRemovedMembers());
+        assertEquals(0, preMatching.getChangedMembers());
+        assertEquals(
+                print(Main.patchAndGenerateModel(prevFile, newFile)),
+                print(Main.patchAndGenerateModelWithPreMatching(prevFile, newFile)));
+    }
+
+    @Test
+    @DisplayName("should diff the whole models if members are reordered")
+    void should_diff_whole_models_if_members_are_reordered(@TempDir Path tempDir) throws Exception {
+        String prevSource = generateClass(i -> false, false);
+        File prevFile = write(tempDir, "prev", prevSource);
+        String method1 = "    int method1(int x) {\n        return x + 1;\n    }\n";
+        File newFile =
+                write(
+                        tempDir,
+                        "new",
+                        prevSource.replace(method1, "").replace("}\n}\n", "}\n" + method1 + "}\n"));
+
+        PreMatching preMatching =
+                new PreMatching(SpoonUtil.buildModel(prevFile), SpoonUtil.buildModel(newFile));
+
+        assertFalse(preMatching.isApplicable());
+        assertEquals(
+                print(SpoonUtil.buildModel(newFile)),
+                print(Main.patchAndGenerateModelWithPreMatching(prevFile, newFile)));
+    }
+
+    @Test
+    @DisplayName("should generate the same patches when the members are diffed concurrently")
+    void should_generate_same_patches_concurrently(@TempDir Path tempDir) throws Exception {
+        File prevFile = write(tempDir, "prev", generateClass(i -> false, false));
+        File newFile = write(tempDir, "new", generateRewrittenClass());
+        ForkJoinPool pool = new ForkJoinPool(8);
+
+        try {
+            PatchGeneration sequentialPatches = new PatchGeneration();
+            new PreMatching(SpoonUtil.buildModel(prevFile), SpoonUtil.buildModel(newFile))
+                    .generatePatch(sequentialPatches);
+            List<String> expectedPatches = describe(sequentialPatches);
+            assertFalse(sequentialPatches.getInsertPatches().isEmpty());
+            assertFalse(sequentialPatches.getDeletePatches().isEmpty());
+            for (int run = 0; run < 5; run++) {
+                PatchGeneration concurrentPatches = new PatchGeneration();
+                PreMatching preMatching =
+                        new PreMatching(
+                                SpoonUtil.buildModel(prevFile), SpoonUtil.buildModel(newFile));
+                preMatching.generatePatch(concurrentPatches, pool);
+
+                assertEquals(METHODS, preMatching.getChangedMembers());
+                assertEquals(expectedPatches, describe(concurrentPatches));
+            }
+            File changedFile = write(tempDir, "changed", generateClass(i -> i % 10 == 0, false));
+            assertEquals(
+                    print(SpoonUtil.buildModel(changedFile)),
+                    print(Main.patchAndGenerateModelWithPreMatching(prevFile, changedFile, pool)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("should diff copies of the changed members on the given executor")
+    void should_diff_copies_of_changed_members_on_executor(@TempDir Path tempDir) throws Exception {
+        String prevSource = generateClass(i -> false, false);
+        File prevFile = write(tempDir, "prev", prevSource);
+        File newFile =
+                write(
+                        tempDir,
+                        "new",
+                        generateClass(i -> i == 42, false)
+                                .replace("int method7(", "static int method7(")
+                                .replace("int method8(", "private int method8("));
+        AtomicInteger tasks = new AtomicInteger();
+        Executor countingExecutor =
+                task -> {
+                    tasks.incrementAndGet();
+                    task.run();
+                };
+        CtModel prevModel = SpoonUtil.buildModel(prevFile);
+        PreMatching preMatching = new PreMatching(prevModel, SpoonUtil.buildModel(newFile));
+
+        PatchGeneration patchGeneration = new PatchGeneration();
+        preMatching.generatePatch(patchGeneration, countingExecutor);
+
+        assertEquals(3, preMatching.getChangedMembers());
+        assertEquals(3, tasks.get());
+        // the modifiers added by GumTree are given back their parent in the previous model
+        CtElement prevType = prevModel.getAllTypes().iterator().next();
+        for (ImmutableTriple<Integer, CtElement, CtElement> insert :
+                patchGeneration.getInsertPatches()) {
+            assertTrue(insert.right.hasParent(prevType) || insert.right == prevType);
+        }
+        PatchApplication.applyPatch(patchGeneration);
+        assertEquals(print(SpoonUtil.buildModel(newFile)), print(prevModel));
+    }
+
+    @Test
+    @DisplayName("should hash the members of a large type on the given executor")
+    void should_hash_members_of_large_type_on_executor(@TempDir Path tempDir) throws Exception {
+        File prevFile = write(tempDir, "prev", generateClass(i -> false, false));
+        File newFile = write(tempDir, "new", generateClass(i -> i == 42, false));
+        AtomicInteger tasks = new AtomicInteger();
+        Executor countingExecutor =
+                task -> {
+                    tasks.incrementAndGet();
+                    task.run();
+                };
+
+        PreMatching preMatching =
+                new PreMatching(
+                        SpoonUtil.buildModel(prevFile),
+                        SpoonUtil.buildModel(newFile),
+                        countingExecutor);
+
+        // the members of both types, including the implicit constructor, are hashed by 16
+        assertEquals(2 * ((METHODS + 1 + 15) / 16), tasks.get());
+        assertEquals(1, preMatching.getChangedMembers());
+        assertEquals(METHODS, preMatching.getPinnedMembers());
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    @DisplayName("should patch every pair with few more patches than a whole diff")
+    void should_patch_every_pair_with_few_more_patches_than_whole_diff(
+            ResourceProvider.TestResources sources) throws Exception {
+        File prevFile = sources.prevPath.toFile();
+        File newFile = sources.newPath.toFile();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            assertEquals(
+                    printTypes(SpoonUtil.buildModel(newFile)),
+                    printTypes(Main.patchAndGenerateModelWithPreMatching(prevFile, newFile, pool)));
+
+            PatchGeneration wholePatches = new PatchGeneration();
+            wholePatches.generatePatch(SpoonUtil.computeDiff(prevFile, newFile).getFirst());
+            PatchGeneration preMatchedPatches = new PatchGeneration();
+            PreMatching preMatching =
+                    new PreMatching(
+                            SpoonUtil.buildModel(prevFile), SpoonUtil.buildModel(newFile), pool);
+            preMatching.generatePatch(preMatchedPatches, pool);
+            if (preMatching.isApplicable()) {
+                // a node moved from one member to another is deleted and inserted instead, and so
+                // is a member whose signature changes, which a whole diff edits in place
+                assertTrue(
+                        count(preMatchedPatches)
+                                <= count(wholePatches)
+                                        + wholePatches.getMovePatches().size()
+                                        + preMatching.getAddedMembers(),
+                        count(preMatchedPatches) + " patches against " + count(wholePatches));
+            } else {
+                assertEquals(count(wholePatches), count(preMatchedPatches));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Prints the types of a model, which may have no compilation unit left after a patch. */
+    private static String printTypes(CtModel model) {
+        return model.getAllTypes().stream()
+                .map(CtType::toString)
+                .sorted()
+                .collect(Collectors.joining("\n"));
+    }
+
+    private static int count(PatchGeneration patchGeneration) {
+        return patchGeneration.getDeletePatches().size()
+                + patchGeneration.getUpdatePatches().size()
+                + patchGeneration.getInsertPatches().size()
+                + patchGeneration.getMovePatches().size();
+    }
+
+    /** Describes every patch by the path and the printed form of its nodes, in order. */
+    private static List<String> describe(PatchGeneration patchGeneration) {
+        List<String> patches = new ArrayList<>();
+        for (CtElement deleted : patchGeneration.getDeletePatches()) {
+            patches.add("delete " + describe(deleted));
+        }
+        for (Pair<CtElement, CtElement> update : patchGeneration.getUpdatePatches()) {
+            patches.add("update " + describe(update.getFirst()) + describe(update.getSecond()));
+        }
+        for (ImmutableTriple<Integer, CtElement, CtElement> insert :
+                patchGeneration.getInsertPatches()) {
+            patches.add("insert " + describe(insert));
+        }
+        for (Pair<CtElement, ImmutableTriple<Integer, CtElement, CtElement>> move :
+                patchGeneration.getMovePatches()) {
+            patches.add("move " + describe(move.getFirst()) + describe(move.getSecond()));
+        }
+        return patches;
+    }
+
+    private static String describe(ImmutableTriple<Integer, CtElement, CtElement> insert) {
+        return insert.getLeft() + describe(insert.getMiddle()) + describe(insert.getRight());
+    }
+
+    private static String describe(CtElement element) {
+        return " [" + element.getPath() + "] " + element;
+    }
+
+    /**
+     * Generates the large class with every method rewritten, so that the pairs of members yield
+     * insertions, deletions and updates.
+     */
+    private static String generateRewrittenClass() {
+        StringBuilder source = new StringBuilder("class Large {\n");
+        for (int i = 0; i < METHODS; i++) {
+            source.append(String.format("    int method%d(int x) {%n", i));
+            if (i % 2 == 0) {
+                source.append("        return x;\n");
+            } else {
+                source.append(String.format("        int y = x * %d;%n", i));
+                source.append(String.format("        return y - %d;%n", i % 3 == 0 ? i : -i));
+            }
+            source.append("    }\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    /** Generates a large class, changing the body of some methods or adding a field. */
+    private static String generateClass(IntPredicate changedMethods, boolean addField) {
+        StringBuilder source = new StringBuilder("class Large {\n");
+        if (addField) {
+            source.append("    int added;\n");
+        }
+        for (int i = 0; i < METHODS; i++) {
+            source.append(String.format("    int method%d(int x) {%n", i));
+            source.append(
+                    String.format("        return x + %d;%n", changedMethods.test(i) ? -i : i));
+            source.append("    }\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    private static File write(Path directory, String name, String source) throws Exception {
+        Path file = Files.createDirectories(directory.resolve(name)).resolve("Large.java");
+        return Files.writeString(file, source).toFile();
+    }
+
+    private static String print(CtModel model) {
+        return SpoonUtil.prettyPrintModelWithSingleCompilationUnit(model);
+    }
+}
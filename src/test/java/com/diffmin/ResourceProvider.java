@@ -31,6 +31,21 @@ class ResourceProvider {
                 .map(Arguments::of);
     }
 
+    /** Returns the test resources of every category of patches. */
+    static Stream<TestResources> getAllTestResources() {
+        return Stream.of(
+                        PURE_DELETE_PATCHES,
+                        PURE_UPDATE_PATCHES,
+                        PURE_INSERT_PATCHES,
+                        PURE_MOVE_PATCHES,
+                        MIX_OPERATION_PATCHES)
+                .map(Path::toFile)
+                .map(File::listFiles)
+                .flatMap(Arrays::stream)
+                .filter(File::isDirectory)
+                .map(TestResources::fromTestDirectory);
+    }
+
     /** Class to provide test resources. */
     static class TestResources {
         String parent;
@@ -116,4 +131,12 @@ class ResourceProvider {
                     MIX_OPERATION_PATCHES.toFile(), TestResources::fromTestDirectory);
         }
     }
+
+    /** Provides test sources for every category of patches. */
+    static class AllPatches implements ArgumentsProvider {
+        @Override
+        public Stream<? extends Arguments> provideArguments(ExtensionContext extensionContext) {
+            return getAllTestResources().map(Arguments::of);
+        }
+    }
 }
@@ -0,0 +1,120 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.SpoonUtil;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ArgumentsSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import spoon.compiler.SpoonResource;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.CtScanner;
+
+/** Unit tests for patching a model along the successive revisions of a file. */
+class RevisionChainTest {
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    void should_patch_the_same_model_back_and_forth(ResourceProvider.TestResources sources)
+            throws Exception {
+        File f1 = sources.prevPath.toFile();
+        File f2 = sources.newPath.toFile();
+        RevisionChain chain = new RevisionChain(f1);
+
+        for (File revision : List.of(f2, f1, f2)) {
+            CtModel patchedModel = chain.advance(revision);
+            CtModel expectedModel = SpoonUtil.buildModel(revision);
+            if (expectedModel.getAllTypes().isEmpty()) {
+                assertTrue(patchedModel.getAllTypes().isEmpty(), "Patched model is not empty");
+            } else {
+                assertEquals(
+                        SpoonUtil.prettyPrintModelWithSingleCompilationUnit(expectedModel),
+                        SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patchedModel),
+                        "Model was not patched correctly to " + revision);
+            }
+        }
+        assertEquals(4, chain.getRevisions());
+    }
+
+    @Test
+    @DisplayName("should parse every revision exactly once")
+    void should_parse_every_revision_once() throws Exception {
+        File f1 = new File("src/test/resources/update/literal/PREV_Action.java");
+        File f2 = new File("src/test/resources/update/literal/NEW_Action.java");
+        AtomicInteger builds = new AtomicInteger();
+        ParsingContext countingContext =
+                new ParsingContext() {
+                    @Override
+                    public CtModel buildModel(SpoonResource resource) {
+                        builds.incrementAndGet();
+                        return super.buildModel(resource);
+                    }
+                };
+
+        RevisionChain chain = new RevisionChain(f1, countingContext, true);
+        chain.advance(f2);
+        chain.advance(f1);
+
+        assertEquals(3, builds.get());
+        assertSame(chain.getModel(), chain.advance(f2));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"insert/arguments/%s_Arguments.java", "insert/method/%s_Shape.java"})
+    @DisplayName("should keep the model in one factory and release every revision along a chain")
+    void should_release_every_revision_along_a_chain(String revisionPath) throws Exception {
+        File f1 = new File("src/test/resources/" + String.format(revisionPath, "PREV"));
+        File f2 = new File("src/test/resources/" + String.format(revisionPath, "NEW"));
+        List<WeakReference<CtModel>> builtModels = new ArrayList<>();
+        ParsingContext trackingContext =
+                new ParsingContext() {
+                    @Override
+                    public CtModel buildModel(SpoonResource resource) {
+                        CtModel model = super.buildModel(resource);
+                        builtModels.add(new WeakReference<>(model));
+                        return model;
+                    }
+                };
+
+        RevisionChain chain = new RevisionChain(f1, trackingContext, false);
+        // the chain ends on the new revision, so that the model holds the inserted nodes
+        for (int i = 0; i < 99; i++) {
+            chain.advance(i % 2 == 0 ? f2 : f1);
+        }
+
+        Factory factory = chain.getModel().getRootPackage().getFactory();
+        List<CtElement> foreignElements = new ArrayList<>();
+        new CtScanner() {
+            @Override
+            protected void enter(CtElement element) {
+                if (element.getFactory() != factory) {
+                    foreignElements.add(element);
+                }
+            }
+        }.scan(chain.getModel().getRootPackage());
+        assertEquals(List.of(), foreignElements);
+        assertEquals(
+                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(SpoonUtil.buildModel(f2)),
+                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(chain.getModel()));
+        // the first model is the one being patched, whereas nothing may keep the others alive
+        List<WeakReference<CtModel>> revisionModels = builtModels.subList(1, builtModels.size());
+        for (int attempt = 0; attempt < 50 && !areCollected(revisionModels); attempt++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(areCollected(revisionModels), "Models of the revisions are still reachable");
+    }
+
+    private static boolean areCollected(List<WeakReference<CtModel>> models) {
+        return models.stream().allMatch(model -> model.get() == null);
+    }
+}
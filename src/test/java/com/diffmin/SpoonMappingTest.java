@@ -0,0 +1,135 @@
+package com.diffmin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.util.Pair;
+import com.diffmin.util.SpoonUtil;
+import com.github.gumtreediff.matchers.Mapping;
+import com.github.gumtreediff.matchers.MappingStore;
+import gumtree.spoon.builder.SpoonGumTreeBuilder;
+import gumtree.spoon.diff.Diff;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+/** Unit tests for the mapping between the nodes of both models. */
+class SpoonMappingTest {
+
+    private static Stream<ResourceProvider.TestResources> resources() {
+        return ResourceProvider.getAllTestResources();
+    }
+
+    @ParameterizedTest
+    @MethodSource("resources")
+    @DisplayName("should map the same nodes when inferring the mappings lazily")
+    void should_map_same_nodes_when_inferring_lazily(ResourceProvider.TestResources sources)
+            throws Exception {
+        Pair<Diff, CtModel> diffAndModel =
+                SpoonUtil.computeDiff(sources.prevPath.toFile(), sources.newPath.toFile());
+        Diff diff = diffAndModel.getFirst();
+        SpoonMapping eager = SpoonMapping.fromGumTreeMapping(diff.getMappingsComp());
+        SpoonMapping lazy = SpoonMapping.fromGumTreeMappingLazily(diff.getMappingsComp());
+
+        List<CtElement> elements =
+                diffAndModel
+                        .getSecond()
+                        .getRootPackage()
+                        .getElements(new TypeFilter<>(CtElement.class));
+        elements.addAll(
+                getNewModel(diff).getRootPackage().getElements(new TypeFilter<>(CtElement.class)));
+        // the deepest nodes are looked up first, so that whole paths are inferred at once
+        for (int i = elements.size() - 1; i >= 0; i--) {
+            CtElement element = elements.get(i);
+            assertSame(getOrNull(eager, element), getOrNull(lazy, element));
+        }
+        assertTrue(lazy.size() <= eager.size());
+    }
+
+    @ParameterizedTest
+    @MethodSource("resources")
+    @DisplayName("should map the same nodes as inferring the mappings with identity maps")
+    void should_map_same_nodes_as_identity_maps(ResourceProvider.TestResources sources)
+            throws Exception {
+        Pair<Diff, CtModel> diffAndModel =
+                SpoonUtil.computeDiff(sources.prevPath.toFile(), sources.newPath.toFile());
+        Diff diff = diffAndModel.getFirst();
+        SpoonMapping mapping = SpoonMapping.fromGumTreeMapping(diff.getMappingsComp());
+        Map<CtElement, CtElement> expected = inferWithIdentityMaps(diff.getMappingsComp());
+
+        assertEquals(expected.size(), mapping.size());
+        for (Map.Entry<CtElement, CtElement> srcAndDst : expected.entrySet()) {
+            assertSame(srcAndDst.getValue(), mapping.get(srcAndDst.getKey()));
+            assertSame(srcAndDst.getKey(), mapping.get(srcAndDst.getValue()));
+        }
+    }
+
+    /**
+     * Maps the nodes mapped by GumTree, and then the ignored children of each mapped pair in order,
+     * as described by {@link SpoonMapping#fromGumTreeMapping(MappingStore)}.
+     */
+    private static Map<CtElement, CtElement> inferWithIdentityMaps(MappingStore gumtreeMapping) {
+        Map<CtElement, CtElement> srcToDst = new IdentityHashMap<>();
+        Map<CtElement, CtElement> dstToSrc = new IdentityHashMap<>();
+        Deque<CtElement> pending = new ArrayDeque<>();
+        for (Mapping m : gumtreeMapping) {
+            Object src = m.first.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT);
+            Object dst = m.second.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT);
+            if (src != null) {
+                srcToDst.put((CtElement) src, (CtElement) dst);
+                dstToSrc.put((CtElement) dst, (CtElement) src);
+                pending.add((CtElement) src);
+            }
+        }
+        while (!pending.isEmpty()) {
+            CtElement src = pending.poll();
+            List<CtElement> srcChildren = src.getDirectChildren();
+            List<CtElement> dstChildren = srcToDst.get(src).getDirectChildren();
+            int srcIdx = 0;
+            int dstIdx = 0;
+            while (srcIdx < srcChildren.size() && dstIdx < dstChildren.size()) {
+                CtElement srcChild = srcChildren.get(srcIdx);
+                CtElement dstChild = dstChildren.get(dstIdx);
+                if (srcToDst.containsKey(srcChild) || !GumtreeSpoonAstDiff.isToIgnore(srcChild)) {
+                    srcIdx++;
+                } else if (dstToSrc.containsKey(dstChild)
+                        || !GumtreeSpoonAstDiff.isToIgnore(dstChild)) {
+                    dstIdx++;
+                } else {
+                    srcToDst.put(srcChild, dstChild);
+                    dstToSrc.put(dstChild, srcChild);
+                    pending.add(srcChild);
+                    srcIdx++;
+                    dstIdx++;
+                }
+            }
+        }
+        return srcToDst;
+    }
+
+    private static CtModel getNewModel(Diff diff) {
+        for (Mapping mapping : diff.getMappingsComp()) {
+            Object dst = mapping.second.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT);
+            if (dst != null) {
+                return ((CtElement) dst).getFactory().getModel();
+            }
+        }
+        throw new IllegalStateException("No node of the new model is mapped");
+    }
+
+    private static CtElement getOrNull(SpoonMapping mapping, CtElement element) {
+        try {
+            return mapping.get(element);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -2,13 +2,33 @@ package com.diffmin;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.diffmin.patch.EditScript;
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import com.diffmin.util.Pair;
+import com.diffmin.util.ParsingContext;
+import com.diffmin.util.PhaseMetrics;
 import com.diffmin.util.SpoonUtil;
+import com.diffmin.util.TreeIndex;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import gumtree.spoon.diff.Diff;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ArgumentsSource;
 import spoon.reflect.CtModel;
 import spoon.reflect.declaration.CtCompilationUnit;
+import spoon.reflect.declaration.CtElement;
 import spoon.reflect.declaration.CtType;
 
 /** Unit tests for verifying structure. */
@@ -44,11 +64,155 @@ class StructureTest {
         runTests(sources);
     }
 
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    void should_apply_patches_one_by_one(ResourceProvider.TestResources sources) throws Exception {
+        Pair<Diff, CtModel> diffAndModel =
+                SpoonUtil.computeDiff(sources.prevPath.toFile(), sources.newPath.toFile());
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diffAndModel.getFirst());
+        OneByOnePatchApplication.applyPatch(patchGeneration);
+        assertPatched(sources, diffAndModel.getSecond());
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    void should_apply_edit_script_read_from_file(
+            ResourceProvider.TestResources sources, @TempDir Path tempDir) throws Exception {
+        File f1 = sources.prevPath.toFile();
+        File f2 = sources.newPath.toFile();
+        Path scriptFile = tempDir.resolve("patch.diffmin");
+
+        Main.writeEditScript(f1, f2, scriptFile);
+        assertPatched(sources, Main.applyEditScript(f1, scriptFile));
+    }
+
+    @Test
+    @DisplayName("should refuse to read a file which is not an edit script")
+    void should_refuse_to_read_file_which_is_not_script(@TempDir Path tempDir) throws Exception {
+        Path scriptFile = tempDir.resolve("patch.diffmin");
+
+        Files.writeString(scriptFile, "not a script");
+        assertThrows(IOException.class, () -> EditScript.read(scriptFile));
+
+        Files.writeString(scriptFile, "{\"deletions\": null}");
+        assertThrows(IOException.class, () -> EditScript.read(scriptFile));
+    }
+
+    @Test
+    @DisplayName("should write a script holding the new source as text instead of the new nodes")
+    void should_write_script_holding_new_source(@TempDir Path tempDir) throws Exception {
+        Path f1 = Paths.get("src/test/resources/update/literal/PREV_Action.java");
+        Path f2 = Paths.get("src/test/resources/update/literal/NEW_Action.java");
+        Path scriptFile = tempDir.resolve("patch.diffmin");
+
+        Main.writeEditScript(f1.toFile(), f2.toFile(), scriptFile);
+        JsonObject script = JsonParser.parseString(Files.readString(scriptFile)).getAsJsonObject();
+        JsonArray sources = script.getAsJsonArray("sources");
+
+        assertEquals(1, sources.size());
+        assertEquals(
+                Files.readString(f2),
+                sources.get(0).getAsJsonObject().get("content").getAsString());
+        assertEquals(1, script.getAsJsonArray("updates").size());
+    }
+
+    @Test
+    @DisplayName("should refuse to write a script for a new model parsed from memory")
+    void should_refuse_to_write_script_without_new_source() {
+        Pair<Diff, CtModel> diffAndModel =
+                SpoonUtil.computeDiff("class A { int a = 1; }", "class A { int a = 2; }");
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diffAndModel.getFirst());
+
+        assertThrows(IllegalArgumentException.class, () -> EditScript.fromPatches(patchGeneration));
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    void should_print_equivalent_program_with_sniper(
+            ResourceProvider.TestResources sources, @TempDir Path tempDir) throws Exception {
+        File f1 = sources.prevPath.toFile();
+        File f2 = sources.newPath.toFile();
+        CtModel patchedCtModel =
+                Main.patchAndGenerateModel(
+                        f1,
+                        f2,
+                        new ParsingContext(ParsingContext.PrintingMode.SNIPER),
+                        ForkJoinPool.commonPool());
+        Path patchedFile = tempDir.resolve(f2.getName());
+        Files.writeString(
+                patchedFile, SpoonUtil.prettyPrintModelWithSingleCompilationUnit(patchedCtModel));
+
+        // the printed program may differ in layout, so it is compared after parsing it again
+        assertEquals(
+                List.copyOf(SpoonUtil.buildModel(f2).getAllTypes()),
+                List.copyOf(SpoonUtil.buildModel(patchedFile.toFile()).getAllTypes()),
+                "Prev file was not printed correctly");
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    void should_apply_patches_while_recording_metrics(ResourceProvider.TestResources sources)
+            throws Exception {
+        PhaseMetrics metrics = new PhaseMetrics();
+        CtModel patchedCtModel =
+                Main.patchAndGenerateModel(
+                        sources.prevPath.toFile(),
+                        sources.newPath.toFile(),
+                        new ParsingContext(),
+                        metrics);
+
+        assertPatched(sources, patchedCtModel);
+        assertTrue(metrics.getWallNanos(PhaseMetrics.Phase.PARSE) > 0);
+        assertTrue(metrics.getWallNanos(PhaseMetrics.Phase.MATCH) > 0);
+        assertTrue(metrics.getCount(PhaseMetrics.Count.PREV_NODES) > 0);
+        assertTrue(metrics.getCount(PhaseMetrics.Count.MAPPED_NODES) > 0);
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(ResourceProvider.AllPatches.class)
+    void should_apply_patches_with_pre_matching(ResourceProvider.TestResources sources)
+            throws Exception {
+        assertPatched(
+                sources,
+                Main.patchAndGenerateModelWithPreMatching(
+                        sources.prevPath.toFile(), sources.newPath.toFile()));
+    }
+
+    @Test
+    @DisplayName("should move a node out of a deleted block without detaching it first")
+    void should_move_node_out_of_deleted_block() {
+        String prevSource =
+                "class Block { void func(boolean c) { start(); if (c) { first(1); second(); } } }";
+        String newSource = "class Block { void func(boolean c) { start(); first(1); } }";
+        Pair<Diff, CtModel> diffAndModel = SpoonUtil.computeDiff(prevSource, newSource);
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diffAndModel.getFirst());
+        TreeIndex prevIndex = patchGeneration.getPrevIndex();
+        CtElement deletedStatement = patchGeneration.getDeletePatches().get(0);
+        CtElement movedInvocation = patchGeneration.getMovePatches().get(0).getFirst();
+        assertTrue(prevIndex.isAncestor(deletedStatement, movedInvocation));
+
+        PatchApplication.applyPatch(patchGeneration);
+
+        assertEquals(
+                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(
+                        SpoonUtil.buildModel(newSource, "Block.java")),
+                SpoonUtil.prettyPrintModelWithSingleCompilationUnit(diffAndModel.getSecond()));
+        // the moved node is left in the deleted statement instead of rebuilding its list
+        assertTrue(movedInvocation.hasParent(deletedStatement));
+    }
+
     private static void runTests(ResourceProvider.TestResources sources) throws Exception {
         File f1 = sources.prevPath.toFile();
         File f2 = sources.newPath.toFile();
 
-        CtModel patchedCtModel = Main.patchAndGenerateModel(f1, f2);
+        assertPatched(sources, Main.patchAndGenerateModel(f1, f2));
+    }
+
+    private static void assertPatched(
+            ResourceProvider.TestResources sources, CtModel patchedCtModel) throws Exception {
         CtModel expectedModel = SpoonUtil.buildModel(sources.newPath.toFile());
         Optional<CtType<?>> firstType = expectedModel.getAllTypes().stream().findFirst();
         if (firstType.isEmpty()) {
@@ -0,0 +1,142 @@
+package com.diffmin.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import gumtree.spoon.diff.Diff;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtType;
+
+/** Unit tests for caching the models of previously seen sources. */
+class CachingParsingContextTest {
+    private static final File PROGRAM =
+            new File("src/test/resources/insert/multiple-insert/PREV_TreeTraversal.java");
+
+    @Test
+    @DisplayName("should hand out a copy which can be mutated without affecting later hits")
+    void should_hand_out_copy_safe_to_mutate() throws Exception {
+        CachingParsingContext cache = new CachingParsingContext(Long.MAX_VALUE);
+
+        CtModel first = SpoonUtil.buildModel(PROGRAM, cache);
+        CtType<?> pristineType = first.getAllTypes().iterator().next().clone();
+        first.getAllTypes().forEach(CtType::delete);
+        CtModel second = SpoonUtil.buildModel(PROGRAM, cache);
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertTrue(first.getAllTypes().isEmpty());
+        assertEquals(pristineType, second.getAllTypes().iterator().next());
+        assertEquals(
+                1,
+                SpoonUtil.getTheOnlyCompilationUnit(second.getRootPackage())
+                        .getDeclaredTypes()
+                        .size());
+    }
+
+    @Test
+    @DisplayName("should patch cached models exactly like freshly parsed ones")
+    void should_patch_cached_models_like_parsed_ones() throws Exception {
+        CachingParsingContext cache = new CachingParsingContext(Long.MAX_VALUE);
+        List<Path> directories;
+        try (Stream<Path> paths = Files.walk(Paths.get("src/test/resources"))) {
+            directories =
+                    paths.filter(path -> path.toString().endsWith("new_revision_paths"))
+                            .map(Path::getParent)
+                            .collect(Collectors.toList());
+        }
+
+        for (Path directory : directories) {
+            File prevFile = findByPrefix(directory, "PREV");
+            File newFile = findByPrefix(directory, "NEW");
+            String expected = patch(prevFile, newFile, new ParsingContext());
+            // the first patch fills the cache and the second one is served by copies
+            assertEquals(expected, patch(prevFile, newFile, cache), directory.toString());
+            assertEquals(expected, patch(prevFile, newFile, cache), directory.toString());
+        }
+        assertEquals(2 * directories.size(), cache.getMisses());
+        assertEquals(2 * directories.size(), cache.getHits());
+    }
+
+    @Test
+    @DisplayName("should evict the least recently used models once the size bound is exceeded")
+    void should_evict_least_recently_used_models(@TempDir Path tempDir) throws Exception {
+        String program = Files.readString(PROGRAM.toPath());
+        File first = Files.writeString(tempDir.resolve("A.java"), "class A {}").toFile();
+        File second = Files.writeString(tempDir.resolve("B.java"), "class B {}").toFile();
+        CachingParsingContext cache = new CachingParsingContext(program.length());
+
+        SpoonUtil.buildModel(first, cache);
+        SpoonUtil.buildModel(second, cache);
+        assertEquals(2, cache.size());
+        SpoonUtil.buildModel(PROGRAM, cache);
+        assertEquals(1, cache.size());
+        SpoonUtil.buildModel(PROGRAM, cache);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    @DisplayName("should cache files with the same name and source in two directories apart")
+    void should_cache_same_file_name_in_two_directories_apart(@TempDir Path tempDir)
+            throws Exception {
+        File first =
+                Files.writeString(
+                                Files.createDirectory(tempDir.resolve("a")).resolve("Foo.java"),
+                                "class Foo {}")
+                        .toFile();
+        File second =
+                Files.writeString(
+                                Files.createDirectory(tempDir.resolve("b")).resolve("Foo.java"),
+                                "class Foo {}")
+                        .toFile();
+        CachingParsingContext cache = new CachingParsingContext(Long.MAX_VALUE);
+
+        SpoonUtil.buildModel(first, cache);
+        CtModel firstCopy = SpoonUtil.buildModel(first, cache);
+        CtModel secondCopy = SpoonUtil.buildModel(second, cache);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(first.getCanonicalFile(), getFile(firstCopy).getCanonicalFile());
+        assertEquals(second.getCanonicalFile(), getFile(secondCopy).getCanonicalFile());
+    }
+
+    /** Returns the file which both the only type of the model and its compilation unit refer to. */
+    private static File getFile(CtModel model) {
+        File file = SpoonUtil.getTheOnlyCompilationUnit(model.getRootPackage()).getFile();
+        assertEquals(file, model.getAllTypes().iterator().next().getPosition().getFile());
+        return file;
+    }
+
+    private static String patch(File prevFile, File newFile, ParsingContext parsingContext)
+            throws Exception {
+        Pair<Diff, CtModel> diffAndModel = SpoonUtil.computeDiff(prevFile, newFile, parsingContext);
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diffAndModel.getFirst());
+        PatchApplication.applyPatch(
+                patchGeneration.getDeletePatches(),
+                patchGeneration.getUpdatePatches(),
+                patchGeneration.getInsertPatches(),
+                patchGeneration.getMovePatches());
+        return SpoonUtil.prettyPrintModelWithSingleCompilationUnit(diffAndModel.getSecond());
+    }
+
+    private static File findByPrefix(Path directory, String prefix) throws Exception {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().startsWith(prefix))
+                    .findFirst()
+                    .orElseThrow()
+                    .toFile();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.diffmin.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import spoon.Launcher;
+import spoon.compiler.Environment;
+import spoon.compiler.SpoonResourceHelper;
+import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtType;
+import spoon.support.compiler.VirtualFile;
+
+/** Unit tests for building models with a shared parsing context. */
+class ParsingContextTest {
+    private static final File PROGRAM =
+            new File("src/test/resources/insert/multiple-insert/PREV_TreeTraversal.java");
+
+    @Test
+    @DisplayName("should build an isolated model on every call")
+    void should_build_isolated_model_on_every_call() throws Exception {
+        ParsingContext parsingContext = new ParsingContext();
+
+        CtModel first = SpoonUtil.buildModel(PROGRAM, parsingContext);
+        CtModel second = SpoonUtil.buildModel(PROGRAM, parsingContext);
+
+        assertNotSame(first, second);
+        assertNotSame(
+                first.getUnnamedModule().getFactory(), second.getUnnamedModule().getFactory());
+        first.getAllTypes().forEach(CtType::delete);
+        assertTrue(first.getAllTypes().isEmpty());
+        assertFalse(second.getAllTypes().isEmpty());
+    }
+
+    @Test
+    @DisplayName("should reuse the environment of the thread but not with the sniper printer")
+    void should_reuse_environment_of_thread() throws Exception {
+        ParsingContext parsingContext = new ParsingContext();
+        ParsingContext sniperContext = new ParsingContext(ParsingContext.PrintingMode.SNIPER);
+
+        Environment first = getEnvironment(SpoonUtil.buildModel(PROGRAM, parsingContext));
+        Environment second = getEnvironment(SpoonUtil.buildModel(PROGRAM, parsingContext));
+        Environment otherThread =
+                CompletableFuture.supplyAsync(
+                                () ->
+                                        getEnvironment(
+                                                parsingContext.buildModel(
+                                                        new VirtualFile("class A {}", "A.java"))))
+                        .get();
+
+        assertSame(first, second);
+        assertNotSame(first, otherThread);
+        assertNotSame(
+                getEnvironment(SpoonUtil.buildModel(PROGRAM, sniperContext)),
+                getEnvironment(SpoonUtil.buildModel(PROGRAM, sniperContext)));
+    }
+
+    @Test
+    @DisplayName("should build the same model as a launcher")
+    void should_build_same_model_as_launcher() throws Exception {
+        Launcher launcher = new Launcher();
+        launcher.getEnvironment().setCommentEnabled(false);
+        launcher.addInputResource(SpoonResourceHelper.createResource(PROGRAM));
+        CtModel expected = launcher.buildModel();
+
+        CtModel actual = SpoonUtil.buildModel(PROGRAM, new ParsingContext());
+
+        // CtElement#equals compares the elements structurally
+        assertEquals(
+                expected.getAllTypes().iterator().next(), actual.getAllTypes().iterator().next());
+    }
+
+    private static Environment getEnvironment(CtModel model) {
+        return model.getUnnamedModule().getFactory().getEnvironment();
+    }
+}
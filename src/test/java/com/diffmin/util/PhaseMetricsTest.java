@@ -0,0 +1,72 @@
+package com.diffmin.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the metrics recorded per phase. */
+class PhaseMetricsTest {
+    @Test
+    @DisplayName("should add up the measurements of a phase")
+    void should_add_up_the_measurements_of_a_phase() {
+        PhaseMetrics metrics = new PhaseMetrics();
+
+        int[] firstArray = metrics.measureAndGet(PhaseMetrics.Phase.PARSE, () -> new int[1 << 16]);
+        long firstBytes = metrics.getAllocatedBytes(PhaseMetrics.Phase.PARSE);
+        int[] secondArray = metrics.measureAndGet(PhaseMetrics.Phase.PARSE, () -> new int[1 << 16]);
+
+        assertNotSame(firstArray, secondArray);
+        assertTrue(firstBytes >= 4 << 16, "Allocations of the first measurement: " + firstBytes);
+        assertTrue(metrics.getAllocatedBytes(PhaseMetrics.Phase.PARSE) >= 2 * (4 << 16));
+        assertEquals(0, metrics.getWallNanos(PhaseMetrics.Phase.MATCH));
+        assertEquals(metrics.getWallNanos(PhaseMetrics.Phase.PARSE), metrics.getTotalWallNanos());
+    }
+
+    @Test
+    @DisplayName("should still record a phase which throws")
+    void should_record_a_phase_which_throws() {
+        PhaseMetrics metrics = new PhaseMetrics();
+
+        assertThrows(
+                IllegalStateException.class,
+                () ->
+                        metrics.measure(
+                                PhaseMetrics.Phase.APPLY,
+                                () -> {
+                                    throw new IllegalStateException();
+                                }));
+
+        assertTrue(metrics.getWallNanos(PhaseMetrics.Phase.APPLY) > 0);
+    }
+
+    @Test
+    @DisplayName("should list every phase and count in the summary line")
+    void should_list_every_phase_and_count_in_the_summary_line() {
+        PhaseMetrics metrics = new PhaseMetrics();
+        metrics.count(PhaseMetrics.Count.INSERT_PATCHES, 3);
+
+        String summary = metrics.toSummaryLine();
+
+        assertEquals(
+                2 * PhaseMetrics.Phase.values().length + PhaseMetrics.Count.values().length,
+                summary.split("\t").length);
+        assertTrue(summary.contains("insert_patches=3"), summary);
+        assertTrue(summary.startsWith("parse_ms=0\tparse_bytes=0"), summary);
+    }
+
+    @Test
+    @DisplayName("should run the phases without recording them when disabled")
+    void should_run_phases_without_recording_them_when_disabled() {
+        PhaseMetrics metrics = PhaseMetrics.disabled();
+
+        int[] array = metrics.measureAndGet(PhaseMetrics.Phase.PARSE, () -> new int[1 << 16]);
+        metrics.count(PhaseMetrics.Count.INSERT_PATCHES, 3);
+
+        assertEquals(1 << 16, array.length);
+        assertFalse(metrics.isEnabled());
+        assertEquals(0, metrics.getWallNanos(PhaseMetrics.Phase.PARSE));
+        assertEquals(0, metrics.getAllocatedBytes(PhaseMetrics.Phase.PARSE));
+        assertEquals(0, metrics.getCount(PhaseMetrics.Count.INSERT_PATCHES));
+    }
+}
@@ -0,0 +1,67 @@
+package com.diffmin.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for comparing two versions of a source file without building their models. */
+class SourceComparisonTest {
+    private static final String SOURCE =
+            "class A {\n    int f(int x) {\n        return x >>= 1; // shift\n    }\n}\n";
+
+    @Test
+    @DisplayName("should find identical bytes")
+    void should_find_identical_bytes() {
+        assertEquals(SourceComparison.Outcome.SAME_BYTES, compare(SOURCE, SOURCE));
+    }
+
+    @Test
+    @DisplayName("should ignore the layout of the tokens")
+    void should_ignore_the_layout_of_the_tokens() {
+        String reformatted =
+                "class A\r\n{\r\n\tint f( int x )\r\n\t{ return x >>= 1; // shift\r\n}\r\n}";
+        assertEquals(SourceComparison.Outcome.SAME_TOKENS, compare(SOURCE, reformatted));
+    }
+
+    @Test
+    @DisplayName("should only patch the versions which may have a non-empty diff")
+    void should_only_patch_versions_which_may_differ() {
+        byte[] prevContent = SOURCE.getBytes(StandardCharsets.UTF_8);
+        byte[] reformatted = SOURCE.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] changed = SOURCE.replace("1", "2").getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(
+                SOURCE,
+                SourceComparison.patchedOrPrevious(
+                        prevContent,
+                        reformatted,
+                        () -> {
+                            throw new AssertionError("Versions with the same tokens are patched");
+                        }));
+        assertEquals(
+                "patched",
+                SourceComparison.patchedOrPrevious(prevContent, changed, () -> "patched"));
+    }
+
+    @Test
+    @DisplayName("should find changes in tokens, comments and literals")
+    void should_find_changes_in_tokens_comments_and_literals() {
+        assertTrue(SourceComparison.haveSameTokens("a = - -b;", "a = - - b;"));
+        assertFalse(SourceComparison.haveSameTokens("a = - -b;", "a = --b;"));
+        assertFalse(SourceComparison.haveSameTokens("int ab;", "int a b;"));
+        assertFalse(SourceComparison.haveSameTokens("x = 1.5e-3;", "x = 1.5e - 3;"));
+        assertFalse(SourceComparison.haveSameTokens("s = \"a b\";", "s = \"a  b\";"));
+        assertFalse(SourceComparison.haveSameTokens("s = \"a\\\" b\";", "s = \"a\\\"  b\";"));
+        assertFalse(SourceComparison.haveSameTokens("/* a b */ x;", "/* a  b */ x;"));
+        assertFalse(SourceComparison.haveSameTokens("x; // a", "x; // b"));
+        assertFalse(SourceComparison.haveSameTokens("x;", "x; y;"));
+    }
+
+    private static SourceComparison.Outcome compare(String prevSource, String newSource) {
+        return SourceComparison.compare(
+                prevSource.getBytes(StandardCharsets.UTF_8),
+                newSource.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,214 @@
+package com.diffmin.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.diffmin.patch.PatchApplication;
+import com.diffmin.patch.PatchGeneration;
+import gumtree.spoon.diff.Diff;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import spoon.compiler.SpoonResource;
+import spoon.compiler.SpoonResourceHelper;
+import spoon.reflect.CtModel;
+
+/** Unit tests for the utilities building models and computing diffs. */
+class SpoonUtilTest {
+    private static final File PREV_FILE =
+            new File(
+                    "src/test/resources/mix-operation/DI_binary_operator/PREV_BinaryOperator.java");
+    private static final File NEW_FILE =
+            new File("src/test/resources/mix-operation/DI_binary_operator/NEW_BinaryOperator.java");
+
+    private static ExecutorService executor;
+
+    @BeforeAll
+    static void beforeAll() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterAll
+    static void afterAll() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("should compute the same diff when both files are parsed concurrently")
+    void should_compute_same_diff_when_parsing_concurrently() throws Exception {
+        Pair<Diff, CtModel> sequential = SpoonUtil.computeDiff(PREV_FILE, NEW_FILE);
+        Pair<Diff, CtModel> concurrent =
+                SpoonUtil.computeDiff(PREV_FILE, NEW_FILE, new ParsingContext(), executor);
+
+        assertEquals(
+                sequential.getFirst().getRootOperations().toString(),
+                concurrent.getFirst().getRootOperations().toString());
+        assertEquals(
+                sequential.getSecond().getRootPackage(), concurrent.getSecond().getRootPackage());
+        assertTrue(
+                concurrent
+                        .getSecond()
+                        .getAllTypes()
+                        .iterator()
+                        .next()
+                        .getPosition()
+                        .getFile()
+                        .getName()
+                        .startsWith("PREV"),
+                "Model to be patched should be built from the previous file");
+    }
+
+    @Test
+    @DisplayName("should keep the source of unmodified elements when printing with the sniper")
+    void should_keep_unmodified_source_when_printing_with_sniper() throws Exception {
+        // the default pretty-printer would move the brackets of the parameter to its type
+        File prevFile = new File("src/test/resources/update/typeref/PREV_TypeReference.java");
+        File newFile = new File("src/test/resources/update/typeref/NEW_TypeReference.java");
+
+        assertEquals(
+                Files.readString(newFile.toPath()),
+                patchAndPrintWithSniper(
+                        SpoonResourceHelper.createResource(prevFile),
+                        SpoonResourceHelper.createResource(newFile)));
+    }
+
+    @Test
+    @DisplayName("should keep the comments and layout around a changed literal with the sniper")
+    void should_keep_comments_around_changed_literal_with_sniper() throws Exception {
+        File prevFile =
+                new File("src/test/resources/update/literal_in_commented_file/PREV_Greeter.java");
+        File newFile =
+                new File("src/test/resources/update/literal_in_commented_file/NEW_Greeter.java");
+
+        assertEquals(
+                Files.readString(newFile.toPath()),
+                patchAndPrintWithSniper(
+                        SpoonResourceHelper.createResource(prevFile),
+                        SpoonResourceHelper.createResource(newFile)));
+    }
+
+    @Test
+    @DisplayName("should print the literals of the new file as written there with the sniper")
+    void should_print_new_literals_as_written_with_sniper(@TempDir Path tempDir) throws Exception {
+        String prevSource =
+                "class Literals {\n"
+                        + "    void m() {\n"
+                        + "        String quote = \"a\";\n"
+                        + "        char c = 'b';\n"
+                        + "        int hex = 1;\n"
+                        + "    }\n"
+                        + "}\n";
+        String newSource =
+                "class Literals {\n"
+                        + "    void m() {\n"
+                        + "        String quote = \"it's \\\"quoted\\\"\";\n"
+                        + "        char c = '\"';\n"
+                        + "        int hex = 0x1F;\n"
+                        + "        System.out.println(\"it's\" + '\"' + 1_000L);\n"
+                        + "    }\n"
+                        + "}\n";
+
+        // the sniper printer reads the original source of the models from their files
+        Path prevFile = Files.writeString(tempDir.resolve("PREV_Literals.java"), prevSource);
+        Path newFile = Files.writeString(tempDir.resolve("NEW_Literals.java"), newSource);
+
+        assertEquals(
+                newSource,
+                patchAndPrintWithSniper(
+                        SpoonResourceHelper.createResource(prevFile.toFile()),
+                        SpoonResourceHelper.createResource(newFile.toFile())));
+    }
+
+    @Test
+    @DisplayName("should throw FileNotFoundException before parsing if a path is incorrect")
+    void should_throw_FileNotFoundException_when_parsing_concurrently() {
+        File wrongFile = new File("wrong/path/to/prevFile");
+        assertThrows(
+                FileNotFoundException.class,
+                () -> SpoonUtil.computeDiff(wrongFile, NEW_FILE, new ParsingContext(), executor));
+    }
+
+    @Test
+    @DisplayName("should build the same model from a source held in memory or a file")
+    void should_build_same_model_from_source_in_memory_or_file() throws Exception {
+        CtModel fromFile = SpoonUtil.buildModel(PREV_FILE);
+        byte[] content = Files.readAllBytes(PREV_FILE.toPath());
+        String name = PREV_FILE.getName();
+
+        assertEquals(
+                fromFile.getRootPackage(),
+                SpoonUtil.buildModel(new StringBuilder(Files.readString(PREV_FILE.toPath())), name)
+                        .getRootPackage());
+        assertEquals(
+                fromFile.getRootPackage(), SpoonUtil.buildModel(content, name).getRootPackage());
+        assertEquals(
+                fromFile.getRootPackage(),
+                SpoonUtil.buildModel(PREV_FILE.toPath()).getRootPackage());
+    }
+
+    @Test
+    @DisplayName("should compute the same diff from sources held in memory or files")
+    void should_compute_same_diff_from_sources_in_memory_or_files() throws Exception {
+        String expected =
+                SpoonUtil.computeDiff(PREV_FILE, NEW_FILE)
+                        .getFirst()
+                        .getRootOperations()
+                        .toString();
+        byte[] prevContent = Files.readAllBytes(PREV_FILE.toPath());
+        byte[] newContent = Files.readAllBytes(NEW_FILE.toPath());
+
+        assertEquals(
+                expected,
+                SpoonUtil.computeDiff(
+                                Files.readString(PREV_FILE.toPath()),
+                                Files.readString(NEW_FILE.toPath()))
+                        .getFirst()
+                        .getRootOperations()
+                        .toString());
+        assertEquals(
+                expected,
+                SpoonUtil.computeDiff(prevContent, newContent)
+                        .getFirst()
+                        .getRootOperations()
+                        .toString());
+        assertEquals(
+                expected,
+                SpoonUtil.computeDiff(PREV_FILE.toPath(), NEW_FILE.toPath())
+                        .getFirst()
+                        .getRootOperations()
+                        .toString());
+    }
+
+    @Test
+    @DisplayName("should cache the models of the parsing context only if a cache size is given")
+    void should_cache_models_only_if_cache_size_given() throws Exception {
+        assertFalse(SpoonUtil.createParsingContext(null) instanceof CachingParsingContext);
+        assertThrows(NumberFormatException.class, () -> SpoonUtil.createParsingContext("a lot"));
+
+        ParsingContext parsingContext = SpoonUtil.createParsingContext(" 1048576 ");
+        SpoonUtil.getPackage(PREV_FILE, parsingContext);
+        SpoonUtil.getPackage(PREV_FILE, parsingContext);
+
+        assertEquals(1, ((CachingParsingContext) parsingContext).getHits());
+    }
+
+    private static String patchAndPrintWithSniper(
+            SpoonResource prevResource, SpoonResource newResource) {
+        Pair<Diff, CtModel> diffAndModel =
+                SpoonUtil.computeDiff(
+                        prevResource,
+                        newResource,
+                        new ParsingContext(ParsingContext.PrintingMode.SNIPER));
+        PatchGeneration patchGeneration = new PatchGeneration();
+        patchGeneration.generatePatch(diffAndModel.getFirst());
+        PatchApplication.applyPatch(patchGeneration);
+        return SpoonUtil.prettyPrintModelWithSingleCompilationUnit(diffAndModel.getSecond());
+    }
+}
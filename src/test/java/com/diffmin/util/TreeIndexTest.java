@@ -0,0 +1,112 @@
+package com.diffmin.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import spoon.reflect.CtModel;
+import spoon.reflect.code.CtLocalVariable;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtPackage;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+/** Unit tests for the index answering ancestor, depth and subtree queries. */
+class TreeIndexTest {
+    private static final File FILE =
+            new File(
+                    "src/test/resources/mix-operation/DI_binary_operator/PREV_BinaryOperator.java");
+
+    @Test
+    @DisplayName("should agree with the parents of every node of the model")
+    void should_agree_with_parents() throws Exception {
+        CtModel model = SpoonUtil.buildModel(FILE);
+        CtPackage root = model.getRootPackage();
+        TreeIndex index = new TreeIndex(new ElementNumbering(), List.of(root));
+        List<CtElement> elements = root.getElements(new TypeFilter<>(CtElement.class));
+
+        assertEquals(elements.size(), index.size());
+        assertEquals(0, index.getPreOrder(root));
+        assertEquals(index.size(), index.getSubtreeSize(root));
+        for (CtElement element : elements) {
+            if (element != root) {
+                CtElement parent = element.getParent();
+                assertTrue(isInSubtree(index, parent, element));
+                assertFalse(isInSubtree(index, element, parent));
+            }
+            assertEquals(
+                    element.getElements(new TypeFilter<>(CtElement.class)).size(),
+                    index.getSubtreeSize(element));
+        }
+    }
+
+    @Test
+    @DisplayName("should agree with the ancestors of every node of the model")
+    void should_agree_with_ancestors() throws Exception {
+        CtModel model = SpoonUtil.buildModel(FILE);
+        TreeIndex index = TreeIndex.of(model);
+        List<CtElement> elements =
+                model.getRootPackage().getElements(new TypeFilter<>(CtElement.class));
+
+        for (CtElement element : elements) {
+            int depth = 0;
+            for (CtElement ancestor = element;
+                    ancestor != model.getRootPackage();
+                    ancestor = ancestor.getParent()) {
+                CtElement parent = ancestor.getParent();
+                assertTrue(index.isAncestor(parent, element));
+                assertFalse(index.isAncestor(element, parent));
+                assertTrue(index.getPostOrder(parent) > index.getPostOrder(element));
+                depth++;
+            }
+            assertEquals(depth, index.getDepth(element));
+            assertFalse(index.isAncestor(element, element));
+        }
+    }
+
+    @Test
+    @DisplayName("should tell apart nodes in sibling subtrees")
+    void should_tell_apart_siblings() throws Exception {
+        CtModel model = SpoonUtil.buildModel(FILE);
+        TreeIndex index = new TreeIndex(new ElementNumbering(), List.of(model.getRootPackage()));
+        CtLocalVariable<?> variable =
+                model.getElements(new TypeFilter<>(CtLocalVariable.class)).get(0);
+        CtElement type = variable.getType();
+        CtElement value = variable.getDefaultExpression();
+
+        assertFalse(isInSubtree(index, type, value));
+        assertFalse(isInSubtree(index, value, type));
+        assertFalse(index.isAncestor(type, value));
+        assertFalse(index.isAncestor(value, type));
+        assertEquals(index.getDepth(type), index.getDepth(value));
+        assertTrue(index.getPostOrder(type) < index.getPostOrder(value));
+        assertThrows(IllegalArgumentException.class, () -> index.getPreOrder(value.clone()));
+    }
+
+    @Test
+    @DisplayName("should leave out the nodes numbered after the trees")
+    void should_leave_out_nodes_numbered_after_trees() throws Exception {
+        CtModel model = SpoonUtil.buildModel(FILE);
+        CtLocalVariable<?> variable =
+                model.getElements(new TypeFilter<>(CtLocalVariable.class)).get(0);
+        ElementNumbering numbering = new ElementNumbering();
+        TreeIndex index = new TreeIndex(numbering, List.of(variable));
+        CtElement outside = variable.getParent();
+        numbering.getOrAddNumber(outside);
+
+        assertTrue(index.contains(variable.getType()));
+        assertFalse(index.contains(outside));
+        assertEquals(index.size(), index.getSubtreeSize(variable));
+        assertThrows(IllegalArgumentException.class, () -> index.getSubtreeSize(outside));
+        assertThrows(
+                IllegalArgumentException.class, () -> new TreeIndex(numbering, List.of(outside)));
+    }
+
+    private static boolean isInSubtree(TreeIndex index, CtElement ancestor, CtElement element) {
+        int ancestorPreOrder = index.getPreOrder(ancestor);
+        int preOrder = index.getPreOrder(element);
+        return ancestorPreOrder < preOrder
+                && preOrder < ancestorPreOrder + index.getSubtreeSize(ancestor);
+    }
+}
@@ -0,0 +1,23 @@
+/* Header comment, kept as written. */
+package com.diffmin;
+
+/**
+ * Greets people.
+ */
+class Greeter {
+    // the greeting,   padded with   spaces
+    private static final String GREETING = "Hello";
+
+    /** Returns the greeting for the name. */
+    String greet(String name) {
+        // concatenates the parts
+        return GREETING + ", " + name + '!'; // trailing comment
+    }
+
+    /*
+     * Block comment before a method.
+     */
+    int answer() {
+        return 42; // not quite
+    }
+}